@@ -0,0 +1,93 @@
+package merklebtree;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Encoding, decoding and searching a single full node, and hashing blocks of node size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeBenchmark {
+    @Param({"16", "64", "256"})
+    public int maxChildren;
+
+    @Param({"8", "32"})
+    public int keySize;
+
+    @Param({"32", "256"})
+    public int valueSize;
+
+    @Param({"leaf", "inner"})
+    public String kind;
+
+    private TreeNode node;
+    private byte[] raw;
+    private ByteBuffer buffer;
+    private final NodeView view = new NodeView();
+    private byte[][] searches;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random r = new Random(1);
+        int n = maxChildren;
+        byte[][] keys = new byte[n][], values = new byte[n][], children = new byte[n][];
+        long[] counts = new long[n];
+        keys[0] = new byte[0];
+        values[0] = new byte[0];
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                keys[i] = Workload.key(i * 1000, keySize);
+                values[i] = Workload.value(valueSize, r);
+            }
+            children[i] = kind.equals("leaf") ? new byte[0] : Workload.value(32, r);
+            counts[i] = kind.equals("leaf") ? 0 : 1000;
+        }
+        node = new TreeNode(keys, values, children, counts, Optional.empty());
+        raw = node.serialize();
+        buffer = ByteBuffer.wrap(raw).asReadOnlyBuffer();
+        searches = new byte[1024][];
+        for (int i = 0; i < searches.length; i++)
+            searches[i] = Workload.key(r.nextInt(n * 1000), keySize);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return node.serialize();
+    }
+
+    @Benchmark
+    public TreeNode deserialize() throws IOException {
+        return TreeNode.deserialize(raw);
+    }
+
+    @Benchmark
+    public int searchDecoded() {
+        return node.search(searches[next++ & 1023]);
+    }
+
+    @Benchmark
+    public int searchInPlace() throws IOException {
+        view.wrap(buffer);
+        return view.search(searches[next++ & 1023]);
+    }
+
+    @Benchmark
+    public byte[] hashSha256() {
+        return RAMStorage.hash(raw);
+    }
+
+    @Benchmark
+    public byte[] hashBlake2b() {
+        return HashFunction.BLAKE2B_256.hash(raw);
+    }
+}
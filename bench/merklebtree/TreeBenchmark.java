@@ -0,0 +1,119 @@
+package merklebtree;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Operations on a whole tree in RAMStorage, built by bulk loading before each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBenchmark {
+    @Param({"16", "64", "256"})
+    public int maxChildren;
+
+    @Param({"8", "32"})
+    public int keySize;
+
+    @Param({"32", "256"})
+    public int valueSize;
+
+    @Param({"10000", "1000000"})
+    public int treeSize;
+
+    @Param({"sequential", "uniform", "zipfian"})
+    public String distribution;
+
+    private Workload workload;
+    private MerkleBTree tree;
+    private byte[][] values;
+    private final Random random = new Random(1);
+    private int puts;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        workload = new Workload(treeSize, keySize, distribution);
+        values = new byte[256][];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Workload.value(valueSize, random);
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(treeSize);
+        for (int i = 0; i < treeSize; i++)
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(workload.keys[i], values[i & 0xff]));
+        tree = MerkleBTree.bulkLoad(entries.iterator(), new RAMStorage(), maxChildren);
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return tree.get(workload.keys[workload.next()]);
+    }
+
+    /**
+     * Each put writes a value the key hasn't had, so it always rewrites the path rather than finding the value there.
+     */
+    @Benchmark
+    public byte[] put() throws IOException {
+        int i = workload.next();
+        byte[] value = values[i & 0xff].clone();
+        int n = ++puts;
+        for (int j = 0; j < 4; j++)
+            value[j] = (byte) (n >> 8 * j);
+        return tree.put(workload.keys[i], value);
+    }
+
+    /**
+     * Delete a key, which is put back after the invocation, outside the measurement.
+     */
+    @Benchmark
+    public byte[] delete(Deleted deleted) throws IOException {
+        int i = workload.next();
+        deleted.tree = tree;
+        deleted.key = workload.keys[i];
+        deleted.value = values[i & 0xff];
+        return tree.delete(deleted.key);
+    }
+
+    /**
+     * Delete a key and put it back, so the tree stays the same size. This measures a delete and a put together,
+     * without the per invocation overhead of delete().
+     */
+    @Benchmark
+    public byte[] deleteAndRestore() throws IOException {
+        int i = workload.next();
+        tree.delete(workload.keys[i]);
+        return tree.put(workload.keys[i], values[i & 0xff]);
+    }
+
+    @Benchmark
+    public int size() throws IOException {
+        return tree.size();
+    }
+
+    @Benchmark
+    public void rangeOf100(Blackhole blackhole) throws IOException {
+        Iterator<Map.Entry<byte[], byte[]>> range = tree.range(workload.keys[workload.next()], null);
+        for (int n = 0; n < 100 && range.hasNext(); n++)
+            blackhole.consume(range.next());
+    }
+
+    /**
+     * The key the last delete removed, kept in its own state so only delete() pays for a per invocation fixture.
+     */
+    @State(Scope.Thread)
+    public static class Deleted {
+        MerkleBTree tree;
+        byte[] key, value;
+
+        @TearDown(Level.Invocation)
+        public void restore() throws IOException {
+            tree.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package merklebtree;
+
+import java.util.*;
+
+/**
+ * Keys and the order benchmarks visit them in. Key i is i in big endian, padded to the key size, so the keys are in
+ * tree order, and a distribution picks which key each operation uses.
+ */
+class Workload {
+    // operations cycle through this many precomputed key choices
+    private static final int CHOICES = 1 << 16;
+
+    public final byte[][] keys;
+    private final int[] choices;
+    private int next;
+
+    /**
+     *
+     * @param treeSize the number of keys
+     * @param keySize the length of each key, at least 4
+     * @param distribution sequential, uniform or zipfian
+     */
+    public Workload(int treeSize, int keySize, String distribution) {
+        if (keySize < 4)
+            throw new IllegalArgumentException("Keys must be at least 4 bytes");
+        keys = new byte[treeSize][];
+        for (int i = 0; i < treeSize; i++)
+            keys[i] = key(i, keySize);
+        Random r = new Random(42);
+        choices = new int[CHOICES];
+        switch (distribution) {
+            case "sequential":
+                for (int i = 0; i < CHOICES; i++)
+                    choices[i] = i % treeSize;
+                break;
+            case "uniform":
+                for (int i = 0; i < CHOICES; i++)
+                    choices[i] = r.nextInt(treeSize);
+                break;
+            case "zipfian":
+                Zipf zipf = new Zipf(treeSize, 0.99);
+                for (int i = 0; i < CHOICES; i++)
+                    // spread the hot keys over the tree, rather than all in the first leaves
+                    choices[i] = (int) ((zipf.sample(r) * 2654435761L) % treeSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    public static byte[] key(int i, int keySize) {
+        byte[] res = new byte[keySize];
+        for (int j = 0; j < 4; j++)
+            res[keySize - 1 - j] = (byte) (i >> 8 * j);
+        return res;
+    }
+
+    public static byte[] value(int valueSize, Random r) {
+        byte[] res = new byte[valueSize];
+        r.nextBytes(res);
+        return res;
+    }
+
+    /**
+     *
+     * @return the index of the key for the next operation
+     */
+    public int next() {
+        int res = choices[next];
+        next = (next + 1) & (CHOICES - 1);
+        return res;
+    }
+
+    /**
+     * Samples ranks from 0 to n - 1, where rank k has probability proportional to 1 / (k + 1)^s.
+     */
+    private static class Zipf {
+        private final double[] cdf;
+
+        public Zipf(int n, double s) {
+            cdf = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                total += 1 / Math.pow(k + 1, s);
+                cdf[k] = total;
+            }
+            for (int k = 0; k < n; k++)
+                cdf[k] /= total;
+        }
+
+        public int sample(Random r) {
+            int index = Arrays.binarySearch(cdf, r.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, cdf.length - 1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package merklebtree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A ContentAddressedStorage whose operations complete later, so that many can be in flight at once against stores
+ * where each call is a round trip.
+ */
+public interface AsyncContentAddressedStorage {
+
+    /**
+     *
+     * @param value
+     * @return a hash of the value, once it is stored
+     */
+    CompletableFuture<byte[]> putAsync(byte[] value);
+
+    /**
+     * Store many values whose hashes the caller has already computed with hashFunction(), so the store doesn't have
+     * to hash them again.
+     *
+     * @param hashes the hash of each value
+     * @param values
+     * @return completes once every value is stored
+     */
+    default CompletableFuture<Void> putManyAsync(List<byte[]> hashes, List<byte[]> values) {
+        List<CompletableFuture<byte[]>> puts = new ArrayList<>(values.size());
+        for (byte[] value : values)
+            puts.add(putAsync(value));
+        return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     *
+     * @param key the hash of a value previously stored
+     * @return the value, or null if it isn't present
+     */
+    CompletableFuture<byte[]> getAsync(byte[] key);
+
+    /**
+     *
+     * @param key the hash of a value previously stored
+     * @return completes once the value is removed
+     */
+    CompletableFuture<Void> removeAsync(byte[] key);
+
+    /**
+     *
+     * @return the function this store hashes values with
+     */
+    default HashFunction hashFunction() {
+        return HashFunction.SHA256;
+    }
+
+    /**
+     * Run the operations of a synchronous store on an executor.
+     *
+     * @param storage
+     * @param executor
+     * @return the async view of storage
+     */
+    static AsyncContentAddressedStorage wrap(ContentAddressedStorage storage, Executor executor) {
+        return new AsyncContentAddressedStorage() {
+            @Override
+            public HashFunction hashFunction() {
+                return storage.hashFunction();
+            }
+
+            @Override
+            public CompletableFuture<byte[]> putAsync(byte[] value) {
+                return CompletableFuture.supplyAsync(() -> storage.put(value), executor);
+            }
+
+            @Override
+            public CompletableFuture<Void> putManyAsync(List<byte[]> hashes, List<byte[]> values) {
+                return CompletableFuture.runAsync(() -> storage.putMany(hashes, values), executor);
+            }
+
+            @Override
+            public CompletableFuture<byte[]> getAsync(byte[] key) {
+                return CompletableFuture.supplyAsync(() -> storage.get(key), executor);
+            }
+
+            @Override
+            public CompletableFuture<Void> removeAsync(byte[] key) {
+                return CompletableFuture.runAsync(() -> storage.remove(key), executor);
+            }
+        };
+    }
+}
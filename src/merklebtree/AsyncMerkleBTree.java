@@ -0,0 +1,222 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A tree over an AsyncContentAddressedStorage. Lookups of many keys run concurrently, so their node fetches overlap
+ * rather than each level of each lookup waiting for a round trip in turn, and concurrent fetches of the same node
+ * share one request.
+ *
+ * Puts are applied one at a time in the order they are called. The path to each key is fetched asynchronously, then
+ * the new nodes are built in memory and all stored at once. Readers may still be walking an old root, so the nodes a
+ * put replaces are never removed, and are left to compaction.
+ */
+public class AsyncMerkleBTree {
+    public final AsyncContentAddressedStorage storage;
+    public final int maxChildren;
+    private volatile TreeNode root;
+    // the last put, which the next one waits for
+    private CompletableFuture<byte[]> lastPut;
+    private final ConcurrentHashMap<ByteArrayWrapper, CompletableFuture<TreeNode>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param root a root which carries its hash
+     * @param storage
+     * @param maxChildren
+     */
+    public AsyncMerkleBTree(TreeNode root, AsyncContentAddressedStorage storage, int maxChildren) {
+        if (!root.hash.isPresent())
+            throw new IllegalArgumentException("Root must be stored!");
+        this.root = root;
+        this.storage = storage;
+        this.maxChildren = maxChildren;
+        this.lastPut = CompletableFuture.completedFuture(root.hash.get());
+    }
+
+    /**
+     *
+     * @param rootHash
+     * @param storage
+     * @param maxChildren
+     * @return the tree with the given root, once the root is read
+     */
+    public static CompletableFuture<AsyncMerkleBTree> open(byte[] rootHash, AsyncContentAddressedStorage storage, int maxChildren) {
+        return fetch(rootHash, storage).thenApply(root -> new AsyncMerkleBTree(root, storage, maxChildren));
+    }
+
+    public TreeNode root() {
+        return root;
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return value stored under rawKey, or null if it isn't present
+     */
+    public CompletableFuture<byte[]> getAsync(byte[] rawKey) {
+        return get(root, new ByteArrayWrapper(rawKey));
+    }
+
+    /**
+     * Look up many keys at once, with all their node fetches in flight together.
+     *
+     * @param rawKeys
+     * @return the value for each key in the same order, with null for those which aren't present
+     */
+    public CompletableFuture<List<byte[]>> getAllAsync(List<byte[]> rawKeys) {
+        TreeNode current = root;
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (byte[] rawKey : rawKeys)
+            results.add(get(current, new ByteArrayWrapper(rawKey)));
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(x -> {
+            List<byte[]> values = new ArrayList<>();
+            for (CompletableFuture<byte[]> result : results)
+                values.add(result.join());
+            return values;
+        });
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @param value
+     * @return hash of the new tree root, once every new node is stored
+     */
+    public synchronized CompletableFuture<byte[]> putAsync(byte[] rawKey, byte[] value) {
+        ByteArrayWrapper key = new ByteArrayWrapper(rawKey);
+        lastPut = lastPut.exceptionally(e -> null).thenCompose(x -> put(key, value));
+        return lastPut;
+    }
+
+    private CompletableFuture<byte[]> put(ByteArrayWrapper key, byte[] value) {
+        PathStorage path = new PathStorage(storage.hashFunction());
+        return fetchPath(root, key, path).thenCompose(x -> {
+            TreeNode newRoot;
+            try {
+                newRoot = root.put(key, value, path, maxChildren);
+                if (!newRoot.hash.isPresent())
+                    newRoot = newRoot.withHash(path.put(newRoot.serialize()));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            TreeNode committed = newRoot;
+            List<byte[]> hashes = new ArrayList<>(), values = new ArrayList<>();
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : path.written.entrySet()) {
+                hashes.add(e.getKey().data);
+                values.add(e.getValue());
+            }
+            return storage.putManyAsync(hashes, values).thenApply(y -> {
+                root = committed;
+                return committed.hash.get();
+            });
+        });
+    }
+
+    private CompletableFuture<byte[]> get(TreeNode node, ByteArrayWrapper key) {
+        int index = node.search(key.data);
+        if (index >= 0)
+            return CompletableFuture.completedFuture(node.values[index]);
+        if (node.isLeaf())
+            return CompletableFuture.completedFuture(null);
+        return getNode(node.children[-index - 2]).thenCompose(child -> get(child, key));
+    }
+
+    /**
+     * Read every node on the path to where key belongs into path.
+     */
+    private CompletableFuture<Void> fetchPath(TreeNode node, ByteArrayWrapper key, PathStorage path) {
+        path.nodes.put(new ByteArrayWrapper(node.hash.get()), node);
+        int index = node.search(key.data);
+        if (index >= 0 || node.isLeaf())
+            return CompletableFuture.completedFuture(null);
+        return getNode(node.children[-index - 2]).thenCompose(child -> fetchPath(child, key, path));
+    }
+
+    /**
+     * Fetch a node, sharing the request with any other fetch of it already in flight.
+     */
+    private CompletableFuture<TreeNode> getNode(byte[] hash) {
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        CompletableFuture<TreeNode> existing = inFlight.get(key);
+        if (existing != null)
+            return existing;
+        CompletableFuture<TreeNode> res = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(key, res);
+        if (existing != null)
+            return existing;
+        fetch(hash, storage).whenComplete((node, e) -> {
+            inFlight.remove(key, res);
+            if (e != null)
+                res.completeExceptionally(e);
+            else
+                res.complete(node);
+        });
+        return res;
+    }
+
+    private static CompletableFuture<TreeNode> fetch(byte[] hash, AsyncContentAddressedStorage storage) {
+        return storage.getAsync(hash).thenApply(raw -> {
+            if (raw == null)
+                throw new CompletionException(new IOException("Missing node " + ByteArrayWrapper.bytesToHex(hash)));
+            try {
+                return TreeNode.deserialize(raw, Optional.of(hash));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * The nodes on the path a put will rewrite, and the new nodes it writes, which are hashed here with the store's
+     * hash function so the put can finish in memory, and handed to the store with their hashes. Removes are ignored.
+     */
+    private static class PathStorage implements ContentAddressedStorage {
+        public final Map<ByteArrayWrapper, TreeNode> nodes = new HashMap<>();
+        public final Map<ByteArrayWrapper, byte[]> written = new LinkedHashMap<>();
+        private final HashFunction hashFunction;
+
+        public PathStorage(HashFunction hashFunction) {
+            this.hashFunction = hashFunction;
+        }
+
+        @Override
+        public HashFunction hashFunction() {
+            return hashFunction;
+        }
+
+        @Override
+        public byte[] put(byte[] value) {
+            byte[] hash = hashFunction.hash(value);
+            written.put(new ByteArrayWrapper(hash), value);
+            return hash;
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            return getNodeOrThrow(key).serialize();
+        }
+
+        @Override
+        public TreeNode getNode(byte[] key) {
+            return getNodeOrThrow(key);
+        }
+
+        @Override
+        public TreeNode getNode(byte[] key, TreeListener listener) {
+            return getNodeOrThrow(key);
+        }
+
+        @Override
+        public void remove(byte[] key) {}
+
+        private TreeNode getNodeOrThrow(byte[] key) {
+            TreeNode node = nodes.get(new ByteArrayWrapper(key));
+            if (node == null)
+                throw new IllegalStateException("Node isn't on the path being written: " + ByteArrayWrapper.bytesToHex(key));
+            return node;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Applies many changes to a tree in memory before writing anything. Nodes are loaded from storage the first time a
+ * change reaches them, modified in place using the same split, rotate and merge rules as TreeNode, and each modified
+ * node is serialized, hashed and stored exactly once by commit.
+ */
+class BatchUpdate {
+    private static final ByteArrayWrapper ZERO = new ByteArrayWrapper(new byte[0]);
+
+    private final ContentAddressedStorage storage;
+    private final int maxChildren;
+    private final TreeListener listener;
+    private final List<byte[]> superseded = new ArrayList<>();
+    private Node root;
+
+    public BatchUpdate(TreeNode root, ContentAddressedStorage storage, int maxChildren, TreeListener listener) {
+        this.storage = storage;
+        this.maxChildren = maxChildren;
+        this.listener = listener;
+        this.root = new Node(root.hash, root.subtreeSize());
+        this.root.load(root);
+    }
+
+    public void put(ByteArrayWrapper key, byte[] value) throws IOException {
+        Optional<Split> split = put(root, key, value);
+        if (split.isPresent()) {
+            Node newRoot = new Node(Optional.empty(), -1);
+            newRoot.add(ZERO, new byte[0], root);
+            newRoot.add(split.get().key, split.get().value, split.get().right);
+            root = newRoot;
+        }
+    }
+
+    public void delete(ByteArrayWrapper key) throws IOException {
+        delete(root, key);
+    }
+
+    /**
+     * Write every modified node to storage, then remove the nodes they replace.
+     *
+     * @return the new root, carrying its hash
+     */
+    public TreeNode commit() throws IOException {
+        // a root with a single child is redundant
+        while (root.keys.size() == 1 && root.children.get(0) != null) {
+            Node child = root.children.get(0);
+            child.load();
+            supersede(root);
+            root = child;
+        }
+        Set<ByteArrayWrapper> written = new HashSet<>();
+        TreeNode newRoot = root.dirty ? commit(root, written) : storage.getNode(root.hash.get());
+        for (byte[] hash : superseded)
+            if (!written.contains(new ByteArrayWrapper(hash)))
+                storage.remove(hash);
+        return newRoot;
+    }
+
+    private TreeNode commit(Node node, Set<ByteArrayWrapper> written) {
+        int n = node.keys.size();
+        byte[][] keys = new byte[n][], children = new byte[n][];
+        long[] counts = new long[n];
+        for (int i=0; i < n; i++) {
+            keys[i] = node.keys.get(i).data;
+            Node child = node.children.get(i);
+            if (child == null) {
+                children[i] = new byte[0];
+            } else if (child.dirty) {
+                TreeNode committed = commit(child, written);
+                children[i] = committed.hash.get();
+                counts[i] = committed.subtreeSize();
+            } else {
+                children[i] = child.hash.get();
+                counts[i] = child.size;
+            }
+        }
+        TreeNode result = new TreeNode(keys, node.values.toArray(new byte[n][]), children, counts, Optional.empty());
+        byte[] hash = storage.put(result.serialize());
+        written.add(new ByteArrayWrapper(hash));
+        supersede(node);
+        return result.withHash(hash);
+    }
+
+    private void supersede(Node node) {
+        if (node.hash.isPresent())
+            superseded.add(node.hash.get());
+    }
+
+    private Optional<Split> put(Node node, ByteArrayWrapper key, byte[] value) throws IOException {
+        node.load();
+        int i = node.floor(key);
+        if (node.keys.get(i).equals(key)) {
+            // an overwrite with the same value leaves the node clean, so it isn't stored again
+            if (!Arrays.equals(node.values.get(i), value)) {
+                node.values.set(i, value);
+                node.dirty = true;
+            }
+            return Optional.empty();
+        }
+        if (node.isLeaf())
+            node.insert(i + 1, key, value, null);
+        else {
+            Node child = node.children.get(i);
+            Optional<Split> split = put(child, key, value);
+            node.dirty |= child.dirty;
+            if (!split.isPresent())
+                return Optional.empty();
+            node.insert(i + 1, split.get().key, split.get().value, split.get().right);
+        }
+        node.dirty = true;
+        if (node.keys.size() <= maxChildren)
+            return Optional.empty();
+
+        // split into two at the median, which moves up to the parent
+        listener.split();
+        int median = node.keys.size() / 2;
+        Node right = new Node(Optional.empty(), -1);
+        right.add(ZERO, new byte[0], node.children.get(median));
+        for (int j = median + 1; j < node.keys.size(); j++)
+            right.add(node.keys.get(j), node.values.get(j), node.children.get(j));
+        Split split = new Split(node.keys.get(median), node.values.get(median), right);
+        node.truncate(median);
+        return Optional.of(split);
+    }
+
+    private boolean delete(Node node, ByteArrayWrapper key) throws IOException {
+        node.load();
+        int i = node.floor(key);
+        if (i > 0 && node.keys.get(i).equals(key)) {
+            node.dirty = true;
+            if (node.isLeaf()) {
+                node.remove(i);
+                return true;
+            }
+            // promote the smallest key of the subtree to our right to be the separator here
+            Node child = node.children.get(i);
+            Node leaf = child;
+            while (true) {
+                leaf.load();
+                if (leaf.isLeaf())
+                    break;
+                leaf = leaf.children.get(0);
+            }
+            ByteArrayWrapper smallest = leaf.keys.get(1);
+            byte[] value = leaf.values.get(1);
+            delete(child, smallest);
+            node.keys.set(i, smallest);
+            node.values.set(i, value);
+            if (child.keys.size() < maxChildren / 2)
+                rebalance(node, i);
+            return true;
+        }
+        if (node.isLeaf())
+            return false;
+        Node child = node.children.get(i);
+        if (!delete(child, key))
+            return false;
+        node.dirty = true;
+        if (child.keys.size() < maxChildren / 2)
+            rebalance(node, i);
+        return true;
+    }
+
+    private void rebalance(Node parent, int i) throws IOException {
+        Node child = parent.children.get(i);
+        Node left = i > 0 ? parent.children.get(i - 1) : null;
+        Node right = i + 1 < parent.keys.size() ? parent.children.get(i + 1) : null;
+        if (left == null && right == null)
+            return; // only child of the root, which commit will remove
+        if (left != null)
+            left.load();
+        if (right != null)
+            right.load();
+        if (right != null && right.keys.size() > maxChildren / 2) {
+            // rotate left
+            listener.rotate();
+            child.add(parent.keys.get(i + 1), parent.values.get(i + 1), right.children.get(0));
+            parent.keys.set(i + 1, right.keys.get(1));
+            parent.values.set(i + 1, right.values.get(1));
+            right.children.set(0, right.children.get(1));
+            right.remove(1);
+            right.dirty = true;
+        } else if (left != null && left.keys.size() > maxChildren / 2) {
+            // rotate right
+            listener.rotate();
+            int last = left.keys.size() - 1;
+            child.insert(1, parent.keys.get(i), parent.values.get(i), child.children.get(0));
+            child.children.set(0, left.children.get(last));
+            parent.keys.set(i, left.keys.get(last));
+            parent.values.set(i, left.values.get(last));
+            left.remove(last);
+            left.dirty = true;
+        } else if (right != null) {
+            // merge with right sibling and separator
+            listener.merge();
+            child.merge(parent.keys.get(i + 1), parent.values.get(i + 1), right);
+            parent.remove(i + 1);
+            supersede(right);
+        } else {
+            // merge with left sibling and separator
+            listener.merge();
+            left.merge(parent.keys.get(i), parent.values.get(i), child);
+            left.dirty = true;
+            parent.remove(i);
+            supersede(child);
+        }
+        child.dirty = true;
+    }
+
+    private static class Split {
+        public final ByteArrayWrapper key;
+        public final byte[] value;
+        public final Node right;
+
+        public Split(ByteArrayWrapper key, byte[] value, Node right) {
+            this.key = key;
+            this.value = value;
+            this.right = right;
+        }
+    }
+
+    /**
+     * A node held in memory as parallel lists, with the empty key at index 0. Child entries are null in a leaf.
+     */
+    private class Node {
+        public final Optional<byte[]> hash;
+        // the number of keys under the stored node, or -1 if unknown, which is only used while it is unmodified
+        public final long size;
+        public final List<ByteArrayWrapper> keys = new ArrayList<>();
+        public final List<byte[]> values = new ArrayList<>();
+        public final List<Node> children = new ArrayList<>();
+        public boolean loaded, dirty;
+
+        public Node(Optional<byte[]> hash, long size) {
+            this.hash = hash;
+            this.size = size;
+            this.loaded = !hash.isPresent();
+            this.dirty = !hash.isPresent();
+        }
+
+        public void load() throws IOException {
+            if (!loaded)
+                load(storage.getNode(hash.get()));
+        }
+
+        public void load(TreeNode node) {
+            for (int i=0; i < node.keys.length; i++)
+                add(new ByteArrayWrapper(node.keys[i]), node.values[i], node.isLeaf() ? null : new Node(Optional.of(node.children[i]), node.counts[i]));
+            loaded = true;
+        }
+
+        public boolean isLeaf() {
+            return children.get(0) == null;
+        }
+
+        /**
+         *
+         * @return the index of the largest key less than or equal to key
+         */
+        public int floor(ByteArrayWrapper key) {
+            int low = 0, high = keys.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (keys.get(mid).compareTo(key) <= 0)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+            return low;
+        }
+
+        public void add(ByteArrayWrapper key, byte[] value, Node child) {
+            insert(keys.size(), key, value, child);
+        }
+
+        public void insert(int index, ByteArrayWrapper key, byte[] value, Node child) {
+            keys.add(index, key);
+            values.add(index, value);
+            children.add(index, child);
+        }
+
+        public void remove(int index) {
+            keys.remove(index);
+            values.remove(index);
+            children.remove(index);
+        }
+
+        public void truncate(int size) {
+            keys.subList(size, keys.size()).clear();
+            values.subList(size, values.size()).clear();
+            children.subList(size, children.size()).clear();
+        }
+
+        /**
+         * Append a separator and all the keys of a right sibling to this node.
+         */
+        public void merge(ByteArrayWrapper separator, byte[] value, Node right) {
+            add(separator, value, right.children.get(0));
+            for (int j = 1; j < right.keys.size(); j++)
+                add(right.keys.get(j), right.values.get(j), right.children.get(j));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A sorted in-memory buffer of writes in front of a tree. Writes and deletes only change the buffer, so a key written
+ * many times costs one path rewrite when the buffer is flushed rather than one per write. A flush applies the whole
+ * buffer to the tree as one batch, giving one new root, once the buffer holds maxBuffered keys, periodically, and on
+ * commit(). Reads see the buffer over the tree. A flush in the background which fails is reported by the next write or
+ * commit, and its writes stay buffered for the next flush, including the one on close.
+ */
+public class BufferedMerkleBTree implements Closeable {
+    public final MerkleBTree tree;
+    private final int maxBuffered;
+    private final ScheduledExecutorService flusher;
+    // held by a flush until the tree has its changes
+    private final Object flushLock = new Object();
+    private final PendingWrites buffer = new PendingWrites();
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     *
+     * @param tree the tree to flush to
+     * @param maxBuffered the number of keys in the buffer which triggers a flush
+     * @param flushMillis the time between periodic flushes, or 0 for none
+     */
+    public BufferedMerkleBTree(MerkleBTree tree, int maxBuffered, long flushMillis) {
+        if (maxBuffered < 1)
+            throw new IllegalArgumentException("maxBuffered must be at least 1");
+        this.tree = tree;
+        this.maxBuffered = maxBuffered;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "buffer-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        if (flushMillis > 0)
+            flusher.scheduleWithFixedDelay(this::flushInBackground, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return value of rawKey, including buffered writes
+     * @throws IOException
+     */
+    public byte[] get(byte[] rawKey) throws IOException {
+        Optional<byte[]> value = buffer.get(new ByteArrayWrapper(rawKey));
+        if (value != null)
+            return value.orElse(null);
+        return tree.get(rawKey);
+    }
+
+    public void put(byte[] rawKey, byte[] value) throws IOException {
+        write(new ByteArrayWrapper(rawKey), Optional.of(value));
+    }
+
+    public void delete(byte[] rawKey) throws IOException {
+        write(new ByteArrayWrapper(rawKey), Optional.empty());
+    }
+
+    /**
+     *
+     * @return the number of keys written since the last flush
+     */
+    public int buffered() {
+        return buffer.pending();
+    }
+
+    /**
+     * Flush the buffer into the tree.
+     *
+     * @return hash of the new tree root
+     * @throws IOException if this or an earlier flush in the background failed
+     */
+    public byte[] commit() throws IOException {
+        throwFailure();
+        return flush();
+    }
+
+    /**
+     * Iterate over a range of keys, with the buffered writes as they are now over the tree as it is now.
+     *
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @return the keys and values in the range in ascending key order
+     * @throws IOException
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) throws IOException {
+        return buffer.range(tree, from, to);
+    }
+
+    /**
+     * Stop flushing in the background, and flush everything buffered, including the writes of an earlier flush which
+     * failed. If this flush fails too, the tree stays open with its writes buffered, and close can be called again.
+     *
+     * @throws IOException if the final flush failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // the flush retries the writes of any earlier failure, so it no longer needs reporting
+            synchronized (this) {
+                failure = null;
+            }
+            flush();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                closed = false;
+            }
+            throw e;
+        }
+    }
+
+    private byte[] flush() throws IOException {
+        synchronized (flushLock) {
+            if (buffer.isEmpty())
+                return tree.root.hash.get();
+            byte[] root = tree.apply(buffer.take());
+            buffer.applied();
+            return root;
+        }
+    }
+
+    private void write(ByteArrayWrapper key, Optional<byte[]> value) throws IOException {
+        throwFailure();
+        boolean full;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Tree is closed!");
+            full = buffer.put(key, value) >= maxBuffered;
+        }
+        // the writer which fills the buffer flushes it, which holds back other writers until the tree catches up
+        if (full)
+            flush();
+    }
+
+    /**
+     * Report a failed flush in the background, once.
+     */
+    private synchronized void throwFailure() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null)
+            throw new IOException("Flush failed", e);
+    }
+
+    private void flushInBackground() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            // stores report write failures unchecked, which would also cancel the periodic flush
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Builds a tree bottom up from keys arriving in sorted order. Only the rightmost node of each level is held in
+ * memory, every other node is written as soon as it is full. This gives a canonical shape for a given input and
+ * maxChildren: every node is full except the last two nodes of each level, which share their keys evenly.
+ */
+class BulkLoader {
+    private static final ByteArrayWrapper ZERO = new ByteArrayWrapper(new byte[0]);
+
+    private final ContentAddressedStorage storage;
+    private final int maxChildren;
+    // the rightmost node of each level, leaves first. The last child of each inner one is the level below.
+    private final List<Level> spine = new ArrayList<>();
+    private ByteArrayWrapper last = ZERO;
+
+    public BulkLoader(ContentAddressedStorage storage, int maxChildren) {
+        if (maxChildren < 4)
+            throw new IllegalArgumentException("maxChildren must be at least 4");
+        this.storage = storage;
+        this.maxChildren = maxChildren;
+        spine.add(new Level(new byte[0], 0));
+    }
+
+    public void add(ByteArrayWrapper key, byte[] value) {
+        if (key.compareTo(last) <= 0)
+            throw new IllegalArgumentException("Keys must be unique and in ascending order!");
+        last = key;
+        add(0, key, value);
+    }
+
+    private void add(int level, ByteArrayWrapper key, byte[] value) {
+        Level node = spine.get(level);
+        if (node.keys.size() < maxChildren) {
+            node.add(key, value, level == 0 ? new byte[0] : null, 0);
+            return;
+        }
+        // this node is full, so the new key becomes the separator to the right of it in our parent
+        TreeNode full = node.toTreeNode();
+        byte[] hash = storage.put(full.serialize());
+        if (level + 1 == spine.size())
+            spine.add(new Level(hash, full.subtreeSize()));
+        else
+            spine.get(level + 1).setLastChild(hash, full.subtreeSize());
+        spine.set(level, new Level(level == 0 ? new byte[0] : null, 0));
+        add(level + 1, key, value);
+    }
+
+    /**
+     * Even out the right edge of the tree and write the remaining nodes except the root.
+     *
+     * @return the root of the tree, which has not been stored
+     */
+    public TreeNode finish() throws IOException {
+        int top = spine.size() - 1;
+        for (int level = top - 1; level >= 0; level--) {
+            Level node = spine.get(level);
+            if (node.keys.size() >= maxChildren / 2)
+                continue;
+            // merge with the left sibling, which is full, and split evenly
+            Level parent = spine.get(level + 1);
+            int sep = parent.keys.size() - 1;
+            Level merged = new Level(storage.getNode(parent.children.get(sep - 1)));
+            merged.add(parent.keys.get(sep), parent.values.get(sep), node.children.get(0), node.counts.get(0));
+            for (int i = 1; i < node.keys.size(); i++)
+                merged.add(node.keys.get(i), node.values.get(i), node.children.get(i), node.counts.get(i));
+            storage.remove(parent.children.get(sep - 1));
+
+            int median = merged.keys.size() / 2;
+            Level right = new Level(merged.children.get(median), merged.counts.get(median));
+            for (int i = median + 1; i < merged.keys.size(); i++)
+                right.add(merged.keys.get(i), merged.values.get(i), merged.children.get(i), merged.counts.get(i));
+            parent.keys.set(sep, merged.keys.get(median));
+            parent.values.set(sep, merged.values.get(median));
+            merged.truncate(median);
+            TreeNode left = merged.toTreeNode();
+            parent.children.set(sep - 1, storage.put(left.serialize()));
+            parent.counts.set(sep - 1, left.subtreeSize());
+            spine.set(level, right);
+        }
+        for (int level = 0; level < top; level++) {
+            TreeNode node = spine.get(level).toTreeNode();
+            spine.get(level + 1).setLastChild(storage.put(node.serialize()), node.subtreeSize());
+        }
+        return spine.get(top).toTreeNode();
+    }
+
+    /**
+     * The rightmost node of a level as parallel lists, with the empty key at index 0. A null child is the rightmost
+     * node of the level below, which hasn't been written yet, and its count is set along with it.
+     */
+    private static class Level {
+        public final List<ByteArrayWrapper> keys = new ArrayList<>();
+        public final List<byte[]> values = new ArrayList<>();
+        public final List<byte[]> children = new ArrayList<>();
+        public final List<Long> counts = new ArrayList<>();
+
+        public Level(byte[] leftChildHash, long leftCount) {
+            add(ZERO, new byte[0], leftChildHash, leftCount);
+        }
+
+        public Level(TreeNode node) {
+            for (int i=0; i < node.keys.length; i++)
+                add(new ByteArrayWrapper(node.keys[i]), node.values[i], node.children[i], node.counts[i]);
+        }
+
+        public void add(ByteArrayWrapper key, byte[] value, byte[] childHash, long count) {
+            keys.add(key);
+            values.add(value);
+            children.add(childHash);
+            counts.add(count);
+        }
+
+        public void setLastChild(byte[] hash, long count) {
+            children.set(children.size() - 1, hash);
+            counts.set(counts.size() - 1, count);
+        }
+
+        public void truncate(int size) {
+            keys.subList(size, keys.size()).clear();
+            values.subList(size, values.size()).clear();
+            children.subList(size, children.size()).clear();
+            counts.subList(size, counts.size()).clear();
+        }
+
+        public TreeNode toTreeNode() {
+            int n = keys.size();
+            byte[][] rawKeys = new byte[n][];
+            long[] rawCounts = new long[n];
+            for (int i=0; i < n; i++) {
+                rawKeys[i] = keys.get(i).data;
+                rawCounts[i] = counts.get(i);
+            }
+            return new TreeNode(rawKeys, values.toArray(new byte[n][]), children.toArray(new byte[n][]), rawCounts, Optional.empty());
+        }
+    }
+}
@@ -36,13 +36,20 @@ public class ByteArrayWrapper implements Comparable<ByteArrayWrapper>
 
     @Override
     public int compareTo(ByteArrayWrapper o) {
-        if (data.length < o.data.length)
+        return compare(data, o.data);
+    }
+
+    /**
+     * Order arrays by length first, then by unsigned byte values.
+     */
+    public static int compare(byte[] a, byte[] b) {
+        if (a.length < b.length)
             return -1;
-        if (data.length > o.data.length)
+        if (a.length > b.length)
             return 1;
-        for (int i=0; i < data.length; i++)
-            if (data[i] != o.data[i])
-                return (0xff & data[i]) - (0xff & o.data[i]);
+        for (int i=0; i < a.length; i++)
+            if (a[i] != b[i])
+                return (0xff & a[i]) - (0xff & b[i]);
         return 0;
     }
 
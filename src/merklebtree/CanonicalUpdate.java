@@ -0,0 +1,240 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Updates a tree whose shape depends only on the keys it holds, so the same contents always give the same root hash
+ * however they were written. Every key has a level, the number of times the hash of the key is divisible by the
+ * fanout, so a key has level at least l with probability fanout^-l. A subtree whose keys all have level 0 is a leaf.
+ * Any other subtree is a node holding its keys of the highest level, with the subtrees between them as children,
+ * where an empty subtree is an empty leaf. This is the shape of a Merkle search tree.
+ *
+ * Identical subtrees, like empty leaves, can appear in more than one place, so the nodes replaced here must not be
+ * removed from a store unless it counts references. Every operation returns a stored node.
+ */
+class CanonicalUpdate {
+    private static final byte[] EMPTY = new byte[0];
+    // only a key whose hash starts with 8 zero bytes gets this far
+    private static final int MAX_LEVEL = 64;
+
+    private final ContentAddressedStorage storage;
+    private final int fanout;
+    private final TreeListener listener;
+
+    public CanonicalUpdate(ContentAddressedStorage storage, int fanout, TreeListener listener) {
+        if (fanout < 2)
+            throw new IllegalArgumentException("Fanout must be at least 2!");
+        this.storage = storage;
+        this.fanout = fanout;
+        this.listener = listener;
+    }
+
+    /**
+     *
+     * @param key
+     * @param hashFunction
+     * @param fanout
+     * @return the number of times the first 8 bytes of the key's digest are divisible by fanout
+     */
+    public static int level(byte[] key, HashFunction hashFunction, int fanout) {
+        byte[] hash = hashFunction.hash(key);
+        int offset = HashFunction.digestOffset(hash);
+        long h = 0;
+        for (int i=0; i < 8; i++)
+            h = (h << 8) | (hash[offset + i] & 0xff);
+        int level = 0;
+        while (level < MAX_LEVEL && Long.remainderUnsigned(h, fanout) == 0) {
+            h = Long.divideUnsigned(h, fanout);
+            level++;
+        }
+        return level;
+    }
+
+    public TreeNode put(TreeNode root, ByteArrayWrapper key, byte[] value) throws IOException {
+        if (key.data.length == 0)
+            throw new IllegalArgumentException("The empty key is reserved!");
+        return put(root, key, level(key.data), value);
+    }
+
+    public TreeNode delete(TreeNode root, ByteArrayWrapper key) throws IOException {
+        if (key.data.length == 0)
+            return root;
+        return delete(root, key, level(key.data));
+    }
+
+    private TreeNode put(TreeNode node, ByteArrayWrapper key, int level, byte[] value) throws IOException {
+        int index = node.search(key.data);
+        if (index > 0) {
+            // an overwrite with the same value changes nothing, so nothing is stored again
+            if (Arrays.equals(node.values[index], value))
+                return node;
+            return replace(node, withElement(node, index, value, node.children[index], node.counts[index]));
+        }
+        int floor = -index - 2;
+        if (level == 0 && node.isLeaf())
+            return replace(node, new Builder().addAll(node, 0, floor + 1).add(key.data, value, EMPTY, 0)
+                    .addAll(node, floor + 1, node.keys.length).build());
+        int layer = layer(node);
+        if (level > layer) {
+            // the key is the only one of its level in this subtree, so it splits the whole subtree in two
+            TreeNode[] halves = split(node, key);
+            return store(new Builder().add(EMPTY, EMPTY, halves[0]).add(key.data, value, halves[1]).build());
+        }
+        TreeNode child = storage.getNode(node.children[floor]);
+        if (level == layer) {
+            TreeNode[] halves = split(child, key);
+            return replace(node, new Builder().addAll(node, 0, floor).add(node.keys[floor], node.values[floor], halves[0])
+                    .add(key.data, value, halves[1]).addAll(node, floor + 1, node.keys.length).build());
+        }
+        TreeNode modifiedChild = put(child, key, level, value);
+        if (Arrays.equals(modifiedChild.hash.get(), node.children[floor]))
+            return node;
+        return replace(node, withChild(node, floor, modifiedChild));
+    }
+
+    private TreeNode delete(TreeNode node, ByteArrayWrapper key, int level) throws IOException {
+        int index = node.search(key.data);
+        if (index > 0) {
+            if (node.isLeaf())
+                return replace(node, new Builder().addAll(node, 0, index).addAll(node, index + 1, node.keys.length).build());
+            // the subtrees either side of the key become one
+            TreeNode merged = merge(storage.getNode(node.children[index - 1]), storage.getNode(node.children[index]));
+            storage.remove(node.hash.get());
+            if (node.keys.length == 2)
+                // that was the only key of its level, so the subtree is what is left below it
+                return merged;
+            return store(new Builder().addAll(node, 0, index - 1).add(node.keys[index - 1], node.values[index - 1], merged)
+                    .addAll(node, index + 1, node.keys.length).build());
+        }
+        // a key of the same level as ours would be here, and a higher one above us
+        if (node.isLeaf() || level >= layer(node))
+            return node;
+        int floor = -index - 2;
+        TreeNode child = storage.getNode(node.children[floor]);
+        TreeNode newChild = delete(child, key, level);
+        if (newChild == child)
+            return node;
+        return replace(node, withChild(node, floor, newChild));
+    }
+
+    /**
+     *
+     * @param node a subtree which doesn't contain key
+     * @return the subtrees of the keys in node less than key and greater than key
+     */
+    private TreeNode[] split(TreeNode node, ByteArrayWrapper key) throws IOException {
+        listener.split();
+        int floor = -node.search(key.data) - 2;
+        storage.remove(node.hash.get());
+        if (node.isLeaf())
+            return new TreeNode[]{
+                    store(new Builder().addAll(node, 0, floor + 1).build()),
+                    store(new Builder().add(EMPTY, EMPTY, EMPTY, 0).addAll(node, floor + 1, node.keys.length).build())};
+        TreeNode[] halves = split(storage.getNode(node.children[floor]), key);
+        // a side with none of our keys is just the half of the child
+        TreeNode left = floor == 0 ? halves[0] :
+                store(new Builder().addAll(node, 0, floor).add(node.keys[floor], node.values[floor], halves[0]).build());
+        TreeNode right = floor == node.keys.length - 1 ? halves[1] :
+                store(new Builder().add(EMPTY, EMPTY, halves[1]).addAll(node, floor + 1, node.keys.length).build());
+        return new TreeNode[]{left, right};
+    }
+
+    /**
+     *
+     * @param left a subtree whose keys are all less than those of right
+     * @param right
+     * @return the subtree of the keys of both
+     */
+    private TreeNode merge(TreeNode left, TreeNode right) throws IOException {
+        int leftLayer = layer(left), rightLayer = layer(right);
+        if (leftLayer < 0 || rightLayer < 0) {
+            storage.remove((leftLayer < 0 ? left : right).hash.get());
+            return leftLayer < 0 ? right : left;
+        }
+        listener.merge();
+        storage.remove(left.hash.get());
+        storage.remove(right.hash.get());
+        if (leftLayer == 0 && rightLayer == 0)
+            return store(new Builder().addAll(left, 0, left.keys.length).addAll(right, 1, right.keys.length).build());
+        int last = left.keys.length - 1;
+        if (leftLayer > rightLayer) {
+            TreeNode merged = merge(storage.getNode(left.children[last]), right);
+            return store(new Builder().addAll(left, 0, last).add(left.keys[last], left.values[last], merged).build());
+        }
+        if (rightLayer > leftLayer) {
+            TreeNode merged = merge(left, storage.getNode(right.children[0]));
+            return store(new Builder().add(EMPTY, EMPTY, merged).addAll(right, 1, right.keys.length).build());
+        }
+        TreeNode merged = merge(storage.getNode(left.children[last]), storage.getNode(right.children[0]));
+        return store(new Builder().addAll(left, 0, last).add(left.keys[last], left.values[last], merged)
+                .addAll(right, 1, right.keys.length).build());
+    }
+
+    /**
+     *
+     * @return the level of the keys in node, or -1 if it is an empty leaf
+     */
+    private int layer(TreeNode node) {
+        if (node.keys.length == 1)
+            return -1;
+        return node.isLeaf() ? 0 : level(node.keys[1]);
+    }
+
+    private int level(byte[] key) {
+        listener.hashed(key.length);
+        return level(key, storage.hashFunction(), fanout);
+    }
+
+    private TreeNode store(TreeNode node) {
+        return node.withHash(storage.put(node.serialize()));
+    }
+
+    private TreeNode replace(TreeNode old, TreeNode modified) {
+        TreeNode stored = store(modified);
+        if (!Arrays.equals(stored.hash.get(), old.hash.get()))
+            storage.remove(old.hash.get());
+        return stored;
+    }
+
+    private static TreeNode withChild(TreeNode node, int index, TreeNode child) {
+        return withElement(node, index, node.values[index], child.hash.get(), child.subtreeSize());
+    }
+
+    private static TreeNode withElement(TreeNode node, int index, byte[] value, byte[] child, long count) {
+        return new Builder().addAll(node, 0, index).add(node.keys[index], value, child, count)
+                .addAll(node, index + 1, node.keys.length).build();
+    }
+
+    private static class Builder {
+        private final List<byte[]> keys = new ArrayList<>(), values = new ArrayList<>(), children = new ArrayList<>();
+        private final List<Long> counts = new ArrayList<>();
+
+        public Builder add(byte[] key, byte[] value, byte[] child, long count) {
+            keys.add(key);
+            values.add(value);
+            children.add(child);
+            counts.add(count);
+            return this;
+        }
+
+        public Builder add(byte[] key, byte[] value, TreeNode child) {
+            return add(key, value, child.hash.get(), child.subtreeSize());
+        }
+
+        public Builder addAll(TreeNode node, int from, int to) {
+            for (int i = from; i < to; i++)
+                add(node.keys[i], node.values[i], node.children[i], node.counts[i]);
+            return this;
+        }
+
+        public TreeNode build() {
+            int n = keys.size();
+            long[] res = new long[n];
+            for (int i=0; i < n; i++)
+                res[i] = counts.get(i);
+            return new TreeNode(keys.toArray(new byte[n][]), values.toArray(new byte[n][]), children.toArray(new byte[n][]),
+                    res, Optional.empty());
+        }
+    }
+}
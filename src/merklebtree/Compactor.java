@@ -0,0 +1,93 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Compacts a FileStorage on a background thread, with a fixed delay between passes. See FileStorage.compact for how
+ * the live roots are found.
+ */
+public class Compactor implements Closeable {
+    private final FileStorage storage;
+    private final Supplier<Collection<byte[]>> roots;
+    private final long maxBytesPerSecond;
+    private final ScheduledExecutorService executor;
+    // held for the duration of each pass
+    private final Object pass = new Object();
+    private long reclaimed;
+    private IOException failure;
+
+    /**
+     *
+     * @param storage
+     * @param roots the hashes of the roots of every tree to keep
+     * @param maxBytesPerSecond a limit on the rate at which compaction reads and copies blocks, or 0 for no limit
+     * @param delayMillis the time between the end of one pass and the start of the next
+     */
+    public Compactor(FileStorage storage, Supplier<Collection<byte[]>> roots, long maxBytesPerSecond, long delayMillis) {
+        this.storage = storage;
+        this.roots = roots;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (InterruptedIOException e) {
+                // we're being closed
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+            }
+        }, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a pass now, on the calling thread, waiting for any pass in the background to finish first.
+     *
+     * @return the number of bytes reclaimed
+     * @throws IOException
+     */
+    public long compact() throws IOException {
+        synchronized (pass) {
+            long res = storage.compact(roots, maxBytesPerSecond);
+            synchronized (this) {
+                reclaimed += res;
+            }
+            return res;
+        }
+    }
+
+    /**
+     *
+     * @return the total number of bytes reclaimed so far
+     */
+    public synchronized long reclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * Stop compacting, interrupting any pass in progress.
+     *
+     * @throws IOException if a background pass failed
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A tree which many threads can read and write at once. Nodes are never modified, so readers just take the current
+ * root and never wait. Writes are queued for a single writer thread, which applies every write waiting in the queue
+ * as one batch and publishes the new root, so each node on the modified paths is written once per batch rather than
+ * once per write.
+ *
+ * Readers may still be walking an old root, so the nodes replaced by a write are never removed, and are left to
+ * compaction. If the writer dies of an Error, every queued write fails, and so does every later one.
+ */
+public class ConcurrentMerkleBTree implements Closeable {
+    // queued by close, after which the writer stops
+    private static final Write STOP = new Write(null, Optional.empty());
+
+    public final ContentAddressedStorage storage;
+    public final int maxChildren;
+    private final int maxBatch;
+    private final AtomicReference<TreeNode> root;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    // what killed the writer, if anything did
+    private volatile Throwable failure;
+
+    /**
+     *
+     * @param rootHash the hash of the root to start from
+     * @param storage
+     * @param maxChildren
+     * @param maxBatch the maximum number of writes to apply in one batch
+     * @throws IOException
+     */
+    public ConcurrentMerkleBTree(byte[] rootHash, ContentAddressedStorage storage, int maxChildren, int maxBatch) throws IOException {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        this.storage = storage;
+        this.maxChildren = maxChildren;
+        this.maxBatch = maxBatch;
+        this.root = new AtomicReference<>(storage.getNode(rootHash));
+        this.writer = new Thread(this::writeLoop, "tree-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return value stored under rawKey in the latest root
+     * @throws IOException
+     */
+    public byte[] get(byte[] rawKey) throws IOException {
+        return root.get().get(new ByteArrayWrapper(rawKey), storage);
+    }
+
+    /**
+     *
+     * @return the latest root
+     */
+    public TreeNode root() {
+        return root.get();
+    }
+
+    /**
+     * A consistent read-only view of the tree as it is now, which is unaffected by later writes.
+     *
+     * @return the snapshot
+     */
+    public MerkleBTree snapshot() {
+        return new MerkleBTree(root.get(), storage, maxChildren, true);
+    }
+
+    /**
+     * Wait until the put has been applied.
+     *
+     * @param rawKey
+     * @param value
+     * @return hash of the first root which includes the put
+     * @throws IOException
+     */
+    public byte[] put(byte[] rawKey, byte[] value) throws IOException {
+        return await(submit(rawKey, Optional.of(value)));
+    }
+
+    /**
+     * Wait until the delete has been applied.
+     *
+     * @param rawKey
+     * @return hash of the first root which includes the delete
+     * @throws IOException
+     */
+    public byte[] delete(byte[] rawKey) throws IOException {
+        return await(submit(rawKey, Optional.empty()));
+    }
+
+    /**
+     * Queue a write without waiting for it. Writes from one thread are applied in the order they are submitted.
+     *
+     * @param rawKey
+     * @param value the new value, or empty to delete the key
+     * @return the hash of the first root which includes the write, once it has been applied
+     */
+    public CompletableFuture<byte[]> submit(byte[] rawKey, Optional<byte[]> value) {
+        Write write = new Write(new ByteArrayWrapper(rawKey), value);
+        queue.add(write);
+        // if we raced with close, the writer may already have drained the queue for the last time
+        if (closed && queue.remove(write))
+            write.result.completeExceptionally(failure != null ? new IOException("Tree writer failed", failure) : new IOException("Tree is closed!"));
+        return write.result;
+    }
+
+    /**
+     * Stop the writer after it has applied every write already queued.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        try {
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                boolean stop = batch.remove(STOP);
+                if (!batch.isEmpty())
+                    commit(batch);
+                batch.clear();
+                if (stop)
+                    return;
+            }
+        } catch (Throwable t) {
+            // nothing will apply the writes waiting for us, nor those submitted from now on
+            failure = t;
+            closed = true;
+            queue.drainTo(batch);
+            for (Write write : batch)
+                write.result.completeExceptionally(new IOException("Tree writer failed", t));
+            throw t;
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        // later writes to a key replace earlier ones
+        SortedMap<ByteArrayWrapper, Optional<byte[]>> changes = new TreeMap<>();
+        for (Write write : batch)
+            changes.put(write.key, write.value);
+        try {
+            WriteBuffer writes = new WriteBuffer(new MerkleBTree.RetainingStorage(storage));
+            BatchUpdate update = new BatchUpdate(root.get(), writes, maxChildren, TreeListener.NONE);
+            for (Map.Entry<ByteArrayWrapper, Optional<byte[]>> e : changes.entrySet()) {
+                if (e.getValue().isPresent())
+                    update.put(e.getKey(), e.getValue().get());
+                else
+                    update.delete(e.getKey());
+            }
+            TreeNode newRoot = update.commit();
+            writes.flush();
+            root.set(newRoot);
+            for (Write write : batch)
+                write.result.complete(newRoot.hash.get());
+        } catch (IOException | RuntimeException e) {
+            for (Write write : batch)
+                write.result.completeExceptionally(e);
+        }
+    }
+
+    private static class Write {
+        public final ByteArrayWrapper key;
+        public final Optional<byte[]> value;
+        public final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        public Write(ByteArrayWrapper key, Optional<byte[]> value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
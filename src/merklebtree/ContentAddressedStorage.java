@@ -1,5 +1,9 @@
 package merklebtree;
 
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
 public interface ContentAddressedStorage {
 
     /**
@@ -16,9 +20,116 @@ public interface ContentAddressedStorage {
      */
     byte[] get(byte[] key);
 
+    /**
+     * Stores that keep their blocks in memory or mapped from disk can return a view of a block without copying it.
+     *
+     * @param key the hash of a value previously stored
+     * @return a read-only buffer from position 0 to the end of the value, or null if it isn't present
+     */
+    default ByteBuffer getBuffer(byte[] key) {
+        byte[] raw = get(key);
+        return raw == null ? null : ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+
+    /**
+     * A hint that a block will be read soon, which a store can use to start fetching it in the background.
+     *
+     * @param key the hash of a value previously stored
+     */
+    default void prefetch(byte[] key) {}
+
     /**
      *
      * @param key the hash of a value previously stored
      */
     void remove(byte[] key);
+
+    /**
+     *
+     * @return the function this store hashes values with
+     */
+    default HashFunction hashFunction() {
+        return HashFunction.SHA256;
+    }
+
+    /**
+     * Store many values at once, which a store can do with a single write or request.
+     *
+     * @param values
+     * @return the hash of each value, in the same order
+     */
+    default List<byte[]> putMany(List<byte[]> values) {
+        List<byte[]> res = new ArrayList<>(values.size());
+        for (byte[] value : values)
+            res.add(put(value));
+        return res;
+    }
+
+    /**
+     * Store many values whose hashes the caller has already computed with hashFunction(), so the store doesn't have
+     * to hash them again.
+     *
+     * @param hashes the hash of each value
+     * @param values
+     */
+    default void putMany(List<byte[]> hashes, List<byte[]> values) {
+        putMany(values);
+    }
+
+    /**
+     *
+     * @param keys the hashes of values previously stored
+     * @return each value in the same order, with null for those which aren't present
+     */
+    default List<byte[]> getMany(List<byte[]> keys) {
+        List<byte[]> res = new ArrayList<>(keys.size());
+        for (byte[] key : keys)
+            res.add(get(key));
+        return res;
+    }
+
+    /**
+     *
+     * @param keys the hashes of values previously stored
+     */
+    default void removeMany(List<byte[]> keys) {
+        for (byte[] key : keys)
+            remove(key);
+    }
+
+    /**
+     * Make every block stored so far durable, for stores which write to disk.
+     *
+     * @throws IOException
+     */
+    default void sync() throws IOException {}
+
+    /**
+     *
+     * @param key the hash of a serialized TreeNode previously stored
+     * @return the decoded node, carrying its hash
+     * @throws IOException
+     */
+    default TreeNode getNode(byte[] key) throws IOException {
+        return TreeNode.deserialize(get(key), Optional.of(key));
+    }
+
+    /**
+     * Read a node, telling the listener of the block read from storage and the node deserialized. Stores which wrap
+     * another pass the listener on, so a cache anywhere below only reports the nodes it doesn't have decoded.
+     *
+     * @param key the hash of a serialized TreeNode previously stored
+     * @param listener
+     * @return the decoded node, carrying its hash
+     * @throws IOException
+     */
+    default TreeNode getNode(byte[] key, TreeListener listener) throws IOException {
+        ByteBuffer raw = getBuffer(key);
+        if (raw == null)
+            throw new IllegalArgumentException("Null byte[]!");
+        listener.blockRead(raw.remaining());
+        TreeNode node = TreeNode.deserialize(raw, Optional.of(key));
+        listener.nodeRead();
+        return node;
+    }
 }
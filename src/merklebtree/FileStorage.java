@@ -0,0 +1,939 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * A persistent store which appends blocks to memory mapped segment files in a directory, and finds them through a
+ * memory mapped open addressing hash table in the file "index". Each record in a segment is:
+ *
+ *   int     length of the value, or -1 for a removal
+ *   int     CRC32 of the hash and value
+ *   byte    length of the hash, 0 marks the end of the records in a segment
+ *   hash
+ *   value
+ *
+ * Each index slot holds the first 8 bytes of a hash and the segment and offset of its record. The index header
+ * records a checkpoint in the log, up to which both are known to be on disk. On opening, the records after the
+ * checkpoint are replayed into the index, stopping at the first torn or corrupt record, which is where appending
+ * resumes. Writes are forced to disk every syncInterval records, and on sync() and close(), without holding the lock
+ * reads take, so reads don't wait for the disk. Files are created, renamed and deleted in the directory before it is
+ * forced, so the checkpoint never refers to a segment or index the directory may lose in a crash. Segments are never
+ * rewritten, so space from removed blocks is only reclaimed by compact(), which copies the blocks reachable from a
+ * set of roots out of mostly dead segments. Blocks passed to prefetch() have their pages faulted in by a background
+ * thread.
+ */
+public class FileStorage implements ContentAddressedStorage, Closeable {
+    private static final int MAGIC = 0x4d42494e;
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int RECORD_HEADER = 9;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int PAGE_SIZE = 4096;
+    // slot segment values, which are otherwise the segment number plus one
+    private static final int EMPTY = 0, DELETED = -1;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int syncInterval;
+    private final HashFunction hashFunction;
+    private final ExecutorService prefetcher;
+    // segments by number, the last of which is being appended to. Compaction leaves gaps in the numbering.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity, count, deleted;
+    // the end of the log, where the next record is appended
+    private int tail;
+    private int unsynced;
+    // whether files have been created, renamed or deleted since the directory was last forced
+    private boolean directoryChanged = true;
+    private boolean closed;
+    // held by sync() while it forces writes to disk, outside the lock reads and writes take
+    private final Object syncLock = new Object();
+    // while compacting, the segments being compacted and the blocks found to be live so far
+    private Set<Integer> compacting = Collections.emptySet();
+    private Set<ByteArrayWrapper> live = new HashSet<>();
+
+    /**
+     * Open or create a store in the given directory.
+     *
+     * @param dir
+     * @param segmentSize the size of each segment file, values larger than this get a segment to themselves
+     * @param syncInterval the number of writes between forcing them to disk, or 0 to only force on sync() and close()
+     * @param hashFunction the hash to address new blocks by
+     * @throws IOException
+     */
+    public FileStorage(Path dir, int segmentSize, int syncInterval, HashFunction hashFunction) throws IOException {
+        if (segmentSize < 4096)
+            throw new IllegalArgumentException("Segment size must be at least 4096");
+        if (syncInterval < 0)
+            throw new IllegalArgumentException("Negative sync interval!");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.hashFunction = hashFunction;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "[0-9][0-9][0-9][0-9][0-9][0-9][0-9][0-9].log")) {
+            for (Path f : files)
+                segments.put(Integer.parseInt(f.getFileName().toString().substring(0, 8)), new Segment(f, 0));
+        }
+        if (segments.isEmpty())
+            segments.put(0, new Segment(segmentPath(0), segmentSize));
+        openIndex();
+        recover();
+        prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public FileStorage(Path dir, int segmentSize, int syncInterval) throws IOException {
+        this(dir, segmentSize, syncInterval, HashFunction.SHA256);
+    }
+
+    public FileStorage(Path dir) throws IOException {
+        this(dir, 64 * 1024 * 1024, 256);
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return hashFunction;
+    }
+
+    @Override
+    public byte[] put(byte[] value) {
+        try {
+            byte[] hash = hashFunction.hash(value);
+            boolean appended;
+            synchronized (this) {
+                appended = write(hash, value);
+            }
+            if (appended)
+                written(1);
+            return hash;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends all the values before forcing them to disk at most once.
+     */
+    @Override
+    public List<byte[]> putMany(List<byte[]> values) {
+        List<byte[]> hashes = new ArrayList<>(values.size());
+        for (byte[] value : values)
+            hashes.add(hashFunction.hash(value));
+        putMany(hashes, values);
+        return hashes;
+    }
+
+    /**
+     * Appends all the values before forcing them to disk at most once.
+     */
+    @Override
+    public void putMany(List<byte[]> hashes, List<byte[]> values) {
+        try {
+            int appended = 0;
+            synchronized (this) {
+                for (int i=0; i < hashes.size(); i++)
+                    if (write(hashes.get(i), values.get(i)))
+                        appended++;
+            }
+            written(appended);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     *
+     * @return whether a record was appended
+     */
+    private boolean write(byte[] hash, byte[] value) throws IOException {
+        int slot = find(hash);
+        // a block which compaction is about to drop is written again, so it is kept
+        if (slot >= 0 && !(compacting.contains(index.getInt(slot + 8) - 1) && !live.contains(new ByteArrayWrapper(hash))))
+            return false;
+        int offset = append(hash, value, false);
+        if (slot >= 0)
+            move(slot, segments.lastKey(), offset);
+        else
+            insert(hash, segments.lastKey(), offset);
+        return true;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        ByteBuffer buf = getBuffer(key);
+        if (buf == null)
+            return null;
+        byte[] res = new byte[buf.remaining()];
+        buf.get(res);
+        return res;
+    }
+
+    /**
+     * Reads straight from the mapped segment, without copying the value.
+     */
+    @Override
+    public synchronized ByteBuffer getBuffer(byte[] key) {
+        checkOpen();
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        ByteBuffer segment = segments.get(index.getInt(slot + 8) - 1).map;
+        int offset = index.getInt(slot + 12);
+        int start = offset + RECORD_HEADER + key.length;
+        ByteBuffer res = segment.duplicate();
+        res.limit(start + segment.getInt(offset));
+        res.position(start);
+        return res.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Touches each page of the block's record in the background, so a later read doesn't wait for the disk.
+     */
+    @Override
+    public synchronized void prefetch(byte[] key) {
+        if (closed)
+            return;
+        ByteBuffer block = getBuffer(key);
+        if (block != null && block.remaining() > 0)
+            prefetcher.execute(() -> touch(block));
+    }
+
+    @Override
+    public synchronized List<byte[]> getMany(List<byte[]> keys) {
+        List<byte[]> res = new ArrayList<>(keys.size());
+        for (byte[] key : keys)
+            res.add(get(key));
+        return res;
+    }
+
+    @Override
+    public void remove(byte[] key) {
+        try {
+            boolean appended;
+            synchronized (this) {
+                appended = erase(key);
+            }
+            if (appended)
+                written(1);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends all the removals before forcing them to disk at most once.
+     */
+    @Override
+    public void removeMany(List<byte[]> keys) {
+        try {
+            int appended = 0;
+            synchronized (this) {
+                for (byte[] key : keys)
+                    if (erase(key))
+                        appended++;
+            }
+            written(appended);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     *
+     * @return whether a removal record was appended
+     */
+    private boolean erase(byte[] key) throws IOException {
+        int slot = find(key);
+        if (slot < 0)
+            return false;
+        append(key, new byte[0], true);
+        index.putInt(slot + 8, DELETED);
+        count--;
+        deleted++;
+        return true;
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key) throws IOException {
+        ByteBuffer raw = getBuffer(key);
+        if (raw == null)
+            throw new IllegalArgumentException("Null byte[]!");
+        return TreeNode.deserialize(raw, Optional.of(key));
+    }
+
+    /**
+     *
+     * @return the number of blocks stored
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Force all writes so far to disk, and move the recovery checkpoint to the end of them. Reads and writes carry on
+     * while the writes are forced, and those made meanwhile are left for the next sync.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            List<Segment> dirty = new ArrayList<>();
+            int[] checkpoint;
+            boolean forceDirectory;
+            synchronized (this) {
+                checkOpen();
+                unsynced = 0;
+                for (Segment segment : segments.values())
+                    if (segment.dirty)
+                        dirty.add(segment);
+                checkpoint = new int[] {count, deleted, segments.lastKey(), tail};
+                // nothing has changed since the last checkpoint
+                if (dirty.isEmpty() && !directoryChanged && index.getInt(16) == checkpoint[0] && index.getInt(20) == checkpoint[1]
+                        && index.getInt(24) == checkpoint[2] && index.getInt(28) == checkpoint[3])
+                    return;
+                for (Segment segment : dirty)
+                    segment.dirty = false;
+                forceDirectory = directoryChanged;
+                directoryChanged = false;
+            }
+            try {
+                for (Segment segment : dirty)
+                    segment.map.force();
+                if (forceDirectory)
+                    syncDirectory();
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    for (Segment segment : dirty)
+                        segment.dirty = true;
+                    directoryChanged |= forceDirectory;
+                }
+                throw e;
+            }
+            MappedByteBuffer checkpointed;
+            synchronized (this) {
+                // the index may have slots for later records, which recovery drops if they don't reach the disk
+                index.putInt(16, checkpoint[0]);
+                index.putInt(20, checkpoint[1]);
+                index.putInt(24, checkpoint[2]);
+                index.putInt(28, checkpoint[3]);
+                checkpointed = index;
+            }
+            checkpointed.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                // holding both locks, so nothing is written after the final checkpoint
+                sync();
+                index.putInt(12, 0);
+                index.force();
+                closed = true;
+                prefetcher.shutdownNow();
+                for (Segment segment : segments.values())
+                    segment.channel.close();
+                indexChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Reclaim the space used by blocks which aren't reachable from any of the given roots. The segments written so
+     * far are sealed, then the live blocks in any of them that are mostly garbage are copied to the end of the log,
+     * and those segments are deleted. Reads and writes can continue while this runs, and a reader still holding a
+     * buffer from a deleted segment can keep using it. Blocks written after compaction starts are always kept, as
+     * are blocks put again while it runs.
+     *
+     * @param roots called once the segments have been sealed, to get the hash of the root of every tree to keep.
+     *              Any update to a tree which is in progress at that point must be waited for.
+     * @param maxBytesPerSecond a limit on the rate at which blocks are read and copied, or 0 for no limit
+     * @return the number of bytes of disk space reclaimed
+     * @throws IOException
+     */
+    public long compact(Supplier<Collection<byte[]>> roots, long maxBytesPerSecond) throws IOException {
+        Throttle throttle = new Throttle(maxBytesPerSecond);
+        SortedMap<Integer, Segment> sealed;
+        synchronized (this) {
+            checkOpen();
+            if (!compacting.isEmpty())
+                throw new IllegalStateException("Already compacting!");
+            if (tail > 0)
+                roll(segmentSize);
+            sealed = new TreeMap<>(segments.headMap(segments.lastKey()));
+            compacting = new HashSet<>(sealed.keySet());
+            live = new HashSet<>();
+        }
+        try {
+            sync();
+            mark(roots.get(), throttle);
+            long reclaimed = 0;
+            for (Map.Entry<Integer, Segment> e : sealed.entrySet())
+                reclaimed += compact(e.getKey(), e.getValue(), throttle);
+            return reclaimed;
+        } finally {
+            synchronized (this) {
+                compacting = Collections.emptySet();
+                live = new HashSet<>();
+            }
+        }
+    }
+
+    /**
+     * Find every block reachable from the roots. Missing blocks are skipped, as nothing under them can be read.
+     */
+    private void mark(Collection<byte[]> roots, Throttle throttle) throws IOException {
+        Deque<byte[]> pending = new ArrayDeque<>(roots);
+        NodeView view = new NodeView();
+        // values which may refer to value blocks keep them live, but they aren't read as nodes
+        List<byte[]> values = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            byte[] hash = pending.pop();
+            synchronized (this) {
+                if (!live.add(new ByteArrayWrapper(hash)))
+                    continue;
+            }
+            ByteBuffer raw = getBuffer(hash);
+            if (raw == null)
+                continue;
+            throttle.acquire(raw.remaining());
+            if (view.wrap(raw)) {
+                for (int i = 0; i < view.size(); i++) {
+                    if (!view.isLeaf())
+                        pending.push(view.child(i));
+                    byte[] value = view.reference(i);
+                    if (value != null)
+                        values.add(value);
+                }
+            } else {
+                TreeNode node = TreeNode.deserialize(raw, Optional.of(hash));
+                for (int i = 0; i < node.keys.length; i++) {
+                    if (node.children[i].length > 0)
+                        pending.push(node.children[i]);
+                    if (ValueBlocks.isReference(node.values[i]))
+                        values.add(Arrays.copyOfRange(node.values[i], 1, node.values[i].length));
+                }
+            }
+        }
+        synchronized (this) {
+            for (byte[] value : values)
+                live.add(new ByteArrayWrapper(value));
+        }
+    }
+
+    /**
+     * Copy the live blocks out of a sealed segment and delete it, unless most of it is live.
+     *
+     * @return the number of bytes reclaimed
+     */
+    private long compact(int id, Segment segment, Throttle throttle) throws IOException {
+        ByteBuffer map = segment.map;
+        List<Integer> liveOffsets = new ArrayList<>(), deadOffsets = new ArrayList<>();
+        long liveBytes = 0;
+        int end = 0;
+        for (int next; (next = recordEnd(map, end)) >= 0; end = next) {
+            throttle.acquire(next - end);
+            if (map.getInt(end) == -1)
+                continue;
+            byte[] hash = recordHash(map, end);
+            synchronized (this) {
+                int slot = find(hash);
+                if (slot < 0 || !at(slot, id, end))
+                    continue;
+                if (live.contains(new ByteArrayWrapper(hash))) {
+                    liveOffsets.add(end);
+                    liveBytes += next - end;
+                } else
+                    deadOffsets.add(end);
+            }
+        }
+        if (liveBytes * 4 >= end * 3L)
+            return 0;
+
+        // the offset of each copied record, and the segment and offset of its copy
+        List<int[]> copies = new ArrayList<>();
+        for (int offset : liveOffsets) {
+            byte[] hash = recordHash(map, offset);
+            byte[] value = new byte[map.getInt(offset)];
+            ByteBuffer in = map.duplicate();
+            in.position(offset + RECORD_HEADER + hash.length);
+            in.get(value);
+            throttle.acquire(RECORD_HEADER + hash.length + value.length);
+            synchronized (this) {
+                checkOpen();
+                int slot = find(hash);
+                // skip blocks which have been removed, or written again, since we looked
+                if (slot < 0 || !at(slot, id, offset))
+                    continue;
+                int copy = append(hash, value, false);
+                copies.add(new int[] {offset, segments.lastKey(), copy});
+            }
+        }
+
+        // the copies must be on disk before the index points at them
+        sync();
+        synchronized (this) {
+            checkOpen();
+            for (int[] copy : copies) {
+                int slot = find(recordHash(map, copy[0]));
+                if (slot >= 0 && at(slot, id, copy[0]))
+                    move(slot, copy[1], copy[2]);
+            }
+            for (int offset : deadOffsets) {
+                int slot = find(recordHash(map, offset));
+                if (slot >= 0 && at(slot, id, offset)) {
+                    index.putInt(slot + 8, DELETED);
+                    count--;
+                    deleted++;
+                }
+            }
+        }
+        // the index mustn't point into the segment on disk once it is gone
+        sync();
+        synchronized (this) {
+            checkOpen();
+            segments.remove(id);
+            segment.channel.close();
+            Files.delete(segmentPath(id));
+        }
+        syncDirectory();
+        return map.capacity() - liveBytes;
+    }
+
+    /**
+     * Count appended records, and sync once there are syncInterval of them. Called without the lock held, so a sync
+     * doesn't hold up reads.
+     */
+    private void written(int records) throws IOException {
+        synchronized (this) {
+            unsynced += records;
+            if (syncInterval == 0 || unsynced < syncInterval)
+                return;
+        }
+        sync();
+    }
+
+    /**
+     * Force the directory's entries to disk, so the files created, renamed and deleted in it stay that way.
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Storage is closed!");
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("%08d.log", segment));
+    }
+
+    /**
+     *
+     * @return the offset of the new record in the last segment
+     */
+    private int append(byte[] hash, byte[] value, boolean removal) throws IOException {
+        checkOpen();
+        if (hash.length == 0 || hash.length > 255)
+            throw new IllegalArgumentException("Unsupported hash length " + hash.length);
+        int size = RECORD_HEADER + hash.length + value.length;
+        Segment segment = segments.lastEntry().getValue();
+        // leave room for the end marker
+        if (tail + size >= segment.map.capacity()) {
+            if (size + 1L > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Value too large!");
+            segment = roll(Math.max(segmentSize, size + 1));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(hash);
+        crc.update(value);
+        ByteBuffer out = segment.map.duplicate();
+        out.position(tail);
+        out.putInt(removal ? -1 : value.length);
+        out.putInt((int) crc.getValue());
+        out.put((byte) hash.length);
+        out.put(hash);
+        out.put(value);
+        segment.dirty = true;
+        int offset = tail;
+        tail += size;
+        return offset;
+    }
+
+    /**
+     * Start appending to a new segment. The next sync forces it, and the directory entry for it, to disk before the
+     * checkpoint can refer to it.
+     */
+    private Segment roll(int size) throws IOException {
+        Segment segment = new Segment(segmentPath(segments.lastKey() + 1), size);
+        segments.put(segments.lastKey() + 1, segment);
+        directoryChanged = true;
+        tail = 0;
+        return segment;
+    }
+
+    private void openIndex() throws IOException {
+        Path path = dir.resolve("index");
+        boolean exists = Files.exists(path);
+        indexChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (exists && indexChannel.size() >= HEADER_SIZE) {
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+            capacity = index.getInt(8);
+            if (index.getInt(0) == MAGIC && index.getInt(4) == INDEX_VERSION
+                    && indexChannel.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                count = index.getInt(16);
+                deleted = index.getInt(20);
+                return;
+            }
+        }
+        // rebuild the index from the whole log
+        capacity = MIN_CAPACITY;
+        index = newIndex(indexChannel, capacity);
+        index.putInt(12, 1);
+        index.putInt(24, segments.firstKey());
+        count = deleted = 0;
+    }
+
+    private static MappedByteBuffer newIndex(FileChannel channel, int capacity) throws IOException {
+        channel.truncate(0);
+        MappedByteBuffer res = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        res.putInt(0, MAGIC);
+        res.putInt(4, INDEX_VERSION);
+        res.putInt(8, capacity);
+        return res;
+    }
+
+    /**
+     * Replay the log after the checkpoint into the index, and find the end of the log.
+     */
+    private void recover() throws IOException {
+        if (!segments.containsKey(index.getInt(24))) {
+            index = newIndex(indexChannel, capacity = MIN_CAPACITY);
+            index.putInt(12, 1);
+            index.putInt(24, segments.firstKey());
+            count = deleted = 0;
+        }
+        int segment = index.getInt(24);
+        int offset = index.getInt(28);
+        while (true) {
+            int next = readRecord(segment, offset);
+            if (next >= 0) {
+                offset = next;
+                continue;
+            }
+            Integer following = segments.higherKey(segment);
+            if (following != null && segments.get(following).map.get(RECORD_HEADER - 1) != 0) {
+                segment = following;
+                offset = 0;
+                continue;
+            }
+            break;
+        }
+        if (index.getInt(12) != 0) {
+            // we weren't closed cleanly, so anything after the end of the valid records is lost, including whole
+            // segments that were never synced, and index slots that reached the disk before their records did
+            while (segments.lastKey() > segment) {
+                Map.Entry<Integer, Segment> last = segments.pollLastEntry();
+                last.getValue().channel.close();
+                Files.delete(segmentPath(last.getKey()));
+            }
+            Segment last = segments.get(segment);
+            for (int i = offset; i < last.map.capacity(); i++)
+                last.map.put(i, (byte) 0);
+            last.dirty = true;
+            dropSlotsAfter(segment, offset);
+            recount();
+        }
+        tail = offset;
+        sync();
+        index.putInt(12, 1);
+        index.force();
+    }
+
+    /**
+     * Apply the record at offset to the index.
+     *
+     * @return the offset of the next record, or -1 if there isn't a valid record at offset
+     */
+    private int readRecord(int segment, int offset) {
+        ByteBuffer map = segments.get(segment).map;
+        int end = recordEnd(map, offset);
+        if (end < 0)
+            return -1;
+        byte[] hash = recordHash(map, offset);
+        int slot = find(hash);
+        if (map.getInt(offset) == -1) {
+            if (slot >= 0) {
+                index.putInt(slot + 8, DELETED);
+                count--;
+                deleted++;
+            }
+        } else if (slot >= 0)
+            move(slot, segment, offset);
+        else
+            insert(hash, segment, offset);
+        return end;
+    }
+
+    /**
+     *
+     * @return the offset after the record at offset, or -1 if there isn't a valid record there
+     */
+    private static int recordEnd(ByteBuffer map, int offset) {
+        if (offset + RECORD_HEADER > map.capacity())
+            return -1;
+        int length = map.getInt(offset);
+        int crc = map.getInt(offset + 4);
+        int hashLength = map.get(offset + 8) & 0xff;
+        boolean removal = length == -1;
+        if (hashLength == 0 || (length < 0 && !removal))
+            return -1;
+        long end = (long) offset + RECORD_HEADER + hashLength + (removal ? 0 : length);
+        if (end >= map.capacity())
+            return -1;
+        ByteBuffer in = map.duplicate();
+        in.limit((int) end);
+        in.position(offset + RECORD_HEADER);
+        CRC32 check = new CRC32();
+        check.update(in);
+        if ((int) check.getValue() != crc)
+            return -1;
+        return (int) end;
+    }
+
+    private static byte[] recordHash(ByteBuffer map, int offset) {
+        byte[] hash = new byte[map.get(offset + 8) & 0xff];
+        for (int i = 0; i < hash.length; i++)
+            hash[i] = map.get(offset + RECORD_HEADER + i);
+        return hash;
+    }
+
+    /**
+     * Slots written before a crash may point past the end of the recovered log.
+     */
+    private void dropSlotsAfter(int segment, int offset) {
+        for (int i = 0; i < capacity; i++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int s = index.getInt(slot + 8) - 1;
+            if (s < 0)
+                continue;
+            if (s > segment || (s == segment && index.getInt(slot + 12) >= offset))
+                index.putInt(slot + 8, DELETED);
+        }
+    }
+
+    private void recount() {
+        count = deleted = 0;
+        for (int i = 0; i < capacity; i++) {
+            int s = index.getInt(HEADER_SIZE + i * SLOT_SIZE + 8);
+            if (s == DELETED)
+                deleted++;
+            else if (s != EMPTY)
+                count++;
+        }
+    }
+
+    /**
+     * The first 8 bytes of the digest, skipping any multihash prefix, which would be the same for every hash.
+     */
+    private static long prefix(byte[] hash) {
+        int start = HashFunction.digestOffset(hash);
+        long res = 0;
+        for (int i = start; i < start + 8; i++)
+            res = (res << 8) | (i < hash.length ? hash[i] & 0xff : 0);
+        return res;
+    }
+
+    private int firstSlot(long prefix) {
+        long h = prefix ^ (prefix >>> 32);
+        return (int) (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     *
+     * @return the position of the slot for hash in the index, or -1 if it isn't present
+     */
+    private int find(byte[] hash) {
+        long prefix = prefix(hash);
+        for (int i = firstSlot(prefix), probes = 0; probes < capacity; i = (i + 1) & (capacity - 1), probes++) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int segment = index.getInt(slot + 8);
+            if (segment == EMPTY)
+                return -1;
+            if (segment != DELETED && index.getLong(slot) == prefix && matches(hash, segment - 1, index.getInt(slot + 12)))
+                return slot;
+        }
+        return -1;
+    }
+
+    private boolean matches(byte[] hash, int segment, int offset) {
+        Segment s = segments.get(segment);
+        if (s == null)
+            return false;
+        ByteBuffer map = s.map;
+        if (offset + RECORD_HEADER + hash.length > map.capacity() || (map.get(offset + 8) & 0xff) != hash.length)
+            return false;
+        for (int i = 0; i < hash.length; i++)
+            if (map.get(offset + RECORD_HEADER + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private void insert(byte[] hash, int segment, int offset) {
+        if ((count + deleted + 1) * 2L > capacity)
+            resize();
+        long prefix = prefix(hash);
+        int i = firstSlot(prefix);
+        while (true) {
+            int slot = HEADER_SIZE + i * SLOT_SIZE;
+            int existing = index.getInt(slot + 8);
+            if (existing == EMPTY || existing == DELETED) {
+                if (existing == DELETED)
+                    deleted--;
+                index.putLong(slot, prefix);
+                index.putInt(slot + 12, offset);
+                index.putInt(slot + 8, segment + 1);
+                count++;
+                return;
+            }
+            i = (i + 1) & (capacity - 1);
+        }
+    }
+
+    private void move(int slot, int segment, int offset) {
+        index.putInt(slot + 8, segment + 1);
+        index.putInt(slot + 12, offset);
+    }
+
+    private boolean at(int slot, int segment, int offset) {
+        return index.getInt(slot + 8) == segment + 1 && index.getInt(slot + 12) == offset;
+    }
+
+    /**
+     * Rehash into a new index file, which replaces the old one atomically once it is on disk.
+     */
+    private void resize() {
+        try {
+            int newCapacity = capacity;
+            while ((count + 1) * 4L > newCapacity)
+                newCapacity *= 2;
+            Path tmp = dir.resolve("index.tmp");
+            FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer old = index;
+            int oldCapacity = capacity;
+            index = newIndex(channel, newCapacity);
+            capacity = newCapacity;
+            count = deleted = 0;
+            for (int i = 0; i < oldCapacity; i++) {
+                int slot = HEADER_SIZE + i * SLOT_SIZE;
+                int segment = old.getInt(slot + 8);
+                if (segment == EMPTY || segment == DELETED)
+                    continue;
+                long prefix = old.getLong(slot);
+                int j = firstSlot(prefix);
+                while (index.getInt(HEADER_SIZE + j * SLOT_SIZE + 8) != EMPTY)
+                    j = (j + 1) & (capacity - 1);
+                int target = HEADER_SIZE + j * SLOT_SIZE;
+                index.putLong(target, prefix);
+                index.putInt(target + 8, segment);
+                index.putInt(target + 12, old.getInt(slot + 12));
+                count++;
+            }
+            index.putInt(12, old.getInt(12));
+            index.putInt(16, count);
+            index.putInt(24, old.getInt(24));
+            index.putInt(28, old.getInt(28));
+            index.force();
+            Files.move(tmp, dir.resolve("index"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            indexChannel.close();
+            indexChannel = channel;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Limits the rate of compaction by sleeping whenever it gets ahead.
+     */
+    private static class Throttle {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        public Throttle(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("Negative rate!");
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public void acquire(long n) throws InterruptedIOException {
+            if (bytesPerSecond == 0)
+                return;
+            bytes += n;
+            long wait = start + (long) (bytes * 1e9 / bytesPerSecond) - System.nanoTime();
+            if (wait <= 0)
+                return;
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+        }
+    }
+
+    private static volatile int touched;
+
+    /**
+     * Read a byte from every page of a mapped block, which faults them into memory.
+     */
+    private static void touch(ByteBuffer block) {
+        int sum = 0;
+        for (int i=0; i < block.limit(); i += PAGE_SIZE)
+            sum += block.get(i);
+        // the last page, which the stride can miss when the block doesn't start on a page boundary
+        sum += block.get(block.limit() - 1);
+        touched = sum;
+    }
+
+    private static class Segment {
+        public final FileChannel channel;
+        public final MappedByteBuffer map;
+        // whether there are writes which haven't been forced
+        public boolean dirty;
+
+        /**
+         *
+         * @param path
+         * @param size the size to create the file with, if it doesn't exist
+         */
+        public Segment(Path path, int size) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < size)
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+}
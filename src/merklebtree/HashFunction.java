@@ -0,0 +1,183 @@
+package merklebtree;
+
+import java.nio.*;
+import java.security.*;
+
+/**
+ * The hash a store addresses its blocks by. Every hash except a plain SHA-256 digest starts with a multihash prefix,
+ * the varint code of the algorithm and the varint length of the digest, so a tree records the algorithm in every
+ * child pointer. Hashes of exactly 32 bytes are plain SHA-256 digests, which is how trees have always been hashed, so
+ * existing trees stay valid.
+ *
+ * Digests are reused per thread, so hashing doesn't allocate anything but its result.
+ */
+public abstract class HashFunction {
+    public static final HashFunction SHA256 = new Sha256();
+    public static final HashFunction BLAKE2B_256 = new Blake2b256();
+
+    // the length of the longest hash of any known function
+    public static final int MAX_LENGTH = 36;
+
+    private static final int BLAKE2B_256_CODE = 0xb220;
+
+    private final byte[] prefix;
+
+    private HashFunction(int code, int digestLength) {
+        if (code < 0) {
+            prefix = new byte[0];
+            return;
+        }
+        byte[] res = new byte[NodeFormat.varintSize(code) + NodeFormat.varintSize(digestLength)];
+        NodeFormat.writeVarint(res, NodeFormat.writeVarint(res, 0, code), digestLength);
+        prefix = res;
+    }
+
+    /**
+     *
+     * @param data
+     * @return the hash of data, including any multihash prefix
+     */
+    public byte[] hash(byte[] data) {
+        return hash(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Hash the remaining bytes of a buffer in place, without changing its position.
+     *
+     * @param data
+     * @return the hash of the remaining bytes, including any multihash prefix
+     */
+    public byte[] hash(ByteBuffer data) {
+        byte[] res = new byte[prefix.length + digestLength()];
+        System.arraycopy(prefix, 0, res, 0, prefix.length);
+        digest(data.duplicate(), res, prefix.length);
+        return res;
+    }
+
+    public abstract String name();
+
+    protected abstract int digestLength();
+
+    /**
+     * Write the digest of the remaining bytes of data into out at offset.
+     */
+    protected abstract void digest(ByteBuffer data, byte[] out, int offset);
+
+    /**
+     *
+     * @param hash
+     * @return the function which produced hash
+     * @throws IllegalArgumentException if the algorithm isn't known
+     */
+    public static HashFunction of(byte[] hash) {
+        if (hash.length == 32)
+            return SHA256;
+        if (isKnown(hash))
+            return BLAKE2B_256;
+        throw new IllegalArgumentException("Unknown hash " + ByteArrayWrapper.bytesToHex(hash));
+    }
+
+    /**
+     *
+     * @param hash
+     * @return whether hash could have been produced by a known function
+     */
+    public static boolean isKnown(byte[] hash) {
+        if (hash.length == 32)
+            return true;
+        ByteBuffer in = ByteBuffer.wrap(hash);
+        return readVarint(in) == BLAKE2B_256_CODE && readVarint(in) == 32 && in.remaining() == 32;
+    }
+
+    /**
+     * Hash tables keyed by hashes should take their bits from here, as the bytes before it are the same for every
+     * hash of one algorithm.
+     *
+     * @param hash
+     * @return the offset of the digest after any multihash prefix, or 0 if there doesn't seem to be one
+     */
+    public static int digestOffset(byte[] hash) {
+        if (hash.length == 32)
+            return 0;
+        ByteBuffer in = ByteBuffer.wrap(hash);
+        readVarint(in);
+        int length = readVarint(in);
+        return length == in.remaining() ? in.position() : 0;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && in.hasRemaining(); shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    private static class Sha256 extends HashFunction {
+        private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("couldn't find hash algorithm");
+            }
+        });
+
+        public Sha256() {
+            super(-1, 32);
+        }
+
+        @Override
+        public String name() {
+            return "sha2-256";
+        }
+
+        @Override
+        protected int digestLength() {
+            return 32;
+        }
+
+        @Override
+        protected void digest(ByteBuffer data, byte[] out, int offset) {
+            MessageDigest md = digests.get();
+            md.update(data);
+            try {
+                md.digest(out, offset, 32);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Blake2b256 extends HashFunction {
+        private static final ThreadLocal<Blake2b> digests = ThreadLocal.withInitial(() -> new Blake2b(32));
+
+        public Blake2b256() {
+            super(BLAKE2B_256_CODE, 32);
+        }
+
+        @Override
+        public String name() {
+            return "blake2b-256";
+        }
+
+        @Override
+        protected int digestLength() {
+            return 32;
+        }
+
+        @Override
+        protected void digest(ByteBuffer data, byte[] out, int offset) {
+            Blake2b b = digests.get();
+            b.update(data);
+            b.digest(out, offset);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package merklebtree;
+
+import java.util.*;
+
+/**
+ * A key whose value differs between two trees.
+ */
+public class KeyChange {
+    public final byte[] key;
+    // the value in the first tree, or empty if the key was added
+    public final Optional<byte[]> before;
+    // the value in the second tree, or empty if the key was removed
+    public final Optional<byte[]> after;
+
+    public KeyChange(byte[] key, Optional<byte[]> before, Optional<byte[]> after) {
+        this.key = key;
+        this.before = before;
+        this.after = after;
+    }
+
+    public boolean isAdded() {
+        return !before.isPresent();
+    }
+
+    public boolean isRemoved() {
+        return !after.isPresent();
+    }
+
+    @Override
+    public String toString() {
+        return ByteArrayWrapper.bytesToHex(key) + ": " + before.map(ByteArrayWrapper::bytesToHex).orElse("-")
+                + " -> " + after.map(ByteArrayWrapper::bytesToHex).orElse("-");
+    }
+}
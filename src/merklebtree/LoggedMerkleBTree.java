@@ -0,0 +1,361 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * A tree whose writes are durable as soon as they are appended to a write-ahead log, rather than once the nodes on
+ * their paths are rewritten. Writers which arrive together share one fsync of the log. Writes are held in memory
+ * until a checkpoint applies them all to the tree as one batch, syncs the storage, and records the new root in the
+ * file "root" in the directory, after which their logs are deleted. On opening, the logs written since the last
+ * checkpoint are replayed, each up to its first torn or corrupt record. Each record in a log is:
+ *
+ *   int     length of the rest of the record
+ *   int     CRC32 of the rest of the record
+ *   int     length of the key, followed by the key
+ *   int     length of the value, or -1 for a delete, followed by the value
+ *
+ * The root of the last checkpoint has to survive a crash during the next one, so the nodes replaced by a checkpoint
+ * are never removed, and are left to compaction of roots(). The directory is forced to disk after each log is created
+ * or deleted and after the root file is replaced. If a checkpoint in the background fails, writes fail too until a
+ * checkpoint succeeds.
+ */
+public class LoggedMerkleBTree implements Closeable {
+    private static final String ROOT = "root";
+    private static final String LOG = "log-";
+
+    private final Path dir;
+    private final MerkleBTree tree;
+    private final int maxPending;
+    private final ScheduledExecutorService checkpointer;
+    // held by a checkpoint until its logs are deleted
+    private final Object checkpointLock = new Object();
+    // held while forcing the log, and taken before this
+    private final Object syncLock = new Object();
+    private FileChannel log;
+    private long generation;
+    // the writes not yet applied to the tree, and those being applied by a checkpoint
+    private final PendingWrites pending = new PendingWrites();
+    private long appended;
+    private boolean checkpointQueued, closed;
+    // the logs before this generation have been applied to checkpointedRoot
+    private long checkpointed;
+    private byte[] checkpointedRoot;
+    private IOException failure;
+    // guarded by syncLock
+    private long synced;
+
+    /**
+     *
+     * @param dir the directory holding the logs and the checkpointed root
+     * @param storage
+     * @param maxChildren
+     * @param maxPending the number of keys written since the last checkpoint which triggers another
+     * @param checkpointMillis the time between periodic checkpoints, or 0 for none
+     * @throws IOException
+     */
+    public LoggedMerkleBTree(Path dir, ContentAddressedStorage storage, int maxChildren, int maxPending, long checkpointMillis) throws IOException {
+        if (maxPending < 1)
+            throw new IllegalArgumentException("maxPending must be at least 1");
+        this.dir = dir;
+        this.maxPending = maxPending;
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve(ROOT))) {
+            ByteBuffer root = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(ROOT)));
+            try {
+                checkpointed = root.getLong();
+                checkpointedRoot = new byte[root.getInt()];
+                root.get(checkpointedRoot);
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException("Corrupt root file", e);
+            }
+        } else {
+            checkpointedRoot = storage.put(TreeNode.empty().serialize());
+        }
+        tree = MerkleBTree.open(checkpointedRoot, storage, maxChildren);
+
+        generation = checkpointed;
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < checkpointed) {
+                // a checkpoint applied it, but didn't get to delete it
+                Files.delete(logPath(logGeneration));
+                continue;
+            }
+            replay(logPath(logGeneration));
+            generation = logGeneration + 1;
+        }
+        log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        if (checkpointMillis > 0)
+            checkpointer.scheduleWithFixedDelay(this::checkpointInBackground, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return value of rawKey, including writes not yet checkpointed
+     * @throws IOException
+     */
+    public byte[] get(byte[] rawKey) throws IOException {
+        Optional<byte[]> value = pending.get(new ByteArrayWrapper(rawKey));
+        if (value != null)
+            return value.orElse(null);
+        return tree.get(rawKey);
+    }
+
+    /**
+     * Iterate over a range of keys, with the writes not yet checkpointed as they are now over the tree as it is now.
+     *
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @return the keys and values in the range in ascending key order
+     * @throws IOException
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) throws IOException {
+        return pending.range(tree, from, to);
+    }
+
+    /**
+     * Returns once the write is on disk in the log.
+     *
+     * @param rawKey
+     * @param value
+     * @throws IOException
+     */
+    public void put(byte[] rawKey, byte[] value) throws IOException {
+        write(rawKey, Optional.of(value));
+    }
+
+    /**
+     * Returns once the delete is on disk in the log.
+     *
+     * @param rawKey
+     * @throws IOException
+     */
+    public void delete(byte[] rawKey) throws IOException {
+        write(rawKey, Optional.empty());
+    }
+
+    /**
+     * Apply every write so far to the tree, and record its root as the point to recover from.
+     *
+     * @return hash of the new tree root
+     * @throws IOException
+     */
+    public byte[] checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long applied;
+            FileChannel old;
+            SortedMap<ByteArrayWrapper, Optional<byte[]>> changes;
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (pending.isEmpty() && checkpointed == generation)
+                        return checkpointedRoot;
+                    // everything appended so far is then on disk, so move new writes to a new log
+                    log.force(false);
+                    synced = appended;
+                    old = log;
+                    log = FileChannel.open(logPath(generation + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    // writes to the new log can't be acknowledged until it can't vanish in a crash
+                    syncDirectory();
+                    applied = ++generation;
+                    changes = pending.take();
+                    checkpointQueued = false;
+                }
+            }
+            old.close();
+            byte[] root = changes.isEmpty() ? tree.root.hash.get() : tree.apply(changes);
+            tree.storage.sync();
+            writeRoot(root, applied);
+            synchronized (this) {
+                pending.applied();
+                checkpointed = applied;
+                checkpointedRoot = root;
+                failure = null;
+            }
+            for (long logGeneration : logGenerations())
+                if (logGeneration < applied)
+                    Files.delete(logPath(logGeneration));
+            syncDirectory();
+            return root;
+        }
+    }
+
+    /**
+     *
+     * @return the roots whose nodes compaction must keep, the last one checkpointed and any newer one
+     */
+    public synchronized Collection<byte[]> roots() {
+        byte[] current = tree.root.hash.get();
+        if (Arrays.equals(current, checkpointedRoot))
+            return Collections.singletonList(current);
+        return Arrays.asList(checkpointedRoot, current);
+    }
+
+    /**
+     * Checkpoint and stop.
+     *
+     * @throws IOException if the final checkpoint failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                log.close();
+            }
+        }
+    }
+
+    private void write(byte[] rawKey, Optional<byte[]> value) throws IOException {
+        int valueLength = value.map(v -> v.length).orElse(0);
+        ByteBuffer record = ByteBuffer.allocate(16 + rawKey.length + valueLength);
+        record.putInt(8 + rawKey.length + valueLength);
+        record.putInt(0);
+        record.putInt(rawKey.length);
+        record.put(rawKey);
+        record.putInt(value.isPresent() ? valueLength : -1);
+        value.ifPresent(record::put);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long sequence;
+        boolean full;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Tree is closed!");
+            // stop taking writes which no checkpoint can apply
+            if (failure != null)
+                throw new IOException("Checkpoint failed", failure);
+            while (record.hasRemaining())
+                log.write(record);
+            full = pending.put(new ByteArrayWrapper(rawKey), value) >= maxPending && !checkpointQueued;
+            sequence = ++appended;
+            if (full)
+                checkpointQueued = true;
+        }
+        sync(sequence);
+        if (full)
+            checkpointer.execute(this::checkpointInBackground);
+    }
+
+    /**
+     * Wait until the write with the given sequence number is on disk. Whoever forces the log first forces it for
+     * every write appended by then.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= sequence)
+                return;
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                channel = log;
+                target = appended;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    private void checkpointInBackground() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            // stores report write failures unchecked, which would also cancel the periodic checkpoint
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+    }
+
+    private void replay(Path path) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < 8 || length > in.remaining())
+                return;
+            crc.reset();
+            crc.update(in.array(), in.position(), length);
+            if ((int) crc.getValue() != expected)
+                return;
+            byte[] key = new byte[in.getInt()];
+            in.get(key);
+            int valueLength = in.getInt();
+            Optional<byte[]> value = Optional.empty();
+            if (valueLength >= 0) {
+                value = Optional.of(new byte[valueLength]);
+                in.get(value.get());
+            }
+            pending.put(new ByteArrayWrapper(key), value);
+        }
+    }
+
+    /**
+     * Replace the root file, so a crash leaves either the old one or the new one.
+     */
+    private void writeRoot(byte[] root, long generation) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(12 + root.length);
+        out.putLong(generation);
+        out.putInt(root.length);
+        out.put(root);
+        out.flip();
+        Path temp = dir.resolve(ROOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining())
+                channel.write(out);
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(ROOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * Force the directory's entries to disk, so the files created, renamed and deleted in it stay that way.
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path logPath(long generation) {
+        return dir.resolve(LOG + generation);
+    }
+
+    private SortedSet<Long> logGenerations() throws IOException {
+        SortedSet<Long> res = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, LOG + "*")) {
+            for (Path file : files)
+                res.add(Long.parseLong(file.getFileName().toString().substring(LOG.length())));
+        }
+        return res;
+    }
+}
@@ -1,23 +1,200 @@
 package merklebtree;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.function.*;
 
 public class MerkleBTree
 {
     public final ContentAddressedStorage storage;
     public final int maxChildren;
-    public TreeNode root;
+    public volatile TreeNode root;
+    private final boolean readOnly;
+    // whether the shape depends only on the keys, with maxChildren as the target fanout
+    private final boolean canonical;
+    // values larger than this are stored in their own blocks, or -1 if values are stored inline without a tag
+    private final int valueThreshold;
+    // once other trees may share our nodes, we stop removing the nodes we replace and leave them to compaction
+    private volatile boolean retain;
+    private volatile TreeListener listener = TreeListener.NONE;
+    // reads subtrees in parallel for whole tree operations, or null to read them one at a time
+    private volatile ParallelTraversal traversal;
 
     public MerkleBTree(TreeNode root, ContentAddressedStorage storage, int maxChildren) {
         this.storage = storage;
         byte[] hash = this.storage.put(root.serialize());
-        this.root = new TreeNode(root.keys, hash);
+        this.root = root.withHash(hash);
         this.maxChildren = maxChildren;
+        this.readOnly = false;
+        this.canonical = false;
+        this.valueThreshold = -1;
+    }
+
+    MerkleBTree(TreeNode root, ContentAddressedStorage storage, int maxChildren, boolean readOnly) {
+        this(root, storage, maxChildren, readOnly, false, -1);
+    }
+
+    private MerkleBTree(TreeNode root, ContentAddressedStorage storage, int maxChildren, boolean readOnly, boolean canonical,
+                        int valueThreshold) {
+        this.storage = storage;
+        this.root = root;
+        this.maxChildren = maxChildren;
+        this.readOnly = readOnly;
+        this.canonical = canonical;
+        this.valueThreshold = valueThreshold;
+        this.retain = true;
     }
 
     public MerkleBTree() {
-        this(new TreeNode(new TreeSet<>()), new RAMStorage(), 16);
+        this(TreeNode.empty(), new RAMStorage(), 16);
+    }
+
+    /**
+     * Open the tree with the given root without writing anything, which only reads the root node. Other versions
+     * may share its nodes, so it never removes the nodes it replaces.
+     *
+     * @param rootHash
+     * @param storage
+     * @param maxChildren
+     * @return a writable tree
+     * @throws IOException
+     */
+    public static MerkleBTree open(byte[] rootHash, ContentAddressedStorage storage, int maxChildren) throws IOException {
+        return new MerkleBTree(storage.getNode(rootHash), storage, maxChildren, false);
+    }
+
+    /**
+     *
+     * @param rootHash
+     * @param storage
+     * @param maxChildren
+     * @return a tree with the given root which can't be modified
+     * @throws IOException
+     */
+    public static MerkleBTree openReadOnly(byte[] rootHash, ContentAddressedStorage storage, int maxChildren) throws IOException {
+        return new MerkleBTree(storage.getNode(rootHash), storage, maxChildren, true);
+    }
+
+    /**
+     * An empty tree whose shape depends only on the keys in it, so trees with the same contents have the same root
+     * hash and share every node, however and in whatever order they were written. Each key's level comes from its
+     * hash, and nodes hold the keys of one level, so the number of children of a node varies around the target.
+     * Identical subtrees can occur more than once, so the tree never removes the nodes it replaces and leaves them
+     * to compaction.
+     *
+     * @param storage
+     * @param targetFanout the average number of children of a node, at least 2
+     * @return the new tree
+     */
+    public static MerkleBTree canonical(ContentAddressedStorage storage, int targetFanout) {
+        if (targetFanout < 2)
+            throw new IllegalArgumentException("Fanout must be at least 2!");
+        TreeNode root = TreeNode.empty();
+        return new MerkleBTree(root.withHash(storage.put(root.serialize())), storage, targetFanout, false, true, -1);
+    }
+
+    /**
+     * Open a tree written with canonical(), which keeps its canonical shape.
+     *
+     * @param rootHash
+     * @param storage
+     * @param targetFanout the fanout the tree was written with
+     * @return a writable tree
+     * @throws IOException
+     */
+    public static MerkleBTree openCanonical(byte[] rootHash, ContentAddressedStorage storage, int targetFanout) throws IOException {
+        return new MerkleBTree(storage.getNode(rootHash), storage, targetFanout, false, true, -1);
+    }
+
+    /**
+     * An empty tree which stores values larger than a threshold in their own blocks, and smaller ones inline in its
+     * nodes. Rewriting a node then only rehashes the references to its large values. Equal values share a block, so
+     * the tree never removes value blocks when their keys change, and leaves them to compaction.
+     *
+     * @param storage
+     * @param maxChildren
+     * @param valueThreshold the size of the largest value to store inline
+     * @return the new tree
+     */
+    public static MerkleBTree withValueBlocks(ContentAddressedStorage storage, int maxChildren, int valueThreshold) {
+        if (valueThreshold < 0)
+            throw new IllegalArgumentException("Negative value threshold!");
+        TreeNode root = TreeNode.empty();
+        MerkleBTree tree = new MerkleBTree(root.withHash(storage.put(root.serialize())), storage, maxChildren, false, false, valueThreshold);
+        tree.retain = false;
+        return tree;
+    }
+
+    /**
+     * Open a tree written with withValueBlocks(). The threshold only affects new values, so it can differ from the
+     * one the tree was written with.
+     *
+     * @param rootHash
+     * @param storage
+     * @param maxChildren
+     * @param valueThreshold the size of the largest value to store inline
+     * @return a writable tree
+     * @throws IOException
+     */
+    public static MerkleBTree openWithValueBlocks(byte[] rootHash, ContentAddressedStorage storage, int maxChildren,
+                                                  int valueThreshold) throws IOException {
+        if (valueThreshold < 0)
+            throw new IllegalArgumentException("Negative value threshold!");
+        return new MerkleBTree(storage.getNode(rootHash), storage, maxChildren, false, false, valueThreshold);
+    }
+
+    /**
+     * A consistent read-only view of the tree as it is now, which is unaffected by later writes. From now on this
+     * tree no longer removes the nodes it replaces, as the snapshot may need them.
+     *
+     * @return the snapshot
+     */
+    public synchronized MerkleBTree snapshot() {
+        retain = true;
+        return new MerkleBTree(root, storage, maxChildren, true, canonical, valueThreshold);
+    }
+
+    /**
+     * A writable copy of the tree as it is now, which shares all its nodes with this tree. From now on neither tree
+     * removes the nodes it replaces.
+     *
+     * @return the new tree
+     */
+    public synchronized MerkleBTree fork() {
+        retain = true;
+        return new MerkleBTree(root, storage, maxChildren, false, canonical, valueThreshold);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    public boolean hasValueBlocks() {
+        return valueThreshold >= 0;
+    }
+
+    /**
+     * Report the timing of each operation and the splits, rotations and merges it makes. To also see its storage
+     * reads and writes, give the tree a MetricsStorage with the same listener.
+     *
+     * @param listener the listener, or TreeListener.NONE for none
+     */
+    public void setListener(TreeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Read subtrees in parallel in whole tree operations, like size() on a tree without subtree counts and verify().
+     *
+     * @param traversal a traversal over this tree's storage, or null to read subtrees one at a time
+     */
+    public void setTraversal(ParallelTraversal traversal) {
+        this.traversal = traversal;
     }
 
     /**
@@ -27,7 +204,29 @@ public class MerkleBTree
      * @throws IOException
      */
     public byte[] get(byte[] rawKey) throws IOException {
-        return root.get(new ByteArrayWrapper(rawKey), storage);
+        TreeListener listener = this.listener;
+        if (listener == TreeListener.NONE)
+            return resolve(root.get(new ByteArrayWrapper(rawKey), storage));
+        long start = started(listener, TreeListener.Operation.GET);
+        try {
+            return resolve(root.get(new ByteArrayWrapper(rawKey), storage));
+        } finally {
+            listener.operation(TreeListener.Operation.GET, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Find the hash of a value without reading it, if it is in a value block.
+     *
+     * @param rawKey
+     * @return the hash of the value stored under rawKey, with the storage's hash function, or null if it is absent
+     * @throws IOException
+     */
+    public byte[] getValueHash(byte[] rawKey) throws IOException {
+        byte[] stored = root.get(new ByteArrayWrapper(rawKey), storage);
+        if (stored == null)
+            return null;
+        return hasValueBlocks() ? ValueBlocks.hash(stored, storage.hashFunction()) : storage.hashFunction().hash(stored);
     }
 
     /**
@@ -37,15 +236,23 @@ public class MerkleBTree
      * @return hash of new tree root
      * @throws IOException
      */
-    public byte[] put(byte[] rawKey, byte[] value) throws IOException {
-        TreeNode newRoot = root.put(new ByteArrayWrapper(rawKey), value, storage, maxChildren);
-        if (root.hash.isPresent())
-            storage.remove(root.hash.get());
-        if (!newRoot.hash.isPresent()) {
-            root = new TreeNode(newRoot.keys, storage.put(newRoot.serialize()));
-        } else
+    public synchronized byte[] put(byte[] rawKey, byte[] value) throws IOException {
+        TreeListener listener = this.listener;
+        long start = started(listener, TreeListener.Operation.PUT);
+        try {
+            WriteBuffer writes = new WriteBuffer(writeStorage(), listener);
+            if (hasValueBlocks())
+                value = ValueBlocks.encode(value, valueThreshold, writes);
+            TreeNode newRoot = canonical ? new CanonicalUpdate(writes, maxChildren, listener).put(root, new ByteArrayWrapper(rawKey), value)
+                    : root.put(new ByteArrayWrapper(rawKey), value, writes, maxChildren, listener);
+            if (!newRoot.hash.isPresent())
+                newRoot = newRoot.withHash(writes.put(newRoot.serialize()));
+            writes.flush();
             root = newRoot;
-        return root.hash.get();
+            return root.hash.get();
+        } finally {
+            finished(listener, TreeListener.Operation.PUT, start);
+        }
     }
 
     /**
@@ -54,15 +261,210 @@ public class MerkleBTree
      * @return hash of new tree root
      * @throws IOException
      */
-    public byte[] delete(byte[] rawKey) throws IOException {
-        TreeNode newRoot = root.delete(new ByteArrayWrapper(rawKey), storage, maxChildren);
-        if (root.hash.isPresent())
-            storage.remove(root.hash.get());
-        if (!newRoot.hash.isPresent()) {
-            root = new TreeNode(newRoot.keys, storage.put(newRoot.serialize()));
-        } else
+    public synchronized byte[] delete(byte[] rawKey) throws IOException {
+        TreeListener listener = this.listener;
+        long start = started(listener, TreeListener.Operation.DELETE);
+        try {
+            WriteBuffer writes = new WriteBuffer(writeStorage(), listener);
+            TreeNode newRoot = canonical ? new CanonicalUpdate(writes, maxChildren, listener).delete(root, new ByteArrayWrapper(rawKey))
+                    : root.delete(new ByteArrayWrapper(rawKey), writes, maxChildren, listener);
+            if (!newRoot.hash.isPresent())
+                newRoot = newRoot.withHash(writes.put(newRoot.serialize()));
+            writes.flush();
+            root = newRoot;
+            return root.hash.get();
+        } finally {
+            finished(listener, TreeListener.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * Put many keys at once. Each node touched by the batch is read, rewritten, hashed and stored only once.
+     *
+     * @param entries keys and values to put, in any order
+     * @return hash of new tree root
+     * @throws IOException
+     */
+    public byte[] putAll(Map<byte[], byte[]> entries) throws IOException {
+        SortedMap<ByteArrayWrapper, Optional<byte[]>> changes = new TreeMap<>();
+        for (Map.Entry<byte[], byte[]> e : entries.entrySet())
+            changes.put(new ByteArrayWrapper(e.getKey()), Optional.of(e.getValue()));
+        return apply(changes);
+    }
+
+    /**
+     * Delete many keys at once. Each node touched by the batch is read, rewritten, hashed and stored only once.
+     *
+     * @param rawKeys keys to delete, in any order
+     * @return hash of new tree root
+     * @throws IOException
+     */
+    public byte[] deleteAll(Collection<byte[]> rawKeys) throws IOException {
+        SortedMap<ByteArrayWrapper, Optional<byte[]>> changes = new TreeMap<>();
+        for (byte[] rawKey : rawKeys)
+            changes.put(new ByteArrayWrapper(rawKey), Optional.empty());
+        return apply(changes);
+    }
+
+    /**
+     *
+     * @param changes the new value for each key, or empty to delete it
+     * @return hash of new tree root
+     * @throws IOException
+     */
+    synchronized byte[] apply(SortedMap<ByteArrayWrapper, Optional<byte[]>> changes) throws IOException {
+        TreeListener listener = this.listener;
+        long start = started(listener, TreeListener.Operation.BATCH);
+        try {
+            WriteBuffer writes = new WriteBuffer(writeStorage(), listener);
+            if (hasValueBlocks()) {
+                SortedMap<ByteArrayWrapper, Optional<byte[]>> encoded = new TreeMap<>();
+                for (Map.Entry<ByteArrayWrapper, Optional<byte[]>> e : changes.entrySet())
+                    encoded.put(e.getKey(), e.getValue().map(value -> ValueBlocks.encode(value, valueThreshold, writes)));
+                changes = encoded;
+            }
+            TreeNode newRoot = canonical ? applyCanonical(changes, writes, listener) : applyBatch(changes, writes, listener);
+            writes.flush();
             root = newRoot;
-        return root.hash.get();
+            return root.hash.get();
+        } finally {
+            finished(listener, TreeListener.Operation.BATCH, start);
+        }
+    }
+
+    private TreeNode applyBatch(SortedMap<ByteArrayWrapper, Optional<byte[]>> changes, WriteBuffer writes,
+                                TreeListener listener) throws IOException {
+        BatchUpdate batch = new BatchUpdate(root, writes, maxChildren, listener);
+        for (Map.Entry<ByteArrayWrapper, Optional<byte[]>> e : changes.entrySet()) {
+            if (e.getValue().isPresent())
+                batch.put(e.getKey(), e.getValue().get());
+            else
+                batch.delete(e.getKey());
+        }
+        return batch.commit();
+    }
+
+    /**
+     * Apply the changes one at a time. The nodes written by one change and replaced by a later one cancel out in the
+     * write buffer, so only the final nodes reach storage.
+     */
+    private TreeNode applyCanonical(SortedMap<ByteArrayWrapper, Optional<byte[]>> changes, WriteBuffer writes,
+                                    TreeListener listener) throws IOException {
+        CanonicalUpdate update = new CanonicalUpdate(writes, maxChildren, listener);
+        TreeNode newRoot = root;
+        for (Map.Entry<ByteArrayWrapper, Optional<byte[]>> e : changes.entrySet()) {
+            if (e.getValue().isPresent())
+                newRoot = update.put(newRoot, e.getKey(), e.getValue().get());
+            else
+                newRoot = update.delete(newRoot, e.getKey());
+        }
+        return newRoot;
+    }
+
+    /**
+     * Build a tree from entries in ascending key order in a single pass, packing keys into full nodes bottom up.
+     * Only the rightmost node of each level is held in memory.
+     *
+     * @param sorted entries with unique keys in ascending order
+     * @param storage
+     * @param maxChildren
+     * @return the new tree
+     * @throws IOException
+     */
+    public static MerkleBTree bulkLoad(Iterator<Map.Entry<byte[], byte[]>> sorted, ContentAddressedStorage storage, int maxChildren) throws IOException {
+        BulkLoader loader = new BulkLoader(storage, maxChildren);
+        while (sorted.hasNext()) {
+            Map.Entry<byte[], byte[]> e = sorted.next();
+            loader.add(new ByteArrayWrapper(e.getKey()), e.getValue());
+        }
+        return new MerkleBTree(loader.finish(), storage, maxChildren);
+    }
+
+    /**
+     *
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @return the keys and values in the range in ascending key order, read lazily
+     * @throws IOException
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) throws IOException {
+        return range(from, to, false);
+    }
+
+    /**
+     * Iterate over a range of keys, holding only the path from the root to the current key in memory. The range
+     * sees the tree as it was when this is called.
+     *
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @param reverse whether to go from the highest key to the lowest
+     * @return the keys and values in the range, read lazily
+     * @throws IOException
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to, boolean reverse) throws IOException {
+        Iterator<Map.Entry<byte[], byte[]>> range = new RangeIterator(root, from, to, reverse, storage);
+        if (!hasValueBlocks())
+            return range;
+        return new Iterator<Map.Entry<byte[], byte[]>>() {
+            @Override
+            public boolean hasNext() {
+                return range.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                return resolve(range.next());
+            }
+        };
+    }
+
+    /**
+     * With a traversal set, the spliterator splits at child pointers, so parallel streams read subtrees in parallel.
+     * Otherwise it iterates over the range in order, and doesn't split.
+     *
+     * @return a spliterator over the keys and values in the range, in ascending key order
+     * @throws IOException
+     */
+    public Spliterator<Map.Entry<byte[], byte[]>> spliterator(byte[] from, byte[] to) throws IOException {
+        ParallelTraversal traversal = this.traversal;
+        TreeNode root = this.root;
+        if (traversal == null || !root.hash.isPresent())
+            return Spliterators.spliteratorUnknownSize(range(from, to),
+                    Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        Spliterator<Map.Entry<byte[], byte[]>> split = traversal.spliterator(root.hash.get(), from, to);
+        return hasValueBlocks() ? new ResolvingSpliterator(split) : split;
+    }
+
+    /**
+     * Find the keys which differ between two trees in this tree's storage. Only subtrees whose hashes differ are
+     * read, so the cost is proportional to the number of changes times the depth of the trees.
+     *
+     * @param rootA hash of the root of the first tree
+     * @param rootB hash of the root of the second tree
+     * @return the changes from the first tree to the second, in key order, read lazily
+     * @throws IOException
+     */
+    public Iterator<KeyChange> diff(byte[] rootA, byte[] rootB) throws IOException {
+        Iterator<KeyChange> diff = new TreeDiff(rootA, rootB, storage, canonical ? maxChildren : 0);
+        if (!hasValueBlocks())
+            return diff;
+        return new Iterator<KeyChange>() {
+            @Override
+            public boolean hasNext() {
+                return diff.hasNext();
+            }
+
+            @Override
+            public KeyChange next() {
+                KeyChange change = diff.next();
+                try {
+                    return new KeyChange(change.key, change.before.isPresent() ? Optional.of(resolve(change.before.get())) : Optional.empty(),
+                            change.after.isPresent() ? Optional.of(resolve(change.after.get())) : Optional.empty());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
     }
 
     /**
@@ -71,10 +473,265 @@ public class MerkleBTree
      * @throws IOException
      */
     public int size() throws IOException {
-        return root.size(storage);
+        ParallelTraversal traversal = this.traversal;
+        TreeNode root = this.root;
+        // the counts in the root give the answer without reading anything
+        if (traversal == null || root.subtreeSize() >= 0)
+            return Math.toIntExact(root.size(storage));
+        return Math.toIntExact(traversal.size(root.hash.get()));
+    }
+
+    /**
+     * Check that every node in the tree is present and matches its hash.
+     *
+     * @return the number of nodes checked
+     * @throws IOException if a node is missing or doesn't match its hash
+     */
+    public long verify() throws IOException {
+        ParallelTraversal traversal = this.traversal;
+        if (traversal != null)
+            return traversal.verify(root.hash.get());
+        try (ParallelTraversal serial = new ParallelTraversal(storage, 1, 1)) {
+            return serial.verify(root.hash.get());
+        }
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return the number of keys in the tree which are less than rawKey
+     * @throws IOException
+     */
+    public long rank(byte[] rawKey) throws IOException {
+        return root.rank(new ByteArrayWrapper(rawKey), storage);
+    }
+
+    /**
+     *
+     * @param index
+     * @return the key and value at index in key order
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if index is negative or not less than the size of the tree
+     */
+    public Map.Entry<byte[], byte[]> select(long index) throws IOException {
+        return resolve(root.select(index, storage));
+    }
+
+    /**
+     *
+     * @param rawKey
+     * @return the nodes on the path to rawKey, which prove its value or absence from the current root
+     * @throws IOException
+     */
+    public Proof prove(byte[] rawKey) throws IOException {
+        return prove(Collections.singletonList(rawKey));
+    }
+
+    /**
+     * Prove the values of many keys at once. The paths to the keys share the nodes they have in common, so the proof
+     * is smaller than one for each key.
+     *
+     * @param rawKeys
+     * @return the nodes on the paths to the keys from the current root
+     * @throws IOException
+     */
+    public Proof prove(Collection<byte[]> rawKeys) throws IOException {
+        SortedSet<ByteArrayWrapper> keys = new TreeSet<>();
+        for (byte[] rawKey : rawKeys)
+            keys.add(new ByteArrayWrapper(rawKey));
+        List<byte[]> nodes = new ArrayList<>();
+        addPaths(root.hash.get(), new ArrayList<>(keys), nodes);
+        return new Proof(nodes);
+    }
+
+    /**
+     * Check a proof without any storage access. In a tree with value blocks the value is as stored in the node, which
+     * for a large value refers to its block by hash.
+     *
+     * @param rootHash the trusted root
+     * @param rawKey
+     * @param proof
+     * @return the value of rawKey, or null if the proof shows it is absent
+     * @throws IOException if the proof doesn't prove either
+     */
+    public static byte[] verify(byte[] rootHash, byte[] rawKey, Proof proof) throws IOException {
+        return proof.verify(rootHash, rawKey);
+    }
+
+    /**
+     * Add the node with the given hash, then the paths under it to each of the sorted keys, depth first.
+     */
+    private void addPaths(byte[] hash, List<ByteArrayWrapper> keys, List<byte[]> nodes) throws IOException {
+        byte[] raw = storage.get(hash);
+        if (raw == null)
+            throw new IOException("Missing node " + ByteArrayWrapper.bytesToHex(hash));
+        nodes.add(raw);
+        TreeNode node = TreeNode.deserialize(raw, Optional.of(hash));
+        if (node.isLeaf())
+            return;
+        int start = 0;
+        while (start < keys.size()) {
+            int index = node.search(keys.get(start).data);
+            if (index >= 0) {
+                // the key is in this node
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < keys.size() && node.search(keys.get(end).data) == index)
+                end++;
+            addPaths(node.children[-index - 2], keys.subList(start, end), nodes);
+            start = end;
+        }
     }
 
     public void print(PrintStream w) throws IOException {
         root.print(w, 0, storage);
     }
+
+    /**
+     *
+     * @param stored a value from a node, or null
+     * @return the value, read from its block if it has one
+     * @throws IOException
+     */
+    private byte[] resolve(byte[] stored) throws IOException {
+        return hasValueBlocks() ? ValueBlocks.decode(stored, storage) : stored;
+    }
+
+    private Map.Entry<byte[], byte[]> resolve(Map.Entry<byte[], byte[]> entry) {
+        if (!hasValueBlocks())
+            return entry;
+        try {
+            return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), ValueBlocks.decode(entry.getValue(), storage));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long started(TreeListener listener, TreeListener.Operation op) {
+        if (listener == TreeListener.NONE)
+            return 0;
+        listener.started(op);
+        return System.nanoTime();
+    }
+
+    private static void finished(TreeListener listener, TreeListener.Operation op, long start) {
+        if (listener != TreeListener.NONE)
+            listener.operation(op, System.nanoTime() - start);
+    }
+
+    /**
+     *
+     * @return the storage to write through, which ignores removes once our nodes may be shared
+     */
+    private ContentAddressedStorage writeStorage() {
+        if (readOnly)
+            throw new IllegalStateException("Tree is read only!");
+        return retain ? new RetainingStorage(storage) : storage;
+    }
+
+    /**
+     * Reads the values in value blocks of the entries from a spliterator over our nodes, and of those it splits off.
+     */
+    private class ResolvingSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+        private final Spliterator<Map.Entry<byte[], byte[]>> target;
+
+        public ResolvingSpliterator(Spliterator<Map.Entry<byte[], byte[]>> target) {
+            this.target = target;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+            return target.tryAdvance(entry -> action.accept(resolve(entry)));
+        }
+
+        @Override
+        public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+            Spliterator<Map.Entry<byte[], byte[]>> prefix = target.trySplit();
+            return prefix == null ? null : new ResolvingSpliterator(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return target.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return target.characteristics();
+        }
+    }
+
+    /**
+     * Passes everything through to the target except removes, for when other roots may still use the nodes we replace.
+     */
+    static class RetainingStorage implements ContentAddressedStorage {
+        private final ContentAddressedStorage target;
+
+        public RetainingStorage(ContentAddressedStorage target) {
+            this.target = target;
+        }
+
+        @Override
+        public byte[] put(byte[] value) {
+            return target.put(value);
+        }
+
+        @Override
+        public HashFunction hashFunction() {
+            return target.hashFunction();
+        }
+
+        @Override
+        public List<byte[]> putMany(List<byte[]> values) {
+            return target.putMany(values);
+        }
+
+        @Override
+        public void putMany(List<byte[]> hashes, List<byte[]> values) {
+            target.putMany(hashes, values);
+        }
+
+        @Override
+        public byte[] get(byte[] key) {
+            return target.get(key);
+        }
+
+        @Override
+        public List<byte[]> getMany(List<byte[]> keys) {
+            return target.getMany(keys);
+        }
+
+        @Override
+        public ByteBuffer getBuffer(byte[] key) {
+            return target.getBuffer(key);
+        }
+
+        @Override
+        public TreeNode getNode(byte[] key) throws IOException {
+            return target.getNode(key);
+        }
+
+        @Override
+        public TreeNode getNode(byte[] key, TreeListener listener) throws IOException {
+            return target.getNode(key, listener);
+        }
+
+        @Override
+        public void prefetch(byte[] key) {
+            target.prefetch(key);
+        }
+
+        @Override
+        public void sync() throws IOException {
+            target.sync();
+        }
+
+        @Override
+        public void remove(byte[] key) {}
+
+        @Override
+        public void removeMany(List<byte[]> keys) {}
+    }
 }
@@ -0,0 +1,261 @@
+package merklebtree;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A listener which totals every event, and keeps histograms per operation of latency and of the blocks read, written
+ * and hashed. Storage events are attributed to the operation running on the same thread, so give the tree a
+ * MetricsStorage with this as its listener. Blocks read outside any operation, by range iteration, size(), proofs and
+ * diffs, are counted separately.
+ */
+public class Metrics implements TreeListener {
+    private final LongAdder splits = new LongAdder(), rotations = new LongAdder(), merges = new LongAdder();
+    private final LongAdder blocksRead = new LongAdder(), bytesRead = new LongAdder(), nodesRead = new LongAdder();
+    private final LongAdder blocksWritten = new LongAdder(), bytesWritten = new LongAdder(), blocksRemoved = new LongAdder();
+    private final LongAdder hashes = new LongAdder(), bytesHashed = new LongAdder(), readsOutsideOperations = new LongAdder();
+    private final Map<Operation, Histogram> latency = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> readsPerOperation = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> writesPerOperation = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> hashesPerOperation = new EnumMap<>(Operation.class);
+    // the blocks read, written and hashed by the operation in progress on each thread, and 1 while there is one
+    private final ThreadLocal<long[]> current = ThreadLocal.withInitial(() -> new long[4]);
+
+    public Metrics() {
+        for (Operation op : Operation.values()) {
+            latency.put(op, new Histogram());
+            readsPerOperation.put(op, new Histogram());
+            writesPerOperation.put(op, new Histogram());
+            hashesPerOperation.put(op, new Histogram());
+        }
+    }
+
+    @Override
+    public void started(Operation op) {
+        long[] counts = current.get();
+        Arrays.fill(counts, 0);
+        counts[3] = 1;
+    }
+
+    @Override
+    public void operation(Operation op, long nanos) {
+        long[] counts = current.get();
+        try {
+            latency.get(op).record(nanos);
+            readsPerOperation.get(op).record(counts[0]);
+            writesPerOperation.get(op).record(counts[1]);
+            hashesPerOperation.get(op).record(counts[2]);
+        } finally {
+            Arrays.fill(counts, 0);
+        }
+    }
+
+    @Override
+    public void split() {
+        splits.increment();
+    }
+
+    @Override
+    public void rotate() {
+        rotations.increment();
+    }
+
+    @Override
+    public void merge() {
+        merges.increment();
+    }
+
+    @Override
+    public void blockRead(int bytes) {
+        blocksRead.increment();
+        bytesRead.add(bytes);
+        long[] counts = current.get();
+        if (counts[3] != 0)
+            counts[0]++;
+        else
+            readsOutsideOperations.increment();
+    }
+
+    @Override
+    public void nodeRead() {
+        nodesRead.increment();
+    }
+
+    @Override
+    public void blockWritten(int bytes) {
+        blocksWritten.increment();
+        bytesWritten.add(bytes);
+        current.get()[1]++;
+    }
+
+    @Override
+    public void hashed(int bytes) {
+        hashes.increment();
+        bytesHashed.add(bytes);
+        current.get()[2]++;
+    }
+
+    @Override
+    public void blockRemoved() {
+        blocksRemoved.increment();
+    }
+
+    public long splits() {
+        return splits.sum();
+    }
+
+    public long rotations() {
+        return rotations.sum();
+    }
+
+    public long merges() {
+        return merges.sum();
+    }
+
+    public long blocksRead() {
+        return blocksRead.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     *
+     * @return the number of blocks read on threads with no operation in progress
+     */
+    public long readsOutsideOperations() {
+        return readsOutsideOperations.sum();
+    }
+
+    /**
+     *
+     * @return the number of nodes deserialized, which doesn't include those found decoded in a cache
+     */
+    public long nodesRead() {
+        return nodesRead.sum();
+    }
+
+    /**
+     *
+     * @return the number of blocks given to storage to write
+     */
+    public long blocksWritten() {
+        return blocksWritten.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long blocksRemoved() {
+        return blocksRemoved.sum();
+    }
+
+    /**
+     *
+     * @return the number of blocks and keys hashed
+     */
+    public long hashes() {
+        return hashes.sum();
+    }
+
+    public long bytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    /**
+     *
+     * @param op
+     * @return the latency of op in nanoseconds
+     */
+    public Histogram latency(Operation op) {
+        return latency.get(op);
+    }
+
+    /**
+     *
+     * @param op
+     * @return the number of blocks read by each op
+     */
+    public Histogram readsPerOperation(Operation op) {
+        return readsPerOperation.get(op);
+    }
+
+    /**
+     *
+     * @param op
+     * @return the number of blocks written by each op
+     */
+    public Histogram writesPerOperation(Operation op) {
+        return writesPerOperation.get(op);
+    }
+
+    /**
+     *
+     * @param op
+     * @return the number of blocks and keys hashed by each op
+     */
+    public Histogram hashesPerOperation(Operation op) {
+        return hashesPerOperation.get(op);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append(String.format("read %d blocks (%d bytes, %d outside operations), %d nodes; wrote %d blocks (%d bytes); hashed %d (%d bytes); removed %d; %d splits, %d rotations, %d merges%n",
+                blocksRead(), bytesRead(), readsOutsideOperations(), nodesRead(), blocksWritten(), bytesWritten(), hashes(), bytesHashed(), blocksRemoved(),
+                splits(), rotations(), merges()));
+        for (Operation op : Operation.values()) {
+            Histogram h = latency(op);
+            if (h.count() == 0)
+                continue;
+            res.append(String.format("%s: %d ops, latency p50 %dns p99 %dns, reads p50 %d, writes p50 %d, hashes p50 %d%n", op, h.count(),
+                    h.percentile(0.5), h.percentile(0.99), readsPerOperation(op).percentile(0.5), writesPerOperation(op).percentile(0.5),
+                    hashesPerOperation(op).percentile(0.5)));
+        }
+        return res.toString();
+    }
+
+    /**
+     * Counts values in power of two buckets, so percentiles are accurate to within a factor of two.
+     */
+    public static class Histogram {
+        // bucket i holds values v with 2^(i-1) <= v < 2^i, and bucket 0 holds 0
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+        public void record(long value) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         *
+         * @param fraction between 0 and 1
+         * @return the upper bound of the bucket holding the given fraction of values, or 0 if there are none
+         */
+        public long percentile(double fraction) {
+            long n = count();
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * n), seen = 0;
+            for (int i = 0; i < 65; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank))
+                    return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reports every read, write and remove to a listener on its way to the target store. Node reads take the listener
+ * down to whichever store decodes them, so a NodeCache below, however deeply wrapped, only reports its misses. Below a
+ * NodeCache it sees only the reads which miss the cache.
+ */
+public class MetricsStorage implements ContentAddressedStorage {
+    private final ContentAddressedStorage target;
+    private final TreeListener listener;
+
+    public MetricsStorage(ContentAddressedStorage target, TreeListener listener) {
+        this.target = target;
+        this.listener = listener;
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return target.hashFunction();
+    }
+
+    @Override
+    public byte[] put(byte[] value) {
+        listener.blockWritten(value.length);
+        listener.hashed(value.length);
+        return target.put(value);
+    }
+
+    @Override
+    public List<byte[]> putMany(List<byte[]> values) {
+        for (byte[] value : values) {
+            listener.blockWritten(value.length);
+            listener.hashed(value.length);
+        }
+        return target.putMany(values);
+    }
+
+    @Override
+    public void putMany(List<byte[]> hashes, List<byte[]> values) {
+        for (byte[] value : values)
+            listener.blockWritten(value.length);
+        target.putMany(hashes, values);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] res = target.get(key);
+        if (res != null)
+            listener.blockRead(res.length);
+        return res;
+    }
+
+    @Override
+    public List<byte[]> getMany(List<byte[]> keys) {
+        List<byte[]> res = target.getMany(keys);
+        for (byte[] value : res)
+            if (value != null)
+                listener.blockRead(value.length);
+        return res;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(byte[] key) {
+        ByteBuffer res = target.getBuffer(key);
+        if (res != null)
+            listener.blockRead(res.remaining());
+        return res;
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key) throws IOException {
+        return target.getNode(key, listener);
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key, TreeListener outer) throws IOException {
+        if (outer == TreeListener.NONE || outer == listener)
+            return target.getNode(key, listener);
+        // only reads are reported while reading a node
+        return target.getNode(key, new TreeListener() {
+            @Override
+            public void blockRead(int bytes) {
+                listener.blockRead(bytes);
+                outer.blockRead(bytes);
+            }
+
+            @Override
+            public void nodeRead() {
+                listener.nodeRead();
+                outer.nodeRead();
+            }
+        });
+    }
+
+    @Override
+    public void prefetch(byte[] key) {
+        target.prefetch(key);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        target.sync();
+    }
+
+    @Override
+    public void remove(byte[] key) {
+        listener.blockRemoved();
+        target.remove(key);
+    }
+
+    @Override
+    public void removeMany(List<byte[]> keys) {
+        for (int i=0; i < keys.size(); i++)
+            listener.blockRemoved();
+        target.removeMany(keys);
+    }
+}
@@ -0,0 +1,218 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A bounded cache of blocks and decoded tree nodes, keyed by hash, in front of another store. Blocks are immutable by
+ * hash, so entries only need to be dropped when they are removed, and the least recently used ones are evicted once
+ * the cache exceeds its size in bytes.
+ */
+public class NodeCache implements ContentAddressedStorage {
+    // rough heap cost of a cache entry, and of each key element in a decoded node
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int ELEMENT_OVERHEAD = 80;
+
+    private final ContentAddressedStorage target;
+    private final long maxBytes;
+    private final LinkedHashMap<ByteArrayWrapper, CachedNode> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes, hits, misses;
+
+    public NodeCache(ContentAddressedStorage target, long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Negative cache size!");
+        this.target = target;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return target.hashFunction();
+    }
+
+    @Override
+    public byte[] put(byte[] value) {
+        return target.put(value);
+    }
+
+    @Override
+    public List<byte[]> putMany(List<byte[]> values) {
+        return target.putMany(values);
+    }
+
+    @Override
+    public void putMany(List<byte[]> hashes, List<byte[]> values) {
+        target.putMany(hashes, values);
+    }
+
+    /**
+     * Blocks are cached too, so lookups that read nodes in place with NodeView also avoid the target store.
+     */
+    @Override
+    public byte[] get(byte[] key) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(key);
+        synchronized (this) {
+            CachedNode cached = nodes.get(hash);
+            if (cached != null) {
+                hits++;
+                return cached.raw;
+            }
+            misses++;
+        }
+        byte[] raw = target.get(key);
+        if (raw != null)
+            cache(hash, new CachedNode(raw, null));
+        return raw;
+    }
+
+    /**
+     * Only the blocks which aren't cached are read from the target, in one batch.
+     */
+    @Override
+    public List<byte[]> getMany(List<byte[]> keys) {
+        List<byte[]> res = new ArrayList<>(keys.size());
+        List<byte[]> missing = new ArrayList<>();
+        synchronized (this) {
+            for (byte[] key : keys) {
+                CachedNode cached = nodes.get(new ByteArrayWrapper(key));
+                if (cached != null) {
+                    hits++;
+                    res.add(cached.raw);
+                } else {
+                    misses++;
+                    res.add(null);
+                    missing.add(key);
+                }
+            }
+        }
+        if (missing.isEmpty())
+            return res;
+        Iterator<byte[]> fetched = target.getMany(missing).iterator();
+        for (int i=0; i < res.size(); i++) {
+            if (res.get(i) != null)
+                continue;
+            byte[] raw = fetched.next();
+            res.set(i, raw);
+            if (raw != null)
+                cache(new ByteArrayWrapper(keys.get(i)), new CachedNode(raw, null));
+        }
+        return res;
+    }
+
+    @Override
+    public void prefetch(byte[] key) {
+        target.prefetch(key);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        target.sync();
+    }
+
+    @Override
+    public void remove(byte[] key) {
+        evict(key);
+        target.remove(key);
+    }
+
+    @Override
+    public void removeMany(List<byte[]> keys) {
+        synchronized (this) {
+            for (byte[] key : keys)
+                evict(key);
+        }
+        target.removeMany(keys);
+    }
+
+    private synchronized void evict(byte[] key) {
+        CachedNode existing = nodes.remove(new ByteArrayWrapper(key));
+        if (existing != null)
+            bytes -= existing.size;
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key) throws IOException {
+        return getNode(key, TreeListener.NONE);
+    }
+
+    /**
+     * Only the blocks read from the target and the nodes decoded here are reported.
+     */
+    @Override
+    public TreeNode getNode(byte[] key, TreeListener listener) throws IOException {
+        ByteArrayWrapper hash = new ByteArrayWrapper(key);
+        byte[] raw = null;
+        synchronized (this) {
+            CachedNode cached = nodes.get(hash);
+            if (cached != null && cached.node != null) {
+                hits++;
+                return cached.node;
+            }
+            if (cached != null) {
+                hits++;
+                raw = cached.raw;
+            } else
+                misses++;
+        }
+        if (raw == null) {
+            raw = target.get(key);
+            if (raw != null)
+                listener.blockRead(raw.length);
+        }
+        TreeNode node = TreeNode.deserialize(raw, Optional.of(key));
+        listener.nodeRead();
+        cache(hash, new CachedNode(raw, node));
+        return node;
+    }
+
+    private synchronized void cache(ByteArrayWrapper hash, CachedNode entry) {
+        if (entry.size > maxBytes)
+            return;
+        CachedNode existing = nodes.put(hash, entry);
+        if (existing != null)
+            bytes -= existing.size;
+        bytes += entry.size;
+        Iterator<CachedNode> lru = nodes.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= lru.next().size;
+            lru.remove();
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     *
+     * @return the estimated heap size of the cached nodes in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    public synchronized void clear() {
+        nodes.clear();
+        bytes = 0;
+    }
+
+    private static class CachedNode {
+        public final byte[] raw;
+        public final TreeNode node; // null until the node is first decoded
+        public final long size;
+
+        public CachedNode(byte[] raw, TreeNode node) {
+            this.raw = raw;
+            this.node = node;
+            this.size = ENTRY_OVERHEAD + raw.length + (node == null ? 0 : (long) ELEMENT_OVERHEAD * node.keys.length);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The serialized form of a TreeNode. Version 3 is:
+ *
+ *   byte    version (3)
+ *   byte    width of every child hash, 0 in a leaf, or VARIABLE_WIDTH if each hash has a varint length prefix
+ *   byte    width of each offset in the offset table, 2 or 4
+ *   varint  number of elements, including the leading element with the empty key
+ *   varint  length of the prefix shared by all non-empty keys, followed by the prefix
+ *   offset table: the big endian position of each element from the start of the node
+ *   for each element:
+ *     varint  length of the key after the shared prefix, followed by those bytes (absent for the first element)
+ *     varint  length of the value, followed by the value
+ *     child hash, of the width given above
+ *     varint  one more than the number of keys under the child, or 0 if that isn't known (absent in a leaf)
+ *
+ * Version 2 is the same without the child counts, and version 1 is also without the offset width and offset table.
+ * The offset table lets NodeView binary search the keys in place.
+ *
+ * Legacy nodes start with a 4 byte element count, whose first byte is always 0, and then have a 4 byte length before
+ * every key, value and child hash.
+ */
+class NodeFormat {
+    public static final int VERSION = 3;
+    public static final int VARIABLE_WIDTH = 0xff;
+
+    public static byte[] encode(TreeNode node) {
+        byte[][] keys = node.keys, values = node.values, children = node.children;
+        long[] counts = node.counts;
+        int n = keys.length;
+        // find the prefix shared by all non-empty keys, and whether all the child hashes are the same width
+        int prefix = n > 1 ? keys[1].length : 0;
+        int width = children[0].length;
+        for (int i=0; i < n; i++) {
+            if (children[i].length != width)
+                width = VARIABLE_WIDTH;
+            if (i > 1)
+                prefix = commonPrefix(keys[1], keys[i], prefix);
+        }
+        if (width >= VARIABLE_WIDTH)
+            width = VARIABLE_WIDTH;
+
+        int size = 3 + varintSize(n) + varintSize(prefix) + prefix;
+        for (int i=0; i < n; i++) {
+            if (i > 0)
+                size += varintSize(keys[i].length - prefix) + keys[i].length - prefix;
+            size += varintSize(values[i].length) + values[i].length;
+            if (width == VARIABLE_WIDTH)
+                size += varintSize(children[i].length);
+            size += children[i].length;
+            if (width != 0)
+                size += varintSize(counts[i] + 1);
+        }
+        int offsetWidth = size + 2 * n <= 0xffff ? 2 : 4;
+        size += offsetWidth * n;
+
+        byte[] res = new byte[size];
+        res[0] = VERSION;
+        res[1] = (byte) width;
+        res[2] = (byte) offsetWidth;
+        int pos = writeVarint(res, 3, n);
+        pos = writeVarint(res, pos, prefix);
+        if (prefix > 0)
+            System.arraycopy(keys[1], 0, res, pos, prefix);
+        pos += prefix;
+        int table = pos;
+        pos += offsetWidth * n;
+        for (int i=0; i < n; i++) {
+            for (int j=0; j < offsetWidth; j++)
+                res[table++] = (byte) (pos >> 8 * (offsetWidth - 1 - j));
+            if (i > 0)
+                pos = writeBytes(res, pos, keys[i], prefix, true);
+            pos = writeBytes(res, pos, values[i], 0, true);
+            pos = writeBytes(res, pos, children[i], 0, width == VARIABLE_WIDTH);
+            if (width != 0)
+                pos = writeVarint(res, pos, counts[i] + 1);
+        }
+        return res;
+    }
+
+    public static TreeNode decode(ByteBuffer in, Optional<byte[]> hash) throws IOException {
+        try {
+            int version = in.get(in.position()) & 0xff;
+            if (version == 0)
+                return decodeLegacy(in, hash);
+            if (version > VERSION)
+                throw new IOException("Unknown node format version " + version);
+            in.get();
+            int width = in.get() & 0xff;
+            int offsetWidth = version >= 2 ? in.get() : 0;
+            int n = readVarint(in);
+            byte[] prefix = readBytes(in, readVarint(in));
+            in.position(in.position() + offsetWidth * n);
+            byte[][] keys = new byte[n][], values = new byte[n][], children = new byte[n][];
+            boolean hasCounts = version >= 3 && width != 0;
+            long[] counts = new long[n];
+            if (width != 0)
+                Arrays.fill(counts, -1);
+            for (int i=0; i < n; i++) {
+                keys[i] = new byte[0];
+                if (i > 0) {
+                    keys[i] = new byte[prefix.length + readVarint(in)];
+                    System.arraycopy(prefix, 0, keys[i], 0, prefix.length);
+                    in.get(keys[i], prefix.length, keys[i].length - prefix.length);
+                }
+                values[i] = readBytes(in, readVarint(in));
+                children[i] = readBytes(in, width == VARIABLE_WIDTH ? readVarint(in) : width);
+                if (hasCounts)
+                    counts[i] = readVarlong(in) - 1;
+            }
+            return new TreeNode(keys, values, children, counts, hash);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new IOException("Corrupt node", e);
+        }
+    }
+
+    private static TreeNode decodeLegacy(ByteBuffer in, Optional<byte[]> hash) {
+        int n = in.getInt();
+        byte[][] keys = new byte[n][], values = new byte[n][], children = new byte[n][];
+        for (int i=0; i < n; i++) {
+            keys[i] = readBytes(in, in.getInt());
+            values[i] = readBytes(in, in.getInt());
+            children[i] = readBytes(in, in.getInt());
+        }
+        return new TreeNode(keys, values, children, hash);
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b, int max) {
+        int limit = Math.min(max, b.length);
+        for (int i=0; i < limit; i++)
+            if (a[i] != b[i])
+                return i;
+        return limit;
+    }
+
+    private static int writeBytes(byte[] out, int pos, byte[] data, int offset, boolean withLength) {
+        if (withLength)
+            pos = writeVarint(out, pos, data.length - offset);
+        System.arraycopy(data, offset, out, pos, data.length - offset);
+        return pos + data.length - offset;
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) {
+        byte[] res = new byte[length];
+        in.get(res);
+        return res;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long readVarlong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+}
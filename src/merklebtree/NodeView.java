@@ -0,0 +1,238 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A read-only view of a serialized node, which binary searches its keys in place using the offset table, without
+ * decoding the node or allocating anything per element. Only nodes in version 2 or later can be viewed.
+ */
+public class NodeView {
+    private ByteBuffer raw;
+    private int base, version, width, offsetWidth, size, prefix, prefixLength, table;
+
+    /**
+     * Find the value for a key in the subtree under the node with the given hash, reading each node in place.
+     *
+     * @param hash
+     * @param key
+     * @param storage
+     * @return the value, or null if the key isn't present
+     * @throws IOException
+     */
+    public static byte[] get(byte[] hash, ByteArrayWrapper key, ContentAddressedStorage storage) throws IOException {
+        NodeView view = new NodeView();
+        while (true) {
+            ByteBuffer buf = storage.getBuffer(hash);
+            if (buf == null)
+                throw new IllegalArgumentException("Null byte[]!");
+            if (!view.wrap(buf))
+                return TreeNode.deserialize(buf, Optional.of(hash)).get(key, storage);
+            int index = view.search(key.data);
+            if (index >= 0)
+                return view.value(index);
+            if (view.isLeaf())
+                return null;
+            hash = view.child(-index - 2);
+        }
+    }
+
+    /**
+     * Point this view at a serialized node.
+     *
+     * @param raw the node, from its current position
+     * @return false if the node is in an older format, which can't be viewed
+     * @throws IOException
+     */
+    public boolean wrap(ByteBuffer raw) throws IOException {
+        this.raw = raw;
+        base = raw.position();
+        version = raw.get(base);
+        if (version < 2 || version > NodeFormat.VERSION)
+            return false;
+        try {
+            width = raw.get(base + 1) & 0xff;
+            offsetWidth = raw.get(base + 2);
+            int pos = base + 3;
+            size = readVarint(pos);
+            pos += NodeFormat.varintSize(size);
+            prefixLength = readVarint(pos);
+            prefix = pos + NodeFormat.varintSize(prefixLength);
+            table = prefix + prefixLength;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt node", e);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of elements, including the leading one with the empty key
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isLeaf() {
+        return width == 0;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the index of the element with key, if present, otherwise (-(insertion point) - 1)
+     */
+    public int search(byte[] key) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    public byte[] key(int index) {
+        if (index == 0)
+            return new byte[0];
+        int pos = offset(index);
+        int suffixLength = readVarint(pos);
+        pos += NodeFormat.varintSize(suffixLength);
+        byte[] res = new byte[prefixLength + suffixLength];
+        for (int i=0; i < prefixLength; i++)
+            res[i] = raw.get(prefix + i);
+        for (int i=0; i < suffixLength; i++)
+            res[prefixLength + i] = raw.get(pos + i);
+        return res;
+    }
+
+    public byte[] value(int index) {
+        return copy(valuePosition(index));
+    }
+
+    /**
+     * Read a value only if it could refer to a value block, so other values aren't copied.
+     *
+     * @param index
+     * @return the hash of the block the value refers to, or null if it can't be a reference
+     */
+    public byte[] reference(int index) {
+        int pos = valuePosition(index);
+        int length = readVarint(pos);
+        if (length < 2 || length > HashFunction.MAX_LENGTH + 1 || raw.get(pos + NodeFormat.varintSize(length)) != ValueBlocks.BLOCK)
+            return null;
+        byte[] value = copy(pos);
+        return ValueBlocks.isReference(value) ? Arrays.copyOfRange(value, 1, value.length) : null;
+    }
+
+    /**
+     *
+     * @param index
+     * @return the hash of the child to the right of the element at index, or an empty array in a leaf
+     */
+    public byte[] child(int index) {
+        int pos = childPosition(index);
+        if (width != NodeFormat.VARIABLE_WIDTH) {
+            byte[] res = new byte[width];
+            for (int i=0; i < width; i++)
+                res[i] = raw.get(pos + i);
+            return res;
+        }
+        return copy(pos);
+    }
+
+    /**
+     *
+     * @param index
+     * @return the number of keys under the child to the right of the element at index, 0 in a leaf, or -1 if the
+     * node doesn't record it
+     */
+    public long count(int index) {
+        if (width == 0)
+            return 0;
+        if (version < 3)
+            return -1;
+        int pos = childPosition(index);
+        if (width == NodeFormat.VARIABLE_WIDTH) {
+            int length = readVarint(pos);
+            pos += NodeFormat.varintSize(length) + length;
+        } else
+            pos += width;
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = raw.get(pos++);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value - 1;
+        }
+    }
+
+    private int childPosition(int index) {
+        int pos = valuePosition(index);
+        int valueLength = readVarint(pos);
+        return pos + NodeFormat.varintSize(valueLength) + valueLength;
+    }
+
+    private int compareKey(int index, byte[] key) {
+        if (index == 0)
+            return key.length == 0 ? 0 : -1;
+        int pos = offset(index);
+        int suffixLength = readVarint(pos);
+        // keys are ordered by length first
+        if (prefixLength + suffixLength != key.length)
+            return prefixLength + suffixLength < key.length ? -1 : 1;
+        for (int i=0; i < prefixLength; i++) {
+            int cmp = (raw.get(prefix + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        pos += NodeFormat.varintSize(suffixLength);
+        for (int i=0; i < suffixLength; i++) {
+            int cmp = (raw.get(pos + i) & 0xff) - (key[prefixLength + i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    private int offset(int index) {
+        int res = 0;
+        int pos = table + index * offsetWidth;
+        for (int i=0; i < offsetWidth; i++)
+            res = (res << 8) | (raw.get(pos + i) & 0xff);
+        return base + res;
+    }
+
+    private int valuePosition(int index) {
+        int pos = offset(index);
+        if (index == 0)
+            return pos;
+        int suffixLength = readVarint(pos);
+        return pos + NodeFormat.varintSize(suffixLength) + suffixLength;
+    }
+
+    private byte[] copy(int pos) {
+        int length = readVarint(pos);
+        pos += NodeFormat.varintSize(length);
+        byte[] res = new byte[length];
+        for (int i=0; i < length; i++)
+            res[i] = raw.get(pos + i);
+        return res;
+    }
+
+    private int readVarint(int pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = raw.get(pos++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Traverses whole trees on a ForkJoinPool, forking a task for each child pointer, so that full tree jobs on slow
+ * storage aren't bound by the latency of each read. The number of storage reads in flight at once is bounded, and
+ * the pool adds threads to make up for those blocked on reads, so at most that many.
+ */
+public class ParallelTraversal implements Closeable {
+    private final ContentAddressedStorage storage;
+    private final ForkJoinPool pool;
+    private final Semaphore reads;
+
+    /**
+     *
+     * @param storage
+     * @param parallelism the number of threads to traverse with
+     * @param maxOutstandingReads the maximum number of storage reads in flight at once
+     */
+    public ParallelTraversal(ContentAddressedStorage storage, int parallelism, int maxOutstandingReads) {
+        if (maxOutstandingReads < 1)
+            throw new IllegalArgumentException("maxOutstandingReads must be at least 1");
+        this.storage = storage;
+        this.pool = new ForkJoinPool(parallelism);
+        this.reads = new Semaphore(maxOutstandingReads);
+    }
+
+    /**
+     *
+     * @param root
+     * @return the number of keys in the tree, only reading the subtrees whose counts aren't known
+     * @throws IOException
+     */
+    public long size(byte[] root) throws IOException {
+        try {
+            return pool.invoke(new Count(root));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Check that every node in the tree is present and matches its hash.
+     *
+     * @param root
+     * @return the number of nodes checked
+     * @throws IOException if a node is missing or doesn't match its hash
+     */
+    public long verify(byte[] root) throws IOException {
+        return reduce(root, true, node -> 1L, Long::sum);
+    }
+
+    /**
+     * Visit every node in the tree in parallel, and combine the results.
+     *
+     * @param root
+     * @param visit called once for each node, from any thread
+     * @param combine combines the results of visits in any order
+     * @return the combined result
+     * @throws IOException
+     */
+    public <R> R reduce(byte[] root, Function<TreeNode, R> visit, BinaryOperator<R> combine) throws IOException {
+        return reduce(root, false, visit, combine);
+    }
+
+    private <R> R reduce(byte[] root, boolean verify, Function<TreeNode, R> visit, BinaryOperator<R> combine) throws IOException {
+        try {
+            return pool.invoke(new Visit<>(root, verify, visit, combine));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A spliterator over a range of keys which splits at child pointers, for parallel streams. To run a stream with
+     * this traversal's parallelism rather than the common pool, run its terminal operation as a task in pool().
+     *
+     * @param root
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @return the keys and values in the range, in ascending order
+     * @throws IOException
+     */
+    public Spliterator<Map.Entry<byte[], byte[]>> spliterator(byte[] root, byte[] from, byte[] to) throws IOException {
+        // estimate the size from the fan out along the leftmost path
+        long estimate = 1;
+        for (TreeNode node = read(root, false); ; node = read(node.children[0], false)) {
+            if (node.isLeaf()) {
+                estimate *= node.keys.length - 1;
+                break;
+            }
+            estimate *= node.keys.length;
+        }
+        Deque<Item> items = new ArrayDeque<>();
+        items.add(new Item(root, null, null, estimate));
+        return new TreeSpliterator(items, from, to);
+    }
+
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private TreeNode read(byte[] hash, boolean verify) throws IOException {
+        Read read = new Read(hash, verify);
+        try {
+            // waiting for a permit doesn't get a compensating thread, so only the reads in flight can add threads
+            reads.acquire();
+            try {
+                ForkJoinPool.managedBlock(read);
+            } finally {
+                reads.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (read.error != null)
+            throw read.error;
+        return read.node;
+    }
+
+    /**
+     * A storage read, which lets the pool add a thread while we are blocked. The caller holds a read permit.
+     */
+    private class Read implements ForkJoinPool.ManagedBlocker {
+        private final byte[] hash;
+        private final boolean verify;
+        public TreeNode node;
+        public IOException error;
+
+        public Read(byte[] hash, boolean verify) {
+            this.hash = hash;
+            this.verify = verify;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                if (!verify) {
+                    node = storage.getNode(hash);
+                    return true;
+                }
+                ByteBuffer raw = storage.getBuffer(hash);
+                if (raw == null)
+                    throw new IOException("Missing node " + ByteArrayWrapper.bytesToHex(hash));
+                if (!Arrays.equals(HashFunction.of(hash).hash(raw), hash))
+                    throw new IOException("Node " + ByteArrayWrapper.bytesToHex(hash) + " doesn't match its hash");
+                node = TreeNode.deserialize(raw, Optional.of(hash));
+            } catch (IOException e) {
+                error = e;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return node != null || error != null;
+        }
+    }
+
+    private class Count extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final byte[] hash;
+
+        public Count(byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        protected Long compute() {
+            TreeNode node;
+            try {
+                node = read(hash, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            long res = node.keys.length - 1;
+            List<Count> unknown = new ArrayList<>();
+            for (int i = 0; i < node.children.length; i++) {
+                if (node.children[i].length == 0)
+                    continue;
+                if (node.counts[i] >= 0)
+                    res += node.counts[i];
+                else
+                    unknown.add(new Count(node.children[i]));
+            }
+            for (Count child : ForkJoinTask.invokeAll(unknown))
+                res += child.join();
+            return res;
+        }
+    }
+
+    private class Visit<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private final byte[] hash;
+        private final boolean verify;
+        private final Function<TreeNode, R> visit;
+        private final BinaryOperator<R> combine;
+
+        public Visit(byte[] hash, boolean verify, Function<TreeNode, R> visit, BinaryOperator<R> combine) {
+            this.hash = hash;
+            this.verify = verify;
+            this.visit = visit;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            TreeNode node;
+            try {
+                node = read(hash, verify);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            R res = visit.apply(node);
+            if (node.isLeaf())
+                return res;
+            List<Visit<R>> children = new ArrayList<>();
+            for (byte[] child : node.children)
+                children.add(new Visit<>(child, verify, visit, combine));
+            // fork all but the first child, and do that one ourselves
+            for (int i = children.size() - 1; i > 0; i--)
+                children.get(i).fork();
+            res = combine.apply(res, children.get(0).compute());
+            for (int i = 1; i < children.size(); i++)
+                res = combine.apply(res, children.get(i).join());
+            return res;
+        }
+    }
+
+    /**
+     * Either a key and value, or a subtree whose keys are between lower and upper, exclusive, where null is no limit.
+     */
+    private static class Item {
+        public final byte[] key, value, hash, upper;
+        public final long estimate;
+
+        public Item(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+            this.hash = null;
+            this.upper = null;
+            this.estimate = 1;
+        }
+
+        public Item(byte[] hash, byte[] lower, byte[] upper, long estimate) {
+            this.key = lower;
+            this.value = null;
+            this.hash = hash;
+            this.upper = upper;
+            this.estimate = estimate;
+        }
+
+        public boolean isEntry() {
+            return hash == null;
+        }
+    }
+
+    private class TreeSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+        private final byte[] from, to;
+        // the entries and subtrees still to cover, in order
+        private final Deque<Item> items;
+
+        public TreeSpliterator(Deque<Item> items, byte[] from, byte[] to) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+            while (!items.isEmpty()) {
+                Item item = items.pop();
+                if (!item.isEntry()) {
+                    expand(item);
+                    continue;
+                }
+                action.accept(new AbstractMap.SimpleImmutableEntry<>(item.key, item.value));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Split off the first half of what is left, by estimated size, expanding the first subtree if that is all
+         * there is.
+         */
+        @Override
+        public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+            while (items.size() == 1 && !items.peek().isEntry())
+                expand(items.pop());
+            if (items.size() < 2)
+                return null;
+            long half = estimateSize() / 2, taken = 0;
+            Deque<Item> prefix = new ArrayDeque<>();
+            while (items.size() > 1 && (prefix.isEmpty() || taken + items.peek().estimate <= half)) {
+                taken += items.peek().estimate;
+                prefix.add(items.pop());
+            }
+            return new TreeSpliterator(prefix, from, to);
+        }
+
+        @Override
+        public long estimateSize() {
+            long total = 0;
+            for (Item item : items)
+                total += item.estimate;
+            return total;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+        }
+
+        /**
+         * Put the elements of a subtree which may be in range at the front.
+         */
+        private void expand(Item subtree) {
+            TreeNode node;
+            try {
+                node = read(subtree.hash, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int n = node.keys.length;
+            long childEstimate = Math.max(1, (subtree.estimate - (n - 1)) / n);
+            for (int i = n - 1; i >= 0; i--) {
+                if (!node.isLeaf()) {
+                    byte[] lower = i == 0 ? subtree.key : node.keys[i];
+                    byte[] upper = i == n - 1 ? subtree.upper : node.keys[i + 1];
+                    boolean belowRange = from != null && upper != null && ByteArrayWrapper.compare(upper, from) <= 0;
+                    boolean aboveRange = to != null && lower != null && ByteArrayWrapper.compare(lower, to) >= 0;
+                    if (!belowRange && !aboveRange)
+                        items.push(new Item(node.children[i], lower, upper, childEstimate));
+                }
+                if (i > 0 && inRange(node.keys[i]))
+                    items.push(new Item(node.keys[i], node.values[i]));
+            }
+        }
+
+        private boolean inRange(byte[] key) {
+            return (from == null || ByteArrayWrapper.compare(key, from) >= 0) && (to == null || ByteArrayWrapper.compare(key, to) < 0);
+        }
+    }
+}
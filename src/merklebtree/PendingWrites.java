@@ -0,0 +1,134 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The writes made in front of a tree which it doesn't have yet, for trees which apply writes in batches. Writes are
+ * pending until a batch takes them, and then being applied until the tree has them. Reads see the pending writes
+ * over those being applied, over the tree.
+ */
+class PendingWrites {
+    // the new value of each key, or empty for a delete
+    private SortedMap<ByteArrayWrapper, Optional<byte[]>> pending = new TreeMap<>();
+    private SortedMap<ByteArrayWrapper, Optional<byte[]>> applying = new TreeMap<>();
+
+    /**
+     *
+     * @param key
+     * @return the written value of key, empty if it was deleted, or null if it hasn't been written
+     */
+    public synchronized Optional<byte[]> get(ByteArrayWrapper key) {
+        Optional<byte[]> value = pending.get(key);
+        return value != null ? value : applying.get(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @param value the new value, or empty for a delete
+     * @return the number of keys now pending
+     */
+    public synchronized int put(ByteArrayWrapper key, Optional<byte[]> value) {
+        pending.put(key, value);
+        return pending.size();
+    }
+
+    /**
+     *
+     * @return the number of keys written since the last batch was taken
+     */
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty() && applying.isEmpty();
+    }
+
+    /**
+     * Take a batch to apply to the tree. A batch which failed to apply is taken again, before the newer writes.
+     *
+     * @return every write the tree doesn't have yet
+     */
+    public synchronized SortedMap<ByteArrayWrapper, Optional<byte[]>> take() {
+        SortedMap<ByteArrayWrapper, Optional<byte[]>> changes = new TreeMap<>(applying);
+        changes.putAll(pending);
+        applying = changes;
+        pending = new TreeMap<>();
+        return changes;
+    }
+
+    /**
+     * The tree has the last batch taken.
+     */
+    public synchronized void applied() {
+        applying = new TreeMap<>();
+    }
+
+    /**
+     * Iterate over a range of keys, with the writes as they are now over the tree as it is now.
+     *
+     * @param tree
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @return the keys and values in the range in ascending key order
+     * @throws IOException
+     */
+    public Iterator<Map.Entry<byte[], byte[]>> range(MerkleBTree tree, byte[] from, byte[] to) throws IOException {
+        SortedMap<ByteArrayWrapper, Optional<byte[]>> overlay;
+        synchronized (this) {
+            overlay = new TreeMap<>(applying);
+            overlay.putAll(pending);
+        }
+        if (from != null)
+            overlay = overlay.tailMap(new ByteArrayWrapper(from));
+        if (to != null)
+            overlay = overlay.headMap(new ByteArrayWrapper(to));
+        return new MergedIterator(overlay.entrySet().iterator(), tree.range(from, to));
+    }
+
+    /**
+     * Merges writes over the entries of a tree, both in key order, dropping deleted keys.
+     */
+    private static class MergedIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final Iterator<Map.Entry<ByteArrayWrapper, Optional<byte[]>>> overlay;
+        private final Iterator<Map.Entry<byte[], byte[]>> base;
+        private Map.Entry<ByteArrayWrapper, Optional<byte[]>> nextOverlay;
+        private Map.Entry<byte[], byte[]> nextBase, next;
+
+        public MergedIterator(Iterator<Map.Entry<ByteArrayWrapper, Optional<byte[]>>> overlay, Iterator<Map.Entry<byte[], byte[]>> base) {
+            this.overlay = overlay;
+            this.base = base;
+            nextOverlay = overlay.hasNext() ? overlay.next() : null;
+            nextBase = base.hasNext() ? base.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && (nextOverlay != null || nextBase != null)) {
+                int cmp = nextOverlay == null ? 1 : nextBase == null ? -1 : ByteArrayWrapper.compare(nextOverlay.getKey().data, nextBase.getKey());
+                if (cmp >= 0) {
+                    if (cmp > 0)
+                        next = nextBase;
+                    nextBase = base.hasNext() ? base.next() : null;
+                }
+                if (cmp <= 0) {
+                    if (nextOverlay.getValue().isPresent())
+                        next = new AbstractMap.SimpleImmutableEntry<>(nextOverlay.getKey().data, nextOverlay.getValue().get());
+                    nextOverlay = overlay.hasNext() ? overlay.next() : null;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<byte[], byte[]> res = next;
+            next = null;
+            return res;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * The serialized nodes on the paths from a root to some keys, which prove the value of each key, or its absence, to
+ * anyone who trusts the root hash. Each node appears once, in depth first order, so the path to any of the keys is
+ * in order in the list and paths share the nodes they have in common.
+ */
+public class Proof {
+    public final List<byte[]> nodes;
+
+    public Proof(List<byte[]> nodes) {
+        this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Follow the path to key from the root, checking the hash of each node on the way, without any storage access.
+     * Nodes are searched in place and hashed in place, so nothing is decoded.
+     *
+     * @param rootHash the trusted root
+     * @param key
+     * @return the value of key, or null if the proof shows that it is absent
+     * @throws IOException if the proof doesn't lead from the root to where key is or would be
+     */
+    public byte[] verify(byte[] rootHash, byte[] key) throws IOException {
+        HashFunction hashFunction = HashFunction.of(rootHash);
+        NodeView view = new NodeView();
+        byte[] expected = rootHash;
+        int next = 0;
+        while (true) {
+            // the next node on our path is the next one with the expected hash, as other paths only come in between
+            ByteBuffer raw = null;
+            while (raw == null && next < nodes.size()) {
+                ByteBuffer candidate = ByteBuffer.wrap(nodes.get(next++)).asReadOnlyBuffer();
+                if (Arrays.equals(hashFunction.hash(candidate), expected))
+                    raw = candidate;
+            }
+            if (raw == null)
+                throw new IOException("Proof is missing node " + ByteArrayWrapper.bytesToHex(expected));
+            if (!view.wrap(raw)) {
+                TreeNode node = TreeNode.deserialize(raw, Optional.of(expected));
+                int index = node.search(key);
+                if (index >= 0)
+                    return node.values[index];
+                if (node.isLeaf())
+                    return null;
+                expected = node.children[-index - 2];
+                continue;
+            }
+            int index = view.search(key);
+            if (index >= 0)
+                return view.value(index);
+            if (view.isLeaf())
+                return null;
+            expected = view.child(-index - 2);
+        }
+    }
+
+    public byte[] serialize() {
+        int size = NodeFormat.varintSize(nodes.size());
+        for (byte[] node : nodes)
+            size += NodeFormat.varintSize(node.length) + node.length;
+        byte[] res = new byte[size];
+        int pos = NodeFormat.writeVarint(res, 0, nodes.size());
+        for (byte[] node : nodes) {
+            pos = NodeFormat.writeVarint(res, pos, node.length);
+            System.arraycopy(node, 0, res, pos, node.length);
+            pos += node.length;
+        }
+        return res;
+    }
+
+    public static Proof deserialize(byte[] raw) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(raw);
+            int n = NodeFormat.readVarint(in);
+            List<byte[]> nodes = new ArrayList<>();
+            for (int i=0; i < n; i++) {
+                byte[] node = new byte[NodeFormat.readVarint(in)];
+                in.get(node);
+                nodes.add(node);
+            }
+            return new Proof(nodes);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt proof", e);
+        }
+    }
+}
@@ -1,18 +1,38 @@
 package merklebtree;
 
-import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class RAMStorage implements ContentAddressedStorage {
-    private Map<ByteArrayWrapper, byte[]> storage = new HashMap<>();
+    private Map<ByteArrayWrapper, byte[]> storage = new ConcurrentHashMap<>();
+    private final HashFunction hashFunction;
+
+    public RAMStorage(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    public RAMStorage() {
+        this(HashFunction.SHA256);
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return hashFunction;
+    }
 
     @Override
     public byte[] put(byte[] value) {
-        byte[] hash = hash(value);
+        byte[] hash = hashFunction.hash(value);
         storage.put(new ByteArrayWrapper(hash), value);
         return hash;
     }
 
+    @Override
+    public void putMany(List<byte[]> hashes, List<byte[]> values) {
+        for (int i=0; i < hashes.size(); i++)
+            storage.put(new ByteArrayWrapper(hashes.get(i)), values.get(i));
+    }
+
     @Override
     public byte[] get(byte[] key) {
         return storage.get(new ByteArrayWrapper(key));
@@ -31,15 +51,13 @@ public class RAMStorage implements ContentAddressedStorage {
         return storage.size();
     }
 
+    /**
+     *
+     * @param input
+     * @return the SHA-256 hash of input
+     */
     public static byte[] hash(byte[] input)
     {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(input);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e)
-        {
-            throw new IllegalStateException("couldn't find hash algorithm");
-        }
+        return HashFunction.SHA256.hash(input);
     }
 }
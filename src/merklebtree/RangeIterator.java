@@ -0,0 +1,144 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Iterates over the keys in a range in either direction, holding only the path from the root to the current key.
+ */
+class RangeIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+    private final ContentAddressedStorage storage;
+    private final byte[] from, to;
+    private final boolean reverse;
+    // the path to the current key, with the index of the next key to return in each node
+    private final Deque<Frame> path = new ArrayDeque<>();
+    private Map.Entry<byte[], byte[]> next;
+
+    /**
+     *
+     * @param root
+     * @param from the lowest key to include, or null for no limit
+     * @param to the key after the highest to include, or null for no limit
+     * @param reverse whether to go from the highest key to the lowest
+     * @param storage
+     */
+    public RangeIterator(TreeNode root, byte[] from, byte[] to, boolean reverse, ContentAddressedStorage storage) throws IOException {
+        this.storage = storage;
+        this.from = from;
+        this.to = to;
+        this.reverse = reverse;
+        if (reverse)
+            seekBefore(root, to);
+        else
+            seek(root, from);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !path.isEmpty()) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Map.Entry<byte[], byte[]> res = next;
+        next = null;
+        return res;
+    }
+
+    private Map.Entry<byte[], byte[]> advance() throws IOException {
+        while (!path.isEmpty()) {
+            Frame frame = path.peek();
+            TreeNode node = frame.node;
+            if (frame.next <= 0 || frame.next >= node.keys.length) {
+                path.pop();
+                continue;
+            }
+            int index = frame.next;
+            frame.next += reverse ? -1 : 1;
+            byte[] key = node.keys[index];
+            if (reverse ? from != null && ByteArrayWrapper.compare(key, from) < 0 : to != null && ByteArrayWrapper.compare(key, to) >= 0) {
+                path.clear();
+                return null;
+            }
+            // the subtree which comes next lies between this key and the next one
+            if (!node.isLeaf()) {
+                if (reverse)
+                    seekBefore(child(frame, index - 1), null);
+                else
+                    seek(child(frame, index), null);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(key, node.values[index]);
+        }
+        return null;
+    }
+
+    /**
+     * Push the path to the first key at or after key, or the first key in the subtree if key is null.
+     */
+    private void seek(TreeNode node, byte[] key) throws IOException {
+        while (true) {
+            int index = key == null ? 0 : node.search(key);
+            if (index > 0) {
+                path.push(new Frame(node, index));
+                return;
+            }
+            int floor = index == 0 ? 0 : -index - 2;
+            Frame frame = new Frame(node, floor + 1);
+            path.push(frame);
+            if (node.isLeaf())
+                return;
+            node = child(frame, floor);
+        }
+    }
+
+    /**
+     * Push the path to the last key before key, or the last key in the subtree if key is null.
+     */
+    private void seekBefore(TreeNode node, byte[] key) throws IOException {
+        while (true) {
+            int index = key == null ? -node.keys.length - 1 : node.search(key);
+            if (index == 0)
+                return;
+            // everything under the child before an exact match is before key
+            int floor = index > 0 ? index - 1 : -index - 2;
+            Frame frame = new Frame(node, floor);
+            path.push(frame);
+            if (node.isLeaf())
+                return;
+            node = child(frame, floor);
+            if (index > 0)
+                key = null;
+        }
+    }
+
+    /**
+     * Read a child of the node in frame, and hint to the storage that we will read its sibling in the direction of
+     * iteration after it.
+     */
+    private TreeNode child(Frame frame, int index) throws IOException {
+        byte[][] children = frame.node.children;
+        int sibling = reverse ? index - 1 : index + 1;
+        if (sibling >= 0 && sibling < children.length)
+            storage.prefetch(children[sibling]);
+        return storage.getNode(children[index]);
+    }
+
+    private static class Frame {
+        public final TreeNode node;
+        public int next;
+
+        public Frame(TreeNode node, int next) {
+            this.node = node;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Counts the puts of each block against its removes, and only removes a block from the target store once every put
+ * has been matched, so trees which share identical nodes can each remove them safely. Blocks which were in the target
+ * store before it was wrapped have no count, and are never removed through this.
+ */
+public class RefCountingStorage implements ContentAddressedStorage {
+    private final ContentAddressedStorage target;
+    private final Counts counts = new Counts();
+
+    public RefCountingStorage(ContentAddressedStorage target) {
+        this.target = target;
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return target.hashFunction();
+    }
+
+    @Override
+    public synchronized byte[] put(byte[] value) {
+        byte[] hash = target.put(value);
+        counts.increment(hash);
+        return hash;
+    }
+
+    @Override
+    public synchronized List<byte[]> putMany(List<byte[]> values) {
+        List<byte[]> hashes = target.putMany(values);
+        for (byte[] hash : hashes)
+            counts.increment(hash);
+        return hashes;
+    }
+
+    @Override
+    public synchronized void putMany(List<byte[]> hashes, List<byte[]> values) {
+        target.putMany(hashes, values);
+        for (byte[] hash : hashes)
+            counts.increment(hash);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return target.get(key);
+    }
+
+    @Override
+    public List<byte[]> getMany(List<byte[]> keys) {
+        return target.getMany(keys);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(byte[] key) {
+        return target.getBuffer(key);
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key) throws IOException {
+        return target.getNode(key);
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key, TreeListener listener) throws IOException {
+        return target.getNode(key, listener);
+    }
+
+    @Override
+    public void prefetch(byte[] key) {
+        target.prefetch(key);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        target.sync();
+    }
+
+    @Override
+    public synchronized void remove(byte[] key) {
+        if (counts.decrement(key) == 0)
+            target.remove(key);
+    }
+
+    @Override
+    public synchronized void removeMany(List<byte[]> keys) {
+        List<byte[]> unused = new ArrayList<>();
+        for (byte[] key : keys)
+            if (counts.decrement(key) == 0)
+                unused.add(key);
+        target.removeMany(unused);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the number of puts of the block which haven't been removed yet
+     */
+    public synchronized int count(byte[] key) {
+        return counts.get(key);
+    }
+
+    /**
+     *
+     * @return the number of blocks with a count
+     */
+    public synchronized int size() {
+        return counts.size;
+    }
+
+    /**
+     * An open addressing hash map from hashes to counts, with linear probing. The hashes are packed into one array,
+     * so every hash must have the same length, which is set by the first one.
+     */
+    private static class Counts {
+        private int width = -1;
+        // where the digest starts in each hash, after any multihash prefix
+        private int digestOffset;
+        private byte[] keys = new byte[0];
+        private int[] counts = new int[1024]; // 0 for an empty slot
+        private int size;
+
+        public int get(byte[] hash) {
+            int slot = find(hash);
+            return slot < 0 ? 0 : counts[slot];
+        }
+
+        public void increment(byte[] hash) {
+            if (width < 0) {
+                width = hash.length;
+                digestOffset = HashFunction.digestOffset(hash);
+                keys = new byte[counts.length * width];
+            }
+            checkWidth(hash);
+            if ((size + 1) * 2 > counts.length)
+                resize();
+            int slot = find(hash);
+            if (slot >= 0) {
+                counts[slot]++;
+                return;
+            }
+            slot = -slot - 1;
+            System.arraycopy(hash, 0, keys, slot * width, width);
+            counts[slot] = 1;
+            size++;
+        }
+
+        /**
+         *
+         * @return the remaining count, or -1 if the hash has no count
+         */
+        public int decrement(byte[] hash) {
+            int slot = find(hash);
+            if (slot < 0)
+                return -1;
+            if (--counts[slot] > 0)
+                return counts[slot];
+            size--;
+            // shift later entries in the same run back, so lookups never need to probe past an empty slot
+            int mask = counts.length - 1;
+            for (int next = (slot + 1) & mask; counts[next] != 0; next = (next + 1) & mask) {
+                int home = home(keys, next * width);
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    System.arraycopy(keys, next * width, keys, slot * width, width);
+                    counts[slot] = counts[next];
+                    counts[next] = 0;
+                    slot = next;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         *
+         * @return the slot holding hash, or (-(the empty slot where it would go) - 1)
+         */
+        private int find(byte[] hash) {
+            if (width < 0 || hash.length != width)
+                return -1;
+            int mask = counts.length - 1;
+            for (int slot = home(hash, 0); ; slot = (slot + 1) & mask) {
+                if (counts[slot] == 0)
+                    return -slot - 1;
+                if (equal(hash, slot * width))
+                    return slot;
+            }
+        }
+
+        private boolean equal(byte[] hash, int offset) {
+            for (int i = 0; i < width; i++)
+                if (keys[offset + i] != hash[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         * Hashes are already uniformly distributed, so any of their bits will do.
+         */
+        private int home(byte[] data, int offset) {
+            int h = 0;
+            for (int i = digestOffset; i < Math.min(digestOffset + 4, width); i++)
+                h = (h << 8) | (data[offset + i] & 0xff);
+            return h & (counts.length - 1);
+        }
+
+        private void checkWidth(byte[] hash) {
+            if (hash.length != width)
+                throw new IllegalArgumentException("Hash length " + hash.length + " doesn't match " + width);
+        }
+
+        private void resize() {
+            byte[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new byte[oldKeys.length * 2];
+            counts = new int[oldCounts.length * 2];
+            int mask = counts.length - 1;
+            for (int i = 0; i < oldCounts.length; i++) {
+                if (oldCounts[i] == 0)
+                    continue;
+                int slot = home(oldKeys, i * width);
+                while (counts[slot] != 0)
+                    slot = (slot + 1) & mask;
+                System.arraycopy(oldKeys, i * width, keys, slot * width, width);
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Walks two trees together in key order, expanding subtrees only as far as needed. When the next item in both
+ * walks is a subtree with the same hash, both are skipped without being read, so the nodes read are roughly the
+ * changed keys times the depth of the trees. Differing subtrees are expanded from the highest down, so equal ones
+ * line up. In a B-tree the height of a subtree is one less than its parent's, as every leaf is at the same depth. A
+ * canonical tree has leaves at different depths, so there the height of a subtree is the level of its keys, which is
+ * the same wherever an identical subtree appears, and is found by reading it.
+ */
+class TreeDiff implements Iterator<KeyChange> {
+    private static final int UNKNOWN = -1;
+
+    private final ContentAddressedStorage storage;
+    private final int fanout;
+    private final Deque<Item> a = new ArrayDeque<>(), b = new ArrayDeque<>();
+    private KeyChange next;
+
+    /**
+     *
+     * @param rootA
+     * @param rootB
+     * @param storage
+     * @param fanout the target fanout the trees were written with if they are canonical, or 0 if they are B-trees
+     * @throws IOException
+     */
+    public TreeDiff(byte[] rootA, byte[] rootB, ContentAddressedStorage storage, int fanout) throws IOException {
+        this.storage = storage;
+        this.fanout = fanout;
+        a.push(new Item(rootA, null, fanout > 0 ? UNKNOWN : height(rootA)));
+        b.push(new Item(rootB, null, fanout > 0 ? UNKNOWN : height(rootB)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = advance();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public KeyChange next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        KeyChange res = next;
+        next = null;
+        return res;
+    }
+
+    private KeyChange advance() throws IOException {
+        while (true) {
+            Item x = a.peek(), y = b.peek();
+            if (x == null && y == null)
+                return null;
+            if (y == null || (x != null && x.isEntry() && before(x, y))) {
+                if (!x.isEntry()) {
+                    expand(a);
+                    continue;
+                }
+                a.pop();
+                return new KeyChange(x.key, Optional.of(x.value), Optional.empty());
+            }
+            if (x == null || (y.isEntry() && before(y, x))) {
+                if (!y.isEntry()) {
+                    expand(b);
+                    continue;
+                }
+                b.pop();
+                return new KeyChange(y.key, Optional.empty(), Optional.of(y.value));
+            }
+            if (x.isEntry() && y.isEntry()) {
+                // neither is before the other, so they have the same key
+                a.pop();
+                b.pop();
+                if (!Arrays.equals(x.value, y.value))
+                    return new KeyChange(x.key, Optional.of(x.value), Optional.of(y.value));
+                continue;
+            }
+            if (!x.isEntry() && !y.isEntry()) {
+                if (Arrays.equals(x.hash, y.hash)) {
+                    a.pop();
+                    b.pop();
+                    continue;
+                }
+                // expand the taller subtree first, so the children we compare are at the same level
+                int hx = height(x), hy = height(y);
+                if (hx >= hy)
+                    expand(a);
+                if (hy >= hx)
+                    expand(b);
+                continue;
+            }
+            // an entry which may be inside the other side's subtree
+            expand(x.isEntry() ? b : a);
+        }
+    }
+
+    /**
+     *
+     * @return true if the entry x comes before every key under y
+     */
+    private static boolean before(Item x, Item y) {
+        if (y.isEntry())
+            return ByteArrayWrapper.compare(x.key, y.key) < 0;
+        return y.key != null && ByteArrayWrapper.compare(x.key, y.key) <= 0;
+    }
+
+    /**
+     * Replace the subtree at the front of a walk with its elements, in order.
+     */
+    private void expand(Deque<Item> walk) throws IOException {
+        Item subtree = walk.pop();
+        TreeNode node = subtree.node != null ? subtree.node : storage.getNode(subtree.hash);
+        int childHeight = fanout > 0 ? UNKNOWN : subtree.height - 1;
+        for (int i = node.keys.length - 1; i >= 0; i--) {
+            if (node.children[i].length > 0)
+                walk.push(new Item(node.children[i], i == 0 ? subtree.key : node.keys[i], childHeight));
+            if (i > 0)
+                walk.push(new Item(node.keys[i], node.values[i]));
+        }
+    }
+
+    /**
+     * The height of a subtree in a canonical tree is only known once it is read, and the node is kept for when it is
+     * expanded.
+     */
+    private int height(Item subtree) throws IOException {
+        if (subtree.height == UNKNOWN) {
+            subtree.node = storage.getNode(subtree.hash);
+            subtree.height = subtree.node.isLeaf() ? 0 : CanonicalUpdate.level(subtree.node.keys[1], storage.hashFunction(), fanout);
+        }
+        return subtree.height;
+    }
+
+    private int height(byte[] root) throws IOException {
+        int height = 0;
+        for (TreeNode node = storage.getNode(root); !node.isLeaf(); node = storage.getNode(node.children[0]))
+            height++;
+        return height;
+    }
+
+    /**
+     * Either a key and value, or a subtree, whose keys are all greater than key unless it is null.
+     */
+    private static class Item {
+        public final byte[] key, value, hash;
+        public int height;
+        // the subtree's node, once it has been read
+        public TreeNode node;
+
+        public Item(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+            this.hash = null;
+            this.height = UNKNOWN;
+        }
+
+        public Item(byte[] hash, byte[] lowerBound, int height) {
+            this.key = lowerBound;
+            this.value = null;
+            this.hash = hash;
+            this.height = height;
+        }
+
+        public boolean isEntry() {
+            return hash == null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package merklebtree;
+
+/**
+ * Receives events from trees and a MetricsStorage, for metrics or tracing. Every method does nothing by default, and
+ * trees skip even timing their operations when their listener is NONE. Methods may be called from any thread.
+ */
+public interface TreeListener {
+    TreeListener NONE = new TreeListener() {};
+
+    enum Operation {GET, PUT, DELETE, BATCH}
+
+    /**
+     * A tree operation started on this thread. Storage events on this thread belong to it until it finishes.
+     *
+     * @param op
+     */
+    default void started(Operation op) {}
+
+    /**
+     * A tree operation finished, or failed.
+     *
+     * @param op
+     * @param nanos how long it took
+     */
+    default void operation(Operation op, long nanos) {}
+
+    /**
+     * A node was split in two because it had more than maxChildren keys.
+     */
+    default void split() {}
+
+    /**
+     * An underfull node took a key from a sibling.
+     */
+    default void rotate() {}
+
+    /**
+     * An underfull node was merged with a sibling.
+     */
+    default void merge() {}
+
+    /**
+     * A block was read from storage.
+     *
+     * @param bytes its size
+     */
+    default void blockRead(int bytes) {}
+
+    /**
+     * A node was deserialized from its block.
+     */
+    default void nodeRead() {}
+
+    /**
+     * A block was given to storage to write.
+     *
+     * @param bytes its size
+     */
+    default void blockWritten(int bytes) {}
+
+    /**
+     * A block or key was hashed, by a tree or by a store given blocks without their hashes.
+     *
+     * @param bytes the size of what was hashed
+     */
+    default void hashed(int bytes) {}
+
+    default void blockRemoved() {}
+}
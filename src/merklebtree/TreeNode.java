@@ -1,418 +1,469 @@
 package merklebtree;
 
 import java.io.*;
-import java.security.*;
+import java.nio.*;
 import java.util.*;
 
+/**
+ * An immutable tree node. Its elements are held in parallel arrays sorted by key, and element 0 always has the empty
+ * key. children[i] is the hash of the subtree holding the keys between keys[i] and keys[i+1], or empty in a leaf.
+ * Operations return new nodes, and remove the blocks of the nodes they replace from storage.
+ */
 public class TreeNode {
+    private static final byte[] EMPTY = new byte[0];
+
     public final Optional<byte[]> hash;
-    public final SortedSet<KeyElement> keys;
+    public final byte[][] keys, values, children;
+    // the number of keys under each child, 0 in a leaf, or -1 if it isn't known, as in nodes from older formats
+    public final long[] counts;
+
+    /**
+     * A node whose children's counts aren't known.
+     */
+    public TreeNode(byte[][] keys, byte[][] values, byte[][] children, Optional<byte[]> hash) {
+        this(keys, values, children, unknownCounts(children), hash);
+    }
 
-    public TreeNode(byte[] leftChildHash, SortedSet<KeyElement> keys, Optional<byte[]> ourHash) {
-        this.keys = new TreeSet<>();
-        this.keys.addAll(keys);
-        KeyElement zero = new KeyElement(new ByteArrayWrapper(new byte[0]), new byte[0], leftChildHash);
-        if (!keys.contains(zero))
-            this.keys.add(zero);
-        this.hash = ourHash;
+    public TreeNode(byte[][] keys, byte[][] values, byte[][] children, long[] counts, Optional<byte[]> hash) {
+        if (keys.length == 0 || keys[0].length != 0)
+            throw new IllegalArgumentException("First key must be empty!");
+        if (values.length != keys.length || children.length != keys.length || counts.length != keys.length)
+            throw new IllegalArgumentException("Mismatched element arrays!");
+        this.keys = keys;
+        this.values = values;
+        this.children = children;
+        this.counts = counts;
+        this.hash = hash;
     }
 
-    public TreeNode(byte[] leftChildHash, SortedSet<KeyElement> keys) {
-        this(leftChildHash, keys, Optional.empty());
+    private static long[] unknownCounts(byte[][] children) {
+        long[] res = new long[children.length];
+        if (children.length > 0 && children[0].length > 0)
+            Arrays.fill(res, -1);
+        return res;
     }
 
-    public TreeNode(SortedSet<KeyElement> keys) {
-        this(new byte[0], keys, Optional.empty());
+    /**
+     *
+     * @return a leaf with no keys
+     */
+    public static TreeNode empty() {
+        return new TreeNode(new byte[][]{EMPTY}, new byte[][]{EMPTY}, new byte[][]{EMPTY}, new long[]{0}, Optional.empty());
     }
 
-    public TreeNode(SortedSet<KeyElement> keys, byte[] ourHash) {
-        this(new byte[0], keys, Optional.of(ourHash));
+    public TreeNode withHash(byte[] hash) {
+        return new TreeNode(keys, values, children, counts, Optional.of(hash));
     }
 
-    public TreeNode(TreeNode node, byte[] hash) {
-        this(new byte[0], node.keys, Optional.of(hash));
+    public boolean isLeaf() {
+        return children[0].length == 0;
     }
 
-    private TreeNode withHash(byte[] hash) {
-        return new TreeNode(keys, hash);
+    /**
+     *
+     * @param key
+     * @return the index of key, if present, otherwise (-(insertion point) - 1)
+     */
+    public int search(byte[] key) {
+        if (key.length == 0)
+            return 0;
+        int low = 1, high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = ByteArrayWrapper.compare(keys[mid], key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
     public byte[] get(ByteArrayWrapper key, ContentAddressedStorage storage) throws IOException {
-        KeyElement dummy = new KeyElement(key, new byte[0], new byte[0]);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
-        }
-        if (nextSmallest.key.equals(key))
-            return nextSmallest.valueHash;
-        if (nextSmallest.targetHash.length == 0)
+        int index = search(key.data);
+        if (index >= 0)
+            return values[index];
+        byte[] child = children[-index - 2];
+        if (child.length == 0)
             return null;
-        return TreeNode.deserialize(storage.get(nextSmallest.targetHash)).get(key, storage);
+        return NodeView.get(child, key, storage);
     }
 
+    /**
+     *
+     * @return the new node, or if it had to split, an unstored node holding the median key with pointers to the
+     * two stored halves
+     */
     public TreeNode put(ByteArrayWrapper key, byte[] value, ContentAddressedStorage storage, int maxChildren) throws IOException {
-        KeyElement dummy = new KeyElement(key, null, null);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key)) {
-                SortedSet<KeyElement> headSet = keys.headSet(dummy);
-                nextSmallest = headSet.last();
-            }
-        }
-        if (nextSmallest.key.equals(key)) {
-            KeyElement modified = new KeyElement(key, value, nextSmallest.targetHash);
-            keys.remove(nextSmallest);
-            keys.add(modified);
-            // commit this node to storage
-            byte[] hash = storage.put(this.serialize());
-            if (!Arrays.equals(hash, this.hash.get()))
-                storage.remove(this.hash.get());
-            return new TreeNode(this.keys, hash);
+        return put(key, value, storage, maxChildren, TreeListener.NONE);
+    }
+
+    /**
+     *
+     * @param listener told of every split
+     * @return the new node, or if it had to split, an unstored node holding the median key with pointers to the
+     * two stored halves
+     */
+    public TreeNode put(ByteArrayWrapper key, byte[] value, ContentAddressedStorage storage, int maxChildren, TreeListener listener) throws IOException {
+        int index = search(key.data);
+        if (index >= 0) {
+            // an overwrite with the same value changes nothing, so nothing is stored again
+            if (hash.isPresent() && Arrays.equals(values[index], value))
+                return this;
+            return replace(index, keys[index], value, children[index], counts[index]).commit(storage, this);
         }
-        if (nextSmallest.targetHash.length == 0) {
-            if (keys.size() < maxChildren) {
-                keys.add(new KeyElement(key, value, new byte[0]));
-                // commit this node to storage
-                byte[] hash = storage.put(this.serialize());
-                if (this.hash.isPresent())
-                    storage.remove(this.hash.get());
-                return new TreeNode(this.keys, hash);
-            }
-            // split into two and make new parent
-            keys.add(new KeyElement(key, value, new byte[0]));
-            KeyElement[] tmp = new KeyElement[keys.size()];
-            KeyElement median = keys.toArray(tmp)[keys.size()/2];
-            // commit left child
-            SortedSet<KeyElement> left = keys.headSet(median);
-            TreeNode leftChild = new TreeNode(left);
-            byte[] leftChildHash = storage.put(leftChild.serialize());
-
-            // commit right child
-            SortedSet<KeyElement> right = keys.tailSet(median);
-            right.remove(right.first());
-            TreeNode rightChild = new TreeNode(median.targetHash, right);
-            byte[] rightChildHash = storage.put(rightChild.serialize());
-
-            // now add median to parent
-            TreeSet holder = new TreeSet<>();
-            KeyElement newParent = new KeyElement(median.key, median.valueHash, rightChildHash);
-            holder.add(newParent);
-            storage.remove(this.hash.get());
-            return new TreeNode(leftChildHash, holder);
+        int floor = -index - 2;
+        TreeNode modified;
+        if (children[floor].length == 0) {
+            modified = insert(floor + 1, key.data, value, EMPTY, 0);
+        } else {
+            TreeNode modifiedChild = storage.getNode(children[floor]).put(key, value, storage, maxChildren, listener);
+            if (modifiedChild.hash.isPresent() && Arrays.equals(modifiedChild.hash.get(), children[floor]))
+                return this;
+            if (modifiedChild.hash.isPresent())
+                // update pointer to child (child wasn't split)
+                return replace(floor, keys[floor], values[floor], modifiedChild.hash.get(), modifiedChild.subtreeSize())
+                        .commit(storage, this);
+            // we split a child and need to add the median to our keys
+            modified = replace(floor, keys[floor], values[floor], modifiedChild.children[0], modifiedChild.counts[0])
+                    .insert(floor + 1, modifiedChild.keys[1], modifiedChild.values[1], modifiedChild.children[1], modifiedChild.counts[1]);
         }
+        if (modified.keys.length <= maxChildren)
+            return modified.commit(storage, this);
+
+        // split into two and make new parent
+        listener.split();
+        int median = modified.keys.length / 2;
+        TreeNode left = modified.slice(0, median, modified.children[0], modified.counts[0]);
+        TreeNode right = modified.slice(median, modified.keys.length, modified.children[median], modified.counts[median]);
+        byte[] leftHash = storage.put(left.serialize());
+        byte[] rightHash = storage.put(right.serialize());
+        if (hash.isPresent())
+            storage.remove(hash.get());
+        return new TreeNode(new byte[][]{EMPTY, modified.keys[median]}, new byte[][]{EMPTY, modified.values[median]},
+                new byte[][]{leftHash, rightHash}, new long[]{left.subtreeSize(), right.subtreeSize()}, Optional.empty());
+    }
 
-        TreeNode modifiedChild = TreeNode.deserialize(storage.get(nextSmallest.targetHash)).withHash(nextSmallest.targetHash).put(key, value, storage, maxChildren);
-        if (!modifiedChild.hash.isPresent() || !Arrays.equals(modifiedChild.hash.get(), nextSmallest.targetHash))
-            storage.remove(nextSmallest.targetHash);
-        if (!modifiedChild.hash.isPresent()) {
-            // we split a child and need to add the median to our keys
-            if (keys.size() < maxChildren) {
-                KeyElement replacementNextSmallest = new KeyElement(nextSmallest.key, nextSmallest.valueHash, modifiedChild.keys.first().targetHash);
-                keys.remove(nextSmallest);
-                keys.add(replacementNextSmallest);
-                keys.add(modifiedChild.keys.last());
-                byte[] hash = storage.put(this.serialize());
-                storage.remove(this.hash.get());
-                return new TreeNode(this.keys, hash);
-            }
-            // we need to split as well, merge in new key and two pointers first
-            KeyElement nonZero = modifiedChild.keys.last();
-            keys.add(nonZero);
-            KeyElement updated = new KeyElement(nextSmallest.key, nextSmallest.valueHash, modifiedChild.keys.first().targetHash);
-            keys.remove(nextSmallest);
-            keys.add(updated);
-
-            // now split
-            KeyElement[] tmp = new KeyElement[keys.size()];
-            KeyElement median = keys.toArray(tmp)[keys.size()/2];
-            // commit left child
-            SortedSet<KeyElement> left = keys.headSet(median);
-            TreeNode leftChild = new TreeNode(left);
-            byte[] leftChildHash = storage.put(leftChild.serialize());
-
-            // commit right child
-            SortedSet<KeyElement> right = keys.tailSet(median);
-            right.remove(right.first());
-            TreeNode rightChild = new TreeNode(median.targetHash, right);
-            byte[] rightChildHash = storage.put(rightChild.serialize());
-
-            // now add median to parent
-            TreeSet holder = new TreeSet<>();
-            KeyElement newParent = new KeyElement(median.key, median.valueHash, rightChildHash);
-            holder.add(newParent);
-            storage.remove(this.hash.get());
-            return new TreeNode(leftChildHash, holder);
+    /**
+     *
+     * @return the number of keys under this node, only reading the subtrees whose counts aren't known
+     * @throws IOException
+     */
+    public long size(ContentAddressedStorage storage) throws IOException {
+        long total = keys.length - 1;
+        for (int i=0; i < children.length; i++)
+            total += childSize(i, storage);
+        return total;
+    }
+
+    /**
+     *
+     * @return the number of keys under this node, or -1 if the count of any child isn't known
+     */
+    public long subtreeSize() {
+        long total = keys.length - 1;
+        for (long count : counts) {
+            if (count < 0)
+                return -1;
+            total += count;
         }
-        // update pointer to child (child element wasn't split)
-        KeyElement updated = new KeyElement(nextSmallest.key, nextSmallest.valueHash, modifiedChild.hash.get());
-        keys.remove(nextSmallest);
-        keys.add(updated);
-        byte[] hash = storage.put(this.serialize());
-        if (!Arrays.equals(hash, this.hash.get()))
-            storage.remove(this.hash.get());
-        return new TreeNode(this, hash);
-    }
-
-    public int size(ContentAddressedStorage storage) throws IOException {
-        int total = 0;
-        for (KeyElement e : keys)
-            if (e.targetHash.length > 0)
-                total += TreeNode.deserialize(storage.get(e.targetHash)).size(storage);
-        total += keys.size() - 1;
         return total;
     }
 
-    private KeyElement smallestNonZeroKey() {
-        return keys.tailSet(new KeyElement(new ByteArrayWrapper(new byte[]{0}), new byte[0], new byte[0])).first();
+    private long childSize(int index, ContentAddressedStorage storage) throws IOException {
+        if (children[index].length == 0)
+            return 0;
+        return counts[index] >= 0 ? counts[index] : storage.getNode(children[index]).size(storage);
+    }
+
+    /**
+     *
+     * @param key
+     * @param storage
+     * @return the number of keys under this node which are less than key
+     * @throws IOException
+     */
+    public long rank(ByteArrayWrapper key, ContentAddressedStorage storage) throws IOException {
+        long rank = 0;
+        TreeNode node = this;
+        while (true) {
+            int index = node.search(key.data);
+            if (index == 0)
+                return rank;
+            // everything before the key or the child which could hold it
+            int end = index > 0 ? index : -index - 2;
+            rank += index > 0 ? end - 1 : end;
+            for (int i=0; i < end; i++)
+                rank += node.childSize(i, storage);
+            if (index > 0 || node.isLeaf())
+                return rank;
+            node = storage.getNode(node.children[end]);
+        }
+    }
+
+    /**
+     *
+     * @param index
+     * @param storage
+     * @return the key and value at index in key order under this node
+     * @throws IOException
+     */
+    public Map.Entry<byte[], byte[]> select(long index, ContentAddressedStorage storage) throws IOException {
+        if (index < 0)
+            throw new IndexOutOfBoundsException("Negative index!");
+        TreeNode node = this;
+        int i = 0;
+        while (i < node.keys.length) {
+            long childSize = node.childSize(i, storage);
+            if (index < childSize) {
+                node = storage.getNode(node.children[i]);
+                i = 0;
+                continue;
+            }
+            index -= childSize;
+            if (i + 1 < node.keys.length && index-- == 0)
+                return new AbstractMap.SimpleImmutableEntry<>(node.keys[i + 1], node.values[i + 1]);
+            i++;
+        }
+        throw new IndexOutOfBoundsException("Index beyond the end of the tree!");
     }
 
     public ByteArrayWrapper smallestKey(ContentAddressedStorage storage) throws IOException {
-        if (keys.first().targetHash.length == 0)
-            return keys.toArray(new KeyElement[keys.size()])[1].key;
-        return TreeNode.deserialize(storage.get(keys.first().targetHash)).smallestKey(storage);
+        if (isLeaf())
+            return new ByteArrayWrapper(keys[1]);
+        return storage.getNode(children[0]).smallestKey(storage);
     }
 
+    /**
+     *
+     * @return the new node, which is unstored if it has fewer than maxChildren/2 keys and needs rebalancing by its
+     * parent
+     */
     public TreeNode delete(ByteArrayWrapper key, ContentAddressedStorage storage, int maxChildren) throws IOException {
-        KeyElement dummy = new KeyElement(key, new byte[0], new byte[0]);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
-        }
-        if (nextSmallest.key.equals(key)) {
-            if (nextSmallest.targetHash.length == 0) {
-                // we are a leaf
-                keys.remove(nextSmallest);
-                storage.remove(this.hash.get());
-                if (keys.size() >= maxChildren/2) {
-                    byte[] hash = storage.put(this.serialize());
-                    return new TreeNode(this.keys, hash);
-                }
-                return new TreeNode(this.keys);
-            } else {
-                TreeNode child = TreeNode.deserialize(storage.get(nextSmallest.targetHash)).withHash(nextSmallest.targetHash);
-                // take the subtree's smallest value (in a leaf) delete it and promote it to the separator here
-                ByteArrayWrapper smallestKey = child.smallestKey(storage);
-                byte[] value = child.get(smallestKey, storage);
-                TreeNode newChild = child.delete(smallestKey, storage, maxChildren);
-
-                byte[] childHash = storage.put(newChild.serialize());
-                keys.remove(nextSmallest);
-                storage.remove(nextSmallest.targetHash);
-                KeyElement replacement = new KeyElement(smallestKey, value, childHash);
-                keys.add(replacement);
-                storage.remove(this.hash.get());
-                if (newChild.keys.size() >= maxChildren/2) {
-                    byte[] hash = storage.put(this.serialize());
-                    return new TreeNode(this, hash);
-                } else {
-                    // re-balance
-                    return rebalance(this, newChild, childHash, storage, maxChildren);
-                }
+        return delete(key, storage, maxChildren, TreeListener.NONE);
+    }
+
+    /**
+     *
+     * @param listener told of every rotation and merge
+     * @return the new node, which is unstored if it has fewer than maxChildren/2 keys and needs rebalancing by its
+     * parent
+     */
+    public TreeNode delete(ByteArrayWrapper key, ContentAddressedStorage storage, int maxChildren, TreeListener listener) throws IOException {
+        int index = search(key.data);
+        if (index > 0) {
+            if (isLeaf()) {
+                TreeNode modified = remove(index);
+                if (modified.keys.length >= maxChildren/2)
+                    return modified.commit(storage, this);
+                if (hash.isPresent())
+                    storage.remove(hash.get());
+                return modified;
             }
+            // take the subtree's smallest value (in a leaf) delete it and promote it to the separator here
+            TreeNode child = storage.getNode(children[index]);
+            ByteArrayWrapper smallestKey = child.smallestKey(storage);
+            byte[] value = child.get(smallestKey, storage);
+            TreeNode newChild = child.delete(smallestKey, storage, maxChildren, listener);
+            TreeNode modified = replace(index, smallestKey.data, value, newChild.hash.orElse(children[index]), newChild.subtreeSize());
+            if (newChild.hash.isPresent())
+                return modified.commit(storage, this);
+            return rebalance(modified, newChild, index, storage, maxChildren, listener);
         }
-        if (nextSmallest.targetHash.length == 0)
-            return new TreeNode(this.keys);
-        TreeNode child = TreeNode.deserialize(storage.get(nextSmallest.targetHash)).withHash(nextSmallest.targetHash).delete(key, storage, maxChildren);
-        if (!child.hash.isPresent() || !Arrays.equals(child.hash.get(), nextSmallest.targetHash))
-            storage.remove(nextSmallest.targetHash);
-        // update pointer
-        if (child.hash.isPresent()) {
-            keys.remove(nextSmallest);
-            keys.add(new KeyElement(nextSmallest.key, nextSmallest.valueHash, child.hash.get()));
-        }
-        if (child.keys.size() < maxChildren / 2) {
-            // re-balance
-            return rebalance(this, child, nextSmallest.targetHash, storage, maxChildren);
-        }
-        byte[] hash = storage.put(this.serialize());
-        storage.remove(this.hash.get());
-        return new TreeNode(this, hash);
+        if (isLeaf() || index == 0)
+            return this;
+        int floor = -index - 2;
+        TreeNode child = storage.getNode(children[floor]).delete(key, storage, maxChildren, listener);
+        if (child.hash.isPresent() && Arrays.equals(child.hash.get(), children[floor]))
+            return this;
+        if (child.hash.isPresent())
+            return replace(floor, keys[floor], values[floor], child.hash.get(), child.subtreeSize()).commit(storage, this);
+        return rebalance(this, child, floor, storage, maxChildren, listener);
     }
 
-    private static TreeNode rebalance(TreeNode parent, TreeNode child, byte[] originalChildHash, ContentAddressedStorage storage, int maxChildren) throws IOException {
-        // child has too few children
-        ByteArrayWrapper childHash = new ByteArrayWrapper(originalChildHash);
-        KeyElement[] parentKeys = parent.keys.toArray(new KeyElement[parent.keys.size()]);
-        int i = 0;
-        while (i < parentKeys.length && !(new ByteArrayWrapper(parentKeys[i].targetHash)).equals(childHash))
-            i++;
-
-        KeyElement centerKey = parentKeys[i];
-        Optional<KeyElement> leftKey = i > 0 ? Optional.of(parentKeys[i-1]) : Optional.empty();
-        Optional<KeyElement> rightKey = i + 1 < parentKeys.length ? Optional.of(parentKeys[i+1]) : Optional.empty();
-        Optional<TreeNode> leftSibling = leftKey.isPresent() ? Optional.of(TreeNode.deserialize(storage.get(leftKey.get().targetHash))) : Optional.empty();
-        Optional<TreeNode> rightSibling = rightKey.isPresent() ? Optional.of(TreeNode.deserialize(storage.get(rightKey.get().targetHash))) : Optional.empty();
-        if (rightSibling.isPresent() && rightSibling.get().keys.size() > maxChildren/2) {
+    /**
+     * Replace this node with a modified version whose child has too few keys, by rotating a key into the child from
+     * a sibling or merging the child with one.
+     *
+     * @param parent the modified version of this node, whose pointer to child is out of date
+     * @param child the unstored child
+     * @param index the index of the pointer to child in parent
+     * @return the new parent, which is unstored if it has too few keys itself
+     */
+    private TreeNode rebalance(TreeNode parent, TreeNode child, int index, ContentAddressedStorage storage, int maxChildren,
+                               TreeListener listener) throws IOException {
+        boolean hasLeft = index > 0;
+        boolean hasRight = index + 1 < parent.keys.length;
+        TreeNode modified;
+        if (!hasLeft && !hasRight) {
+            // we are a root with a single child
+            byte[] childHash = storage.put(child.serialize());
+            return parent.replace(index, parent.keys[index], parent.values[index], childHash, child.subtreeSize()).commit(storage, this);
+        }
+        TreeNode left = hasLeft ? storage.getNode(parent.children[index - 1]) : null;
+        TreeNode right = hasRight ? storage.getNode(parent.children[index + 1]) : null;
+        if (hasRight && right.keys.length > maxChildren/2) {
             // rotate left
-            TreeNode right = rightSibling.get();
-            KeyElement newSeparator = right.smallestNonZeroKey();
-            parent.keys.remove(centerKey);
-
-            child.keys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, right.keys.first().targetHash));
-            byte[] newChildHash = storage.put(child.serialize());
-
-            right.keys.remove(newSeparator);
-            right.keys.remove(new KeyElement(new ByteArrayWrapper(new byte[0]), new byte[0], new byte[0]));
-            right = new TreeNode(newSeparator.targetHash, right.keys);
-            byte[] newRightHash = storage.put(right.serialize());
-
-            parent.keys.remove(rightKey.get());
-            parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, newChildHash));
-            parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newRightHash));
-            byte[] hash = storage.put(parent.serialize());
-            if (child.hash.isPresent())
-                storage.remove(child.hash.get());
-            storage.remove(parent.hash.get());
-            return new TreeNode(parent, hash);
-        } else if (leftSibling.isPresent() && leftSibling.get().keys.size() > maxChildren/2) {
+            listener.rotate();
+            TreeNode newChild = child.insert(child.keys.length, parent.keys[index + 1], parent.values[index + 1], right.children[0], right.counts[0]);
+            TreeNode newRight = right.slice(1, right.keys.length, right.children[1], right.counts[1]);
+            byte[] newChildHash = storage.put(newChild.serialize());
+            byte[] newRightHash = storage.put(newRight.serialize());
+            storage.remove(parent.children[index + 1]);
+            modified = parent.replace(index, parent.keys[index], parent.values[index], newChildHash, newChild.subtreeSize())
+                    .replace(index + 1, right.keys[1], right.values[1], newRightHash, newRight.subtreeSize());
+        } else if (hasLeft && left.keys.length > maxChildren/2) {
             // rotate right
-            TreeNode left = leftSibling.get();
-            KeyElement newSeparator = left.keys.last();
-            parent.keys.remove(centerKey);
-
-            left.keys.remove(newSeparator);
-            byte[] newLeftHash = storage.put(left.serialize());
-
-            child.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
-            child.keys.remove(new KeyElement(new ByteArrayWrapper(new byte[0]), new byte[0], new byte[0]));
-            child.keys.add(new KeyElement(new ByteArrayWrapper(new byte[0]), new byte[0], newSeparator.targetHash));
-            byte[] newChildHash = storage.put(child.serialize());
-
-            parent.keys.remove(leftKey.get());
-            parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, newLeftHash));
-            parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newChildHash));
-            byte[] hash = storage.put(parent.serialize());
-            if (child.hash.isPresent())
-                storage.remove(child.hash.get());
-            storage.remove(parent.hash.get());
-            return new TreeNode(parent, hash);
+            listener.rotate();
+            int last = left.keys.length - 1;
+            TreeNode newLeft = left.remove(last);
+            TreeNode newChild = child.insert(1, parent.keys[index], parent.values[index], child.children[0], child.counts[0])
+                    .replace(0, EMPTY, EMPTY, left.children[last], left.counts[last]);
+            byte[] newLeftHash = storage.put(newLeft.serialize());
+            byte[] newChildHash = storage.put(newChild.serialize());
+            storage.remove(parent.children[index - 1]);
+            modified = parent.replace(index - 1, parent.keys[index - 1], parent.values[index - 1], newLeftHash, newLeft.subtreeSize())
+                    .replace(index, left.keys[last], left.values[last], newChildHash, newChild.subtreeSize());
+        } else if (hasRight) {
+            // merge with right sibling and separator
+            listener.merge();
+            TreeNode combined = child.concat(parent.keys[index + 1], parent.values[index + 1], right);
+            byte[] combinedHash = storage.put(combined.serialize());
+            storage.remove(parent.children[index + 1]);
+            modified = parent.remove(index + 1).replace(index, parent.keys[index], parent.values[index], combinedHash, combined.subtreeSize());
         } else {
-            if (rightSibling.isPresent()) {
-                // merge with right sibling and separator
-                SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                combinedKeys.addAll(child.keys);
-                combinedKeys.addAll(rightSibling.get().keys);
-                combinedKeys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, rightSibling.get().keys.first().targetHash));
-                TreeNode combined = new TreeNode(combinedKeys);
-                byte[] combinedHash = storage.put(combined.serialize());
-
-                parent.keys.remove(rightKey.get());
-                parent.keys.remove(centerKey);
-                parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, combinedHash));
-                if (child.hash.isPresent())
-                    storage.remove(child.hash.get());
-                storage.remove(parent.hash.get());
-                if (parent.keys.size() >= maxChildren/2) {
-                    byte[] hash = storage.put(parent.serialize());
-                    return new TreeNode(parent, hash);
-                }
-                return new TreeNode(parent.keys);
-            } else {
-                // merge with left sibling and separator
-                SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                combinedKeys.addAll(child.keys);
-                combinedKeys.addAll(leftSibling.get().keys);
-                combinedKeys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
-                TreeNode combined = new TreeNode(combinedKeys);
-                byte[] combinedHash = storage.put(combined.serialize());
-
-                parent.keys.remove(leftKey.get());
-                parent.keys.remove(centerKey);
-                parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, combinedHash));
-                if (child.hash.isPresent())
-                    storage.remove(child.hash.get());
-                storage.remove(parent.hash.get());
-                if (parent.keys.size() >= maxChildren/2) {
-                    byte[] hash = storage.put(parent.serialize());
-                    return new TreeNode(parent, hash);
-                }
-                return new TreeNode(parent.keys);
-            }
+            // merge with left sibling and separator
+            listener.merge();
+            TreeNode combined = left.concat(parent.keys[index], parent.values[index], child);
+            byte[] combinedHash = storage.put(combined.serialize());
+            storage.remove(parent.children[index - 1]);
+            modified = parent.remove(index).replace(index - 1, parent.keys[index - 1], parent.values[index - 1], combinedHash, combined.subtreeSize());
         }
+        if (modified.keys.length >= maxChildren/2)
+            return modified.commit(storage, this);
+        if (hash.isPresent())
+            storage.remove(hash.get());
+        return modified;
     }
 
     public void print(PrintStream w, int depth, ContentAddressedStorage storage) throws IOException {
-        int index = 0;
-        for (KeyElement e: keys) {
-            String tab = "";
-            for (int i=0; i < depth; i++)
-                tab += "   ";
-            w.print(String.format(tab + "[%d/%d] %s : %s\n", index++, keys.size(), e.key.toString(), new ByteArrayWrapper(e.valueHash).toString()));
-            if (e.targetHash.length > 0)
-                TreeNode.deserialize(storage.get(e.targetHash)).print(w, depth + 1, storage);
+        String tab = "";
+        for (int i=0; i < depth; i++)
+            tab += "   ";
+        for (int i=0; i < keys.length; i++) {
+            w.print(String.format(tab + "[%d/%d] %s : %s\n", i, keys.length, ByteArrayWrapper.bytesToHex(keys[i]), ByteArrayWrapper.bytesToHex(values[i])));
+            if (children[i].length > 0)
+                storage.getNode(children[i]).print(w, depth + 1, storage);
         }
     }
 
-    public byte[] serialize() {
-        try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            DataOutputStream dout = new DataOutputStream(bout);
-            dout.writeInt(keys.size());
-            for (KeyElement e : keys) {
-                dout.writeInt(e.key.data.length);
-                dout.write(e.key.data);
-                dout.writeInt(e.valueHash.length);
-                dout.write(e.valueHash);
-                dout.writeInt(e.targetHash.length);
-                dout.write(e.targetHash);
-            }
-            return bout.toByteArray();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+    /**
+     * Store this node, and remove the node it replaces if that is different.
+     *
+     * @return this node, carrying its hash
+     */
+    private TreeNode commit(ContentAddressedStorage storage, TreeNode replaced) {
+        byte[] newHash = storage.put(serialize());
+        if (replaced.hash.isPresent() && !Arrays.equals(newHash, replaced.hash.get()))
+            storage.remove(replaced.hash.get());
+        return withHash(newHash);
     }
 
-    public static TreeNode deserialize(byte[] raw) throws IOException {
-        if (raw == null)
-            throw new IllegalArgumentException("Null byte[]!");
-        DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
-        int n = din.readInt();
-        SortedSet<KeyElement> keys = new TreeSet<>();
-        for (int i=0; i < n; i++) {
-            byte[] key = new byte[din.readInt()];
-            din.readFully(key);
-            byte[] valueHash = new byte[din.readInt()];
-            din.readFully(valueHash);
-            byte[] targetHash = new byte[din.readInt()];
-            din.readFully(targetHash);
-            keys.add(new KeyElement(new ByteArrayWrapper(key), valueHash, targetHash));
-        }
-        return new TreeNode(keys);
+    private TreeNode insert(int index, byte[] key, byte[] value, byte[] child, long count) {
+        long[] newCounts = new long[counts.length + 1];
+        System.arraycopy(counts, 0, newCounts, 0, index);
+        newCounts[index] = count;
+        System.arraycopy(counts, index, newCounts, index + 1, counts.length - index);
+        return new TreeNode(insert(keys, index, key), insert(values, index, value), insert(children, index, child), newCounts, Optional.empty());
     }
 
-    public static class KeyElement implements Comparable<KeyElement> {
-        public final ByteArrayWrapper key;
-        public final byte[] valueHash;
-        public final byte[] targetHash;
+    private TreeNode replace(int index, byte[] key, byte[] value, byte[] child, long count) {
+        byte[][] newKeys = keys.clone(), newValues = values.clone(), newChildren = children.clone();
+        long[] newCounts = counts.clone();
+        newKeys[index] = key;
+        newValues[index] = value;
+        newChildren[index] = child;
+        newCounts[index] = count;
+        return new TreeNode(newKeys, newValues, newChildren, newCounts, Optional.empty());
+    }
 
-        public KeyElement(ByteArrayWrapper key, byte[] valueHash, byte[] targetHash) {
-            this.key = key;
-            this.valueHash = valueHash;
-            this.targetHash = targetHash;
-        }
+    private TreeNode remove(int index) {
+        long[] newCounts = new long[counts.length - 1];
+        System.arraycopy(counts, 0, newCounts, 0, index);
+        System.arraycopy(counts, index + 1, newCounts, index, counts.length - index - 1);
+        return new TreeNode(remove(keys, index), remove(values, index), remove(children, index), newCounts, Optional.empty());
+    }
 
-        @Override
-        public int compareTo(KeyElement that) {
-            return key.compareTo(that.key);
+    /**
+     *
+     * @return a node with the elements in [from, to), where the first element is replaced by the empty key pointing
+     * to leftChild, which holds leftCount keys
+     */
+    private TreeNode slice(int from, int to, byte[] leftChild, long leftCount) {
+        byte[][] newKeys = Arrays.copyOfRange(keys, from, to);
+        byte[][] newValues = Arrays.copyOfRange(values, from, to);
+        byte[][] newChildren = Arrays.copyOfRange(children, from, to);
+        long[] newCounts = Arrays.copyOfRange(counts, from, to);
+        if (from > 0) {
+            newKeys[0] = EMPTY;
+            newValues[0] = EMPTY;
         }
+        newChildren[0] = leftChild;
+        newCounts[0] = leftCount;
+        return new TreeNode(newKeys, newValues, newChildren, newCounts, Optional.empty());
+    }
 
-        @Override
-        public String toString() {
-            return key.toString() + " -> " + new ByteArrayWrapper(valueHash) +" : "+new ByteArrayWrapper(targetHash);
-        }
+    /**
+     *
+     * @return this node followed by a separator and all the keys of right
+     */
+    private TreeNode concat(byte[] separator, byte[] separatorValue, TreeNode right) {
+        int n = keys.length + right.keys.length;
+        byte[][] newKeys = Arrays.copyOf(keys, n), newValues = Arrays.copyOf(values, n), newChildren = Arrays.copyOf(children, n);
+        long[] newCounts = Arrays.copyOf(counts, n);
+        newKeys[keys.length] = separator;
+        newValues[keys.length] = separatorValue;
+        newChildren[keys.length] = right.children[0];
+        newCounts[keys.length] = right.counts[0];
+        System.arraycopy(right.keys, 1, newKeys, keys.length + 1, right.keys.length - 1);
+        System.arraycopy(right.values, 1, newValues, keys.length + 1, right.keys.length - 1);
+        System.arraycopy(right.children, 1, newChildren, keys.length + 1, right.keys.length - 1);
+        System.arraycopy(right.counts, 1, newCounts, keys.length + 1, right.keys.length - 1);
+        return new TreeNode(newKeys, newValues, newChildren, newCounts, Optional.empty());
+    }
+
+    private static byte[][] insert(byte[][] a, int index, byte[] x) {
+        byte[][] res = new byte[a.length + 1][];
+        System.arraycopy(a, 0, res, 0, index);
+        res[index] = x;
+        System.arraycopy(a, index, res, index + 1, a.length - index);
+        return res;
+    }
+
+    private static byte[][] remove(byte[][] a, int index) {
+        byte[][] res = new byte[a.length - 1][];
+        System.arraycopy(a, 0, res, 0, index);
+        System.arraycopy(a, index + 1, res, index, a.length - index - 1);
+        return res;
+    }
+
+    public byte[] serialize() {
+        return NodeFormat.encode(this);
+    }
+
+    public static TreeNode deserialize(byte[] raw) throws IOException {
+        return deserialize(raw, Optional.empty());
+    }
+
+    public static TreeNode deserialize(byte[] raw, Optional<byte[]> hash) throws IOException {
+        if (raw == null)
+            throw new IllegalArgumentException("Null byte[]!");
+        return deserialize(ByteBuffer.wrap(raw), hash);
+    }
+
+    public static TreeNode deserialize(ByteBuffer raw, Optional<byte[]> hash) throws IOException {
+        return NodeFormat.decode(raw, hash);
     }
 }
@@ -0,0 +1,84 @@
+package merklebtree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The values stored in the nodes of a tree with value blocks. Each starts with a tag byte: INLINE is followed by the
+ * value itself, and BLOCK by the hash of a block in storage holding the value. Small values stay inline, so only
+ * large ones cost an extra read, and rewriting a node doesn't rehash the large values of its keys.
+ *
+ * Equal values share a block, so a tree never removes value blocks, and leaves them to compaction.
+ */
+class ValueBlocks {
+    public static final byte INLINE = 0;
+    public static final byte BLOCK = 1;
+
+    /**
+     *
+     * @param value
+     * @param threshold the largest value to keep inline
+     * @param storage where larger values are put
+     * @return the value to store in a node
+     */
+    public static byte[] encode(byte[] value, int threshold, ContentAddressedStorage storage) {
+        if (value.length <= threshold)
+            return tag(INLINE, value);
+        return tag(BLOCK, storage.put(value));
+    }
+
+    /**
+     *
+     * @param stored a value from a node, or null
+     * @param storage
+     * @return the value, read from its block if it isn't inline
+     * @throws IOException
+     */
+    public static byte[] decode(byte[] stored, ContentAddressedStorage storage) throws IOException {
+        if (stored == null)
+            return null;
+        if (stored.length == 0)
+            throw new IOException("Untagged value");
+        byte[] body = Arrays.copyOfRange(stored, 1, stored.length);
+        if (stored[0] == INLINE)
+            return body;
+        if (stored[0] != BLOCK)
+            throw new IOException("Unknown value tag " + stored[0]);
+        byte[] value = storage.get(body);
+        if (value == null)
+            throw new IOException("Missing value block " + ByteArrayWrapper.bytesToHex(body));
+        return value;
+    }
+
+    /**
+     *
+     * @param stored a value from a node
+     * @param hashFunction
+     * @return the hash of the value, without reading its block
+     * @throws IOException
+     */
+    public static byte[] hash(byte[] stored, HashFunction hashFunction) throws IOException {
+        if (stored.length > 0 && stored[0] == BLOCK)
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        return hashFunction.hash(decode(stored, null));
+    }
+
+    /**
+     * Whether a value from a node might refer to a block. A reference is recognised by the hash itself, which says
+     * what function made it, so this doesn't depend on the hash function the store uses now. Values from trees
+     * without value blocks can look the same, so this may give false positives.
+     *
+     * @param stored
+     */
+    public static boolean isReference(byte[] stored) {
+        return stored.length > 1 && stored.length <= HashFunction.MAX_LENGTH + 1 && stored[0] == BLOCK
+                && HashFunction.isKnown(Arrays.copyOfRange(stored, 1, stored.length));
+    }
+
+    private static byte[] tag(byte tag, byte[] body) {
+        byte[] res = new byte[body.length + 1];
+        res[0] = tag;
+        System.arraycopy(body, 0, res, 1, body.length);
+        return res;
+    }
+}
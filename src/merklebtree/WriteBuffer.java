@@ -0,0 +1,135 @@
+package merklebtree;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Holds the blocks written and removed by one tree operation, and sends them to the target store in one putMany and
+ * one removeMany on flush. A block which is written and then removed again within the operation, like a node split
+ * and then merged, never reaches the target at all.
+ *
+ * Blocks are hashed here with the target's hash function, so writes can return their hash before they are flushed,
+ * and are handed to the target with their hashes so it doesn't hash them again.
+ */
+class WriteBuffer implements ContentAddressedStorage {
+    private final ContentAddressedStorage target;
+    private final TreeListener listener;
+    // the number of puts of each block not yet matched by a remove, in the order they were first written
+    private final Map<ByteArrayWrapper, Pending> puts = new LinkedHashMap<>();
+    // the number of removes of each block not matched by a later put
+    private final Map<ByteArrayWrapper, Integer> removes = new LinkedHashMap<>();
+
+    public WriteBuffer(ContentAddressedStorage target) {
+        this(target, TreeListener.NONE);
+    }
+
+    /**
+     *
+     * @param target
+     * @param listener told of every block hashed
+     */
+    public WriteBuffer(ContentAddressedStorage target, TreeListener listener) {
+        this.target = target;
+        this.listener = listener;
+    }
+
+    @Override
+    public HashFunction hashFunction() {
+        return target.hashFunction();
+    }
+
+    @Override
+    public byte[] put(byte[] value) {
+        byte[] hash = target.hashFunction().hash(value);
+        listener.hashed(value.length);
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        // a put after a remove of the same block cancels it, so the block stays as it was
+        Integer removed = removes.get(key);
+        if (removed != null) {
+            if (removed == 1)
+                removes.remove(key);
+            else
+                removes.put(key, removed - 1);
+            return hash;
+        }
+        Pending pending = puts.get(key);
+        if (pending == null)
+            puts.put(key, new Pending(value));
+        else
+            pending.count++;
+        return hash;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        Pending pending = puts.get(new ByteArrayWrapper(key));
+        return pending != null ? pending.value : target.get(key);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(byte[] key) {
+        Pending pending = puts.get(new ByteArrayWrapper(key));
+        return pending != null ? ByteBuffer.wrap(pending.value).asReadOnlyBuffer() : target.getBuffer(key);
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key) throws IOException {
+        Pending pending = puts.get(new ByteArrayWrapper(key));
+        return pending != null ? TreeNode.deserialize(pending.value, Optional.of(key)) : target.getNode(key);
+    }
+
+    @Override
+    public TreeNode getNode(byte[] key, TreeListener listener) throws IOException {
+        Pending pending = puts.get(new ByteArrayWrapper(key));
+        return pending != null ? TreeNode.deserialize(pending.value, Optional.of(key)) : target.getNode(key, listener);
+    }
+
+    @Override
+    public void prefetch(byte[] key) {
+        if (!puts.containsKey(new ByteArrayWrapper(key)))
+            target.prefetch(key);
+    }
+
+    @Override
+    public void remove(byte[] key) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(key);
+        Pending pending = puts.get(hash);
+        if (pending != null) {
+            if (--pending.count == 0)
+                puts.remove(hash);
+            return;
+        }
+        removes.merge(hash, 1, Integer::sum);
+    }
+
+    /**
+     * Send the buffered writes to the target, and then the removes.
+     */
+    public void flush() {
+        List<byte[]> values = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        for (Map.Entry<ByteArrayWrapper, Pending> e : puts.entrySet())
+            for (int i=0; i < e.getValue().count; i++) {
+                values.add(e.getValue().value);
+                hashes.add(e.getKey().data);
+            }
+        target.putMany(hashes, values);
+        List<byte[]> removed = new ArrayList<>();
+        for (Map.Entry<ByteArrayWrapper, Integer> e : removes.entrySet())
+            for (int i=0; i < e.getValue(); i++)
+                removed.add(e.getKey().data);
+        target.removeMany(removed);
+        puts.clear();
+        removes.clear();
+    }
+
+    private static class Pending {
+        public final byte[] value;
+        public int count = 1;
+
+        public Pending(byte[] value) {
+            this.value = value;
+        }
+    }
+}
@@ -3,7 +3,12 @@ package merklebtree;
 import org.junit.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 public class Tests {
 
@@ -29,7 +34,7 @@ public class Tests {
             if (!Arrays.equals(res1, value1))
                 throw new IllegalStateException("Results not equal");
         }
-        if (tree.root.keys.size() != 2)
+        if (tree.root.keys.length != 2)
             throw new IllegalStateException("New root should have two children!");
     }
 
@@ -187,6 +192,1873 @@ public class Tests {
         ((RAMStorage)tree.storage).clear();
     }
 
+    @Test
+    public void nodeCache() throws IOException {
+        RAMStorage ram = new RAMStorage();
+        NodeCache cache = new NodeCache(ram, 64 * 1024);
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), cache, 16);
+        int keylen = 32;
+
+        Random r = new Random(1);
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        int lim = 5000;
+        for (int i = 0; i < lim; i++) {
+            byte[] key1 = new byte[keylen];
+            r.nextBytes(key1);
+            byte[] value1 = new byte[keylen];
+            r.nextBytes(value1);
+            tree.put(key1, value1);
+            keys.add(key1);
+            values.add(value1);
+        }
+        for (int i = 0; i < lim; i++) {
+            byte[] res = tree.get(keys.get(i));
+            if (!Arrays.equals(res, values.get(i)))
+                throw new IllegalStateException("Results not equal");
+        }
+        for (int i = 0; i < lim; i += 2)
+            tree.delete(keys.get(i));
+        for (int i = 0; i < lim; i++) {
+            byte[] res = tree.get(keys.get(i));
+            if (!Arrays.equals(res, i % 2 == 0 ? null : values.get(i)))
+                throw new IllegalStateException("Results not equal");
+        }
+        if (cache.hits() == 0 || cache.misses() == 0)
+            throw new IllegalStateException("Cache not used!");
+        if (cache.bytes() > 64 * 1024)
+            throw new IllegalStateException("Cache exceeded its size!");
+        if (tree.size() != lim / 2)
+            throw new IllegalStateException("Wrong size!");
+
+        // removed blocks are dropped from the cache too
+        byte[] root = tree.root.hash.get();
+        if (cache.get(root) == null)
+            throw new IllegalStateException("Root not stored!");
+        cache.remove(root);
+        if (cache.get(root) != null)
+            throw new IllegalStateException("Removed block still cached!");
+        for (int i = 1; i < lim; i += 2)
+            tree.delete(keys.get(i));
+        if (cache.size() > ram.size())
+            throw new IllegalStateException("Cache holds removed blocks!");
+    }
+
+    @Test
+    public void batch() throws IOException {
+        RAMStorage ram = new RAMStorage();
+        int[] puts = new int[1];
+        ContentAddressedStorage counting = new ContentAddressedStorage() {
+            public byte[] put(byte[] value) {
+                puts[0]++;
+                return ram.put(value);
+            }
+            public byte[] get(byte[] key) {
+                return ram.get(key);
+            }
+            public void remove(byte[] key) {
+                ram.remove(key);
+            }
+        };
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), counting, 16);
+        Random r = new Random(1);
+        SortedMap<ByteArrayWrapper, byte[]> expected = new TreeMap<>();
+        for (int round = 0; round < 5; round++) {
+            Map<byte[], byte[]> batch = new HashMap<>();
+            for (int i = 0; i < 10000; i++) {
+                byte[] key = new byte[32];
+                r.nextBytes(key);
+                byte[] value = new byte[32];
+                r.nextBytes(value);
+                batch.put(key, value);
+                expected.put(new ByteArrayWrapper(key), value);
+            }
+            puts[0] = 0;
+            tree.putAll(batch);
+            if (puts[0] > ram.size())
+                throw new IllegalStateException("Wrote more nodes than are in the tree!");
+
+            List<byte[]> deletes = new ArrayList<>();
+            Iterator<ByteArrayWrapper> it = expected.keySet().iterator();
+            while (it.hasNext()) {
+                ByteArrayWrapper key = it.next();
+                if (r.nextInt(3) == 0) {
+                    deletes.add(key.data);
+                    it.remove();
+                }
+            }
+            tree.deleteAll(deletes);
+
+            if (tree.size() != expected.size())
+                throw new IllegalStateException("Wrong size!");
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Results not equal");
+            for (byte[] key : deletes)
+                if (tree.get(key) != null)
+                    throw new IllegalStateException("Key still present!");
+            if (reachableNodes(tree.root, ram) != ram.size())
+                throw new IllegalStateException("Superseded nodes left in storage!");
+        }
+
+        // single key operations still work on the result
+        for (ByteArrayWrapper key : new ArrayList<>(expected.keySet()).subList(0, 1000)) {
+            tree.delete(key.data);
+            if (tree.get(key.data) != null)
+                throw new IllegalStateException("Key still present!");
+        }
+
+        // deleting everything leaves an empty root
+        List<byte[]> all = new ArrayList<>();
+        for (ByteArrayWrapper key : expected.keySet())
+            all.add(key.data);
+        tree.deleteAll(all);
+        if (tree.size() != 0 || tree.root.keys.length != 1)
+            throw new IllegalStateException("Tree not empty!");
+    }
+
+    @Test
+    public void bulkLoad() throws IOException {
+        Random r = new Random(1);
+        for (int lim : new int[]{0, 1, 15, 16, 17, 135, 136, 10000, 54321}) {
+            SortedMap<ByteArrayWrapper, byte[]> entries = new TreeMap<>();
+            while (entries.size() < lim) {
+                byte[] key = new byte[8 + r.nextInt(4)];
+                r.nextBytes(key);
+                byte[] value = new byte[32];
+                r.nextBytes(value);
+                entries.put(new ByteArrayWrapper(key), value);
+            }
+            List<Map.Entry<byte[], byte[]>> sorted = new ArrayList<>();
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet())
+                sorted.add(new AbstractMap.SimpleEntry<>(e.getKey().data, e.getValue()));
+
+            RAMStorage ram = new RAMStorage();
+            MerkleBTree tree = MerkleBTree.bulkLoad(sorted.iterator(), ram, 16);
+            if (tree.size() != lim)
+                throw new IllegalStateException("Wrong size!");
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Results not equal");
+            checkShape(tree.root, ram, 16, true);
+            if (reachableNodes(tree.root, ram) != ram.size())
+                throw new IllegalStateException("Unreachable nodes left in storage!");
+
+            // the same input always gives the same tree
+            MerkleBTree again = MerkleBTree.bulkLoad(sorted.iterator(), new RAMStorage(), 16);
+            if (!Arrays.equals(tree.root.hash.get(), again.root.hash.get()))
+                throw new IllegalStateException("Different root for same input!");
+
+            for (Map.Entry<byte[], byte[]> e : sorted.subList(0, lim / 2)) {
+                tree.delete(e.getKey());
+                if (tree.get(e.getKey()) != null)
+                    throw new IllegalStateException("Key still present!");
+            }
+        }
+
+        try {
+            MerkleBTree.bulkLoad(Arrays.<Map.Entry<byte[], byte[]>>asList(
+                    new AbstractMap.SimpleEntry<>(new byte[]{2}, new byte[]{2}),
+                    new AbstractMap.SimpleEntry<>(new byte[]{1}, new byte[]{1})).iterator(), new RAMStorage(), 16);
+            throw new IllegalStateException("Accepted unsorted input!");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void nodeFormat() throws IOException {
+        Random r = new Random(1);
+        SortedMap<ByteArrayWrapper, byte[]> entries = new TreeMap<>();
+        while (entries.size() < 16) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            key[0] = 7;
+            key[1] = 42;
+            byte[] value = new byte[1 + r.nextInt(200)];
+            r.nextBytes(value);
+            entries.put(new ByteArrayWrapper(key), value);
+        }
+        int n = entries.size() + 1;
+        byte[][] keys = new byte[n][], values = new byte[n][], leafChildren = new byte[n][], innerChildren = new byte[n][];
+        keys[0] = new byte[0];
+        values[0] = new byte[0];
+        leafChildren[0] = new byte[0];
+        innerChildren[0] = new byte[32];
+        r.nextBytes(innerChildren[0]);
+        int i = 1;
+        for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet()) {
+            keys[i] = e.getKey().data;
+            values[i] = e.getValue();
+            leafChildren[i] = new byte[0];
+            innerChildren[i] = new byte[32];
+            r.nextBytes(innerChildren[i]);
+            i++;
+        }
+        TreeNode leaf = new TreeNode(keys, values, leafChildren, Optional.empty());
+        TreeNode inner = new TreeNode(keys, values, innerChildren, Optional.empty());
+        for (TreeNode node : Arrays.asList(leaf, inner)) {
+            byte[] legacy = legacySerialize(node);
+            byte[] compact = node.serialize();
+            if (compact.length >= legacy.length)
+                throw new IllegalStateException("Compact format isn't smaller!");
+            for (byte[] raw : Arrays.asList(compact, legacy)) {
+                TreeNode decoded = TreeNode.deserialize(raw);
+                if (!Arrays.equals(decoded.serialize(), compact))
+                    throw new IllegalStateException("Node changed in round trip!");
+            }
+        }
+
+        // legacy nodes stay readable through the tree
+        RAMStorage ram = new RAMStorage();
+        MerkleBTree tree = new MerkleBTree(leaf, ram, 16);
+        byte[] legacyRoot = ram.put(legacySerialize(tree.root));
+        MerkleBTree reopened = new MerkleBTree(ram.getNode(legacyRoot), ram, 16);
+        for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet())
+            if (!Arrays.equals(reopened.get(e.getKey().data), e.getValue()))
+                throw new IllegalStateException("Results not equal");
+    }
+
+    @Test
+    public void nodeView() throws IOException {
+        MerkleBTree tree = new MerkleBTree();
+        Random r = new Random(1);
+        Map<byte[], byte[]> entries = new HashMap<>();
+        Set<ByteArrayWrapper> seen = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            // mix key lengths, as keys are ordered by length first
+            byte[] key = new byte[2 + r.nextInt(40)];
+            r.nextBytes(key);
+            byte[] value = new byte[r.nextInt(100)];
+            r.nextBytes(value);
+            if (seen.add(new ByteArrayWrapper(key)))
+                entries.put(key, value);
+        }
+        tree.putAll(entries);
+        for (Map.Entry<byte[], byte[]> e : entries.entrySet()) {
+            if (!Arrays.equals(NodeView.get(tree.root.hash.get(), new ByteArrayWrapper(e.getKey()), tree.storage), e.getValue()))
+                throw new IllegalStateException("Results not equal");
+            byte[] missing = Arrays.copyOf(e.getKey(), e.getKey().length + 1);
+            if (tree.get(missing) != null && !seen.contains(new ByteArrayWrapper(missing)))
+                throw new IllegalStateException("Found missing key!");
+        }
+
+        // the view agrees with the decoded node
+        NodeView view = new NodeView();
+        TreeNode root = tree.storage.getNode(tree.root.hash.get());
+        if (!view.wrap(ByteBuffer.wrap(root.serialize())))
+            throw new IllegalStateException("Can't view current format!");
+        for (int i=0; i < root.keys.length; i++)
+            if (!Arrays.equals(view.key(i), root.keys[i]) || !Arrays.equals(view.value(i), root.values[i])
+                    || !Arrays.equals(view.child(i), root.children[i]) || view.search(root.keys[i]) != i)
+                throw new IllegalStateException("View differs from node!");
+        if (root.keys.length != view.size())
+            throw new IllegalStateException("View has wrong size!");
+    }
+
+    @Test
+    public void fileStorage() throws Exception {
+        Path dir = Files.createTempDirectory("merklebtree");
+        try {
+            FileStorage storage = new FileStorage(dir, 64 * 1024, 100);
+            MerkleBTree tree = new MerkleBTree(TreeNode.empty(), storage, 16);
+            Random r = new Random(1);
+            List<byte[]> keys = new ArrayList<>();
+            int lim = 5000;
+            for (int i = 0; i < lim; i++) {
+                byte[] key = new byte[32];
+                r.nextBytes(key);
+                tree.put(key, key);
+                keys.add(key);
+            }
+            for (int i = 0; i < lim; i += 2)
+                tree.delete(keys.get(i));
+            byte[] root = tree.root.hash.get();
+            // iteration prefetches the sibling after each child it reads, in both directions
+            for (boolean reverse : new boolean[]{false, true}) {
+                int found = 0;
+                for (Iterator<Map.Entry<byte[], byte[]>> it = tree.range(null, null, reverse); it.hasNext(); it.next())
+                    found++;
+                if (found != lim / 2)
+                    throw new IllegalStateException("Incorrect range size " + found);
+            }
+            // reads carry on while another thread syncs
+            FileStorage syncing = storage;
+            AtomicBoolean reading = new AtomicBoolean(true);
+            Future<?> syncs = ForkJoinPool.commonPool().submit(() -> {
+                for (int n = 0; reading.get(); n++) {
+                    syncing.remove(syncing.put(("sync" + n).getBytes()));
+                    syncing.sync();
+                }
+                return null;
+            });
+            for (int pass = 0; pass < 5; pass++)
+                for (int i = 1; i < lim; i += 2)
+                    if (!Arrays.equals(tree.get(keys.get(i)), keys.get(i)))
+                        throw new IllegalStateException("Results not equal");
+            reading.set(false);
+            syncs.get();
+            storage.prefetch(new byte[32]);
+            storage.close();
+            storage.prefetch(root);
+
+            // reopen after a clean close, and after losing the index
+            for (int pass = 0; pass < 2; pass++) {
+                storage = new FileStorage(dir, 64 * 1024, 100);
+                tree = new MerkleBTree(storage.getNode(root), storage, 16);
+                for (int i = 0; i < lim; i++)
+                    if (!Arrays.equals(tree.get(keys.get(i)), i % 2 == 0 ? null : keys.get(i)))
+                        throw new IllegalStateException("Results not equal");
+                if (storage.size() != reachableNodes(tree.root, storage))
+                    throw new IllegalStateException("Storage has wrong number of blocks!");
+                storage.close();
+                Files.delete(dir.resolve("index"));
+            }
+
+            // a torn write after the last sync is dropped on recovery
+            storage = new FileStorage(dir, 64 * 1024, 0);
+            byte[] torn = new byte[1000];
+            r.nextBytes(torn);
+            byte[] tornHash = storage.put(torn);
+            int segments = 0;
+            while (Files.exists(dir.resolve(String.format("%08d.log", segments + 1))))
+                segments++;
+            Path last = dir.resolve(String.format("%08d.log", segments));
+            byte[] segment = Files.readAllBytes(last);
+            int offset = -1;
+            for (int i = 0; offset < 0 && i + torn.length <= segment.length; i++)
+                if (Arrays.equals(Arrays.copyOfRange(segment, i, i + torn.length), torn))
+                    offset = i;
+            try (RandomAccessFile raf = new RandomAccessFile(last.toFile(), "rw")) {
+                raf.seek(offset + torn.length - 1);
+                raf.write(~torn[torn.length - 1]);
+            }
+            // reopen without closing, as if we had crashed
+            storage = new FileStorage(dir, 64 * 1024, 0);
+            if (storage.get(tornHash) != null)
+                throw new IllegalStateException("Torn record survived recovery!");
+            tree = new MerkleBTree(storage.getNode(root), storage, 16);
+            if (!Arrays.equals(tree.get(keys.get(1)), keys.get(1)))
+                throw new IllegalStateException("Results not equal");
+            storage.put(torn);
+            storage.close();
+            storage = new FileStorage(dir, 64 * 1024, 0);
+            if (!Arrays.equals(storage.get(tornHash), torn))
+                throw new IllegalStateException("Results not equal");
+            storage.close();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files)
+                    Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Path dir = Files.createTempDirectory("merklebtree");
+        try {
+            FileStorage storage = new FileStorage(dir, 16 * 1024, 0);
+            MerkleBTree tree = new MerkleBTree(TreeNode.empty(), storage, 16);
+            Random r = new Random(1);
+            List<byte[]> keys = new ArrayList<>();
+            int lim = 3000;
+            for (int i = 0; i < lim; i++) {
+                byte[] key = new byte[32];
+                r.nextBytes(key);
+                tree.put(key, key);
+                keys.add(key);
+            }
+            for (int i = 0; i < lim; i++)
+                if (i % 3 != 0)
+                    tree.delete(keys.get(i));
+            MerkleBTree finalTree = tree;
+            long before = diskUsage(dir);
+
+            // readers carry on while compacting
+            Throwable[] readError = new Throwable[1];
+            AtomicBoolean done = new AtomicBoolean();
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!done.get())
+                        for (int i = 0; i < lim; i += 3)
+                            if (!Arrays.equals(finalTree.get(keys.get(i)), keys.get(i)))
+                                throw new IllegalStateException("Results not equal");
+                } catch (Throwable t) {
+                    readError[0] = t;
+                }
+            });
+            reader.start();
+            Compactor compactor = new Compactor(storage, () -> Collections.singletonList(finalTree.root.hash.get()), 16 * 1024 * 1024, 60000);
+            long reclaimed = compactor.compact();
+            compactor.close();
+            done.set(true);
+            reader.join();
+            if (readError[0] != null)
+                throw new IllegalStateException(readError[0]);
+            if (reclaimed <= 0 || diskUsage(dir) >= before)
+                throw new IllegalStateException("Nothing reclaimed!");
+            if (storage.size() != reachableNodes(tree.root, storage))
+                throw new IllegalStateException("Storage has wrong number of blocks!");
+            byte[] root = tree.put(keys.get(1), keys.get(1));
+            storage.close();
+
+            // reopen with and without the index, which has to be rebuilt from the remaining segments
+            for (int pass = 0; pass < 2; pass++) {
+                storage = new FileStorage(dir, 16 * 1024, 0);
+                tree = new MerkleBTree(storage.getNode(root), storage, 16);
+                for (int i = 0; i < lim; i++)
+                    if (!Arrays.equals(tree.get(keys.get(i)), i % 3 == 0 || i == 1 ? keys.get(i) : null))
+                        throw new IllegalStateException("Results not equal");
+                if (storage.size() != reachableNodes(tree.root, storage))
+                    throw new IllegalStateException("Storage has wrong number of blocks!");
+                storage.close();
+                Files.delete(dir.resolve("index"));
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files)
+                    Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static long diskUsage(Path dir) throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path f : files)
+                total += Files.size(f);
+        }
+        return total;
+    }
+
+    @Test
+    public void refCounting() throws IOException {
+        RAMStorage ram = new RAMStorage();
+        RefCountingStorage storage = new RefCountingStorage(ram);
+        // two trees with the same contents share all their nodes
+        MerkleBTree a = new MerkleBTree(TreeNode.empty(), storage, 16);
+        MerkleBTree b = new MerkleBTree(TreeNode.empty(), storage, 16);
+        Random r = new Random(1);
+        List<byte[]> keys = new ArrayList<>();
+        int lim = 5000;
+        for (int i = 0; i < lim; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            a.put(key, key);
+            b.put(key, key);
+            keys.add(key);
+        }
+        if (!Arrays.equals(a.root.hash.get(), b.root.hash.get()) || storage.count(a.root.hash.get()) != 2)
+            throw new IllegalStateException("Trees don't share nodes!");
+        for (int i = 0; i < lim; i++)
+            if (i % 2 == 0)
+                a.delete(keys.get(i));
+        for (int i = 0; i < lim; i++) {
+            if (!Arrays.equals(b.get(keys.get(i)), keys.get(i)))
+                throw new IllegalStateException("Shared node was removed!");
+            if (!Arrays.equals(a.get(keys.get(i)), i % 2 == 0 ? null : keys.get(i)))
+                throw new IllegalStateException("Results not equal");
+        }
+        // overwriting keys with their current values, singly and in a batch, doesn't change any counts
+        Map<byte[], byte[]> unchanged = new HashMap<>();
+        for (int i = 0; i < lim; i++) {
+            b.put(keys.get(i), keys.get(i));
+            if (i % 2 == 1)
+                unchanged.put(keys.get(i), keys.get(i));
+        }
+        a.putAll(unchanged);
+        for (byte[] key : keys) {
+            a.delete(key);
+            b.delete(key);
+        }
+        if (!Arrays.equals(a.root.hash.get(), b.root.hash.get()) || ram.size() != storage.size()
+                || ram.size() != reachableNodes(a.root, storage))
+            throw new IllegalStateException("Blocks leaked: " + ram.size());
+    }
+
+    @Test
+    public void snapshots() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), ram, 16);
+        Random r = new Random(1);
+        List<byte[]> keys = new ArrayList<>();
+        int lim = 3000;
+        for (int i = 0; i < lim; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            tree.put(key, key);
+            keys.add(key);
+        }
+        int blocks = ram.size();
+        MerkleBTree snapshot = tree.snapshot();
+        MerkleBTree fork = tree.fork();
+        if (ram.size() != blocks)
+            throw new IllegalStateException("Snapshot copied nodes!");
+
+        // scan the snapshot while the live tree changes underneath it
+        AtomicReference<Throwable> readError = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                for (int pass = 0; pass < 3; pass++)
+                    for (byte[] key : keys)
+                        if (!Arrays.equals(snapshot.get(key), key))
+                            throw new IllegalStateException("Snapshot changed!");
+            } catch (Throwable t) {
+                readError.set(t);
+            }
+        });
+        reader.start();
+        for (int i = 0; i < lim; i += 2)
+            tree.delete(keys.get(i));
+        for (int i = 1; i < lim; i += 2)
+            fork.put(keys.get(i), new byte[] {1});
+        reader.join();
+        if (readError.get() != null)
+            throw new IllegalStateException(readError.get());
+
+        MerkleBTree reopened = MerkleBTree.openReadOnly(snapshot.root.hash.get(), ram, 16);
+        for (int i = 0; i < lim; i++) {
+            byte[] key = keys.get(i);
+            if (!Arrays.equals(reopened.get(key), key))
+                throw new IllegalStateException("Snapshot changed!");
+            if (!Arrays.equals(tree.get(key), i % 2 == 0 ? null : key))
+                throw new IllegalStateException("Results not equal");
+            if (!Arrays.equals(fork.get(key), i % 2 == 0 ? key : new byte[] {1}))
+                throw new IllegalStateException("Results not equal");
+        }
+        boolean rejected = false;
+        try {
+            reopened.put(keys.get(0), keys.get(0));
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        if (!rejected || !reopened.isReadOnly())
+            throw new IllegalStateException("Modified a read only tree!");
+        MerkleBTree fromHistory = MerkleBTree.open(snapshot.root.hash.get(), ram, 16);
+        fromHistory.delete(keys.get(1));
+        if (fromHistory.get(keys.get(1)) != null || !Arrays.equals(snapshot.get(keys.get(1)), keys.get(1)))
+            throw new IllegalStateException("Results not equal");
+    }
+
+    @Test
+    public void diff() throws IOException {
+        RAMStorage ram = new RAMStorage();
+        int[] reads = new int[1];
+        ContentAddressedStorage counting = new ContentAddressedStorage() {
+            public byte[] put(byte[] value) {
+                return ram.put(value);
+            }
+            public byte[] get(byte[] key) {
+                reads[0]++;
+                return ram.get(key);
+            }
+            public void remove(byte[] key) {
+                ram.remove(key);
+            }
+        };
+        Random r = new Random(1);
+        SortedMap<ByteArrayWrapper, byte[]> entries = new TreeMap<>();
+        while (entries.size() < 20000) {
+            byte[] key = new byte[1 + r.nextInt(8)];
+            r.nextBytes(key);
+            entries.put(new ByteArrayWrapper(key), key);
+        }
+        Map<byte[], byte[]> all = new HashMap<>();
+        for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet())
+            all.put(e.getKey().data, e.getValue());
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), counting, 16);
+        tree.putAll(all);
+        byte[] before = tree.root.hash.get();
+
+        // a small change only reads the paths to the changed keys
+        List<ByteArrayWrapper> keys = new ArrayList<>(entries.keySet());
+        SortedMap<ByteArrayWrapper, KeyChange> expected = new TreeMap<>();
+        MerkleBTree fork = tree.fork();
+        for (int i = 0; i < 5; i++) {
+            byte[] key = keys.get(r.nextInt(keys.size())).data;
+            fork.put(key, new byte[] {1});
+            expected.put(new ByteArrayWrapper(key), new KeyChange(key, Optional.of(key), Optional.of(new byte[] {1})));
+        }
+        reads[0] = 0;
+        checkDiff(fork.diff(before, fork.root.hash.get()), expected);
+        if (reads[0] > 100)
+            throw new IllegalStateException("Diff read " + reads[0] + " nodes!");
+
+        // a large random change
+        for (int i = 0; i < 3000; i++) {
+            byte[] key = keys.get(r.nextInt(keys.size())).data;
+            ByteArrayWrapper wrapped = new ByteArrayWrapper(key);
+            KeyChange previous = expected.get(wrapped);
+            Optional<byte[]> original = previous != null ? previous.before : Optional.of(key);
+            if (r.nextBoolean()) {
+                fork.delete(key);
+                expected.put(wrapped, new KeyChange(key, original, Optional.empty()));
+            } else {
+                byte[] value = new byte[] {2};
+                fork.put(key, value);
+                expected.put(wrapped, new KeyChange(key, original, Optional.of(value)));
+            }
+            byte[] added = new byte[10 + r.nextInt(4)];
+            r.nextBytes(added);
+            fork.put(added, added);
+            expected.put(new ByteArrayWrapper(added), new KeyChange(added, Optional.empty(), Optional.of(added)));
+        }
+        expected.values().removeIf(c -> !c.before.isPresent() && !c.after.isPresent());
+        checkDiff(fork.diff(before, fork.root.hash.get()), expected);
+        SortedMap<ByteArrayWrapper, KeyChange> reversed = new TreeMap<>();
+        for (KeyChange c : expected.values())
+            reversed.put(new ByteArrayWrapper(c.key), new KeyChange(c.key, c.after, c.before));
+        checkDiff(fork.diff(fork.root.hash.get(), before), reversed);
+        if (fork.diff(before, before).hasNext())
+            throw new IllegalStateException("Tree differs from itself!");
+
+        // canonical trees have leaves at different depths, but shared subtrees are still skipped
+        MerkleBTree canonical = MerkleBTree.canonical(counting, 16);
+        canonical.putAll(all);
+        before = canonical.root.hash.get();
+        MerkleBTree canonicalFork = canonical.fork();
+        expected.clear();
+        for (int i = 0; i < 5; i++) {
+            byte[] key = keys.get(r.nextInt(keys.size())).data;
+            canonicalFork.put(key, new byte[] {1});
+            expected.put(new ByteArrayWrapper(key), new KeyChange(key, Optional.of(key), Optional.of(new byte[] {1})));
+        }
+        reads[0] = 0;
+        checkDiff(canonicalFork.diff(before, canonicalFork.root.hash.get()), expected);
+        // only the nodes in one tree but not the other are read
+        Set<ByteArrayWrapper> inBefore = new HashSet<>(), inAfter = new HashSet<>();
+        nodeHashes(before, ram, inBefore);
+        nodeHashes(canonicalFork.root.hash.get(), ram, inAfter);
+        Set<ByteArrayWrapper> differing = new HashSet<>(inBefore);
+        differing.addAll(inAfter);
+        inBefore.retainAll(inAfter);
+        differing.removeAll(inBefore);
+        if (reads[0] > differing.size())
+            throw new IllegalStateException("Diff read " + reads[0] + " nodes, but only " + differing.size() + " differ!");
+        reversed.clear();
+        for (KeyChange c : expected.values())
+            reversed.put(new ByteArrayWrapper(c.key), new KeyChange(c.key, c.after, c.before));
+        checkDiff(canonicalFork.diff(canonicalFork.root.hash.get(), before), reversed);
+    }
+
+    private static void checkDiff(Iterator<KeyChange> diff, SortedMap<ByteArrayWrapper, KeyChange> expected) {
+        Iterator<KeyChange> wanted = expected.values().iterator();
+        while (diff.hasNext()) {
+            KeyChange c = diff.next();
+            if (!wanted.hasNext())
+                throw new IllegalStateException("Unexpected change " + c);
+            KeyChange w = wanted.next();
+            if (!Arrays.equals(c.key, w.key) || !Arrays.equals(c.before.orElse(null), w.before.orElse(null))
+                    || !Arrays.equals(c.after.orElse(null), w.after.orElse(null)))
+                throw new IllegalStateException("Expected " + w + " but got " + c);
+        }
+        if (wanted.hasNext())
+            throw new IllegalStateException("Missing change " + wanted.next());
+    }
+
+    @Test
+    public void range() throws IOException {
+        Random r = new Random(1);
+        TreeMap<ByteArrayWrapper, byte[]> entries = new TreeMap<>();
+        while (entries.size() < 10000) {
+            byte[] key = new byte[1 + r.nextInt(3)];
+            r.nextBytes(key);
+            byte[] value = new byte[r.nextInt(10)];
+            r.nextBytes(value);
+            entries.put(new ByteArrayWrapper(key), value);
+        }
+        MerkleBTree tree = new MerkleBTree();
+        for (Map.Entry<ByteArrayWrapper, byte[]> e : entries.entrySet())
+            tree.put(e.getKey().data, e.getValue());
+        List<ByteArrayWrapper> keys = new ArrayList<>(entries.keySet());
+        for (int i = 0; i < 200; i++) {
+            // bounds which are present, absent, or missing
+            byte[] from = randomBound(r, keys), to = randomBound(r, keys);
+            if (from != null && to != null && ByteArrayWrapper.compare(from, to) > 0) {
+                byte[] tmp = from;
+                from = to;
+                to = tmp;
+            }
+            NavigableMap<ByteArrayWrapper, byte[]> expected = entries;
+            if (from != null)
+                expected = expected.tailMap(new ByteArrayWrapper(from), true);
+            if (to != null)
+                expected = expected.headMap(new ByteArrayWrapper(to), false);
+            for (boolean reverse : new boolean[] {false, true}) {
+                Iterator<Map.Entry<byte[], byte[]>> range = tree.range(from, to, reverse);
+                for (Map.Entry<ByteArrayWrapper, byte[]> e : (reverse ? expected.descendingMap() : expected).entrySet()) {
+                    Map.Entry<byte[], byte[]> actual = range.next();
+                    if (!Arrays.equals(actual.getKey(), e.getKey().data) || !Arrays.equals(actual.getValue(), e.getValue()))
+                        throw new IllegalStateException("Results not equal");
+                }
+                if (range.hasNext())
+                    throw new IllegalStateException("Range too long!");
+            }
+        }
+        long count = StreamSupport.stream(tree.spliterator(null, null), false).count();
+        if (count != entries.size())
+            throw new IllegalStateException("Wrong size!");
+    }
+
+    private static byte[] randomBound(Random r, List<ByteArrayWrapper> keys) {
+        switch (r.nextInt(3)) {
+            case 0:
+                return null;
+            case 1:
+                return keys.get(r.nextInt(keys.size())).data;
+            default:
+                byte[] res = new byte[r.nextInt(4)];
+                r.nextBytes(res);
+                return res;
+        }
+    }
+
+    @Test
+    public void parallelTraversal() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        byte[] corrupt = new byte[32];
+        ContentAddressedStorage storage = new ContentAddressedStorage() {
+            public byte[] put(byte[] value) {
+                return ram.put(value);
+            }
+            public byte[] get(byte[] key) {
+                byte[] raw = ram.get(key);
+                if (Arrays.equals(key, corrupt))
+                    raw[raw.length - 1]++;
+                return raw;
+            }
+            public void remove(byte[] key) {
+                ram.remove(key);
+            }
+        };
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), storage, 16);
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = new byte[1 + r.nextInt(8)];
+            r.nextBytes(key);
+            tree.put(key, key);
+        }
+        byte[] root = tree.root.hash.get();
+        try (ParallelTraversal traversal = new ParallelTraversal(storage, 4, 8)) {
+            if (traversal.size(root) != tree.size())
+                throw new IllegalStateException("Wrong size!");
+            if (traversal.verify(root) != reachableNodes(tree.root, storage))
+                throw new IllegalStateException("Not every node was verified!");
+
+            // subtree counts answer size without reading the subtrees
+            Metrics metrics = new Metrics();
+            try (ParallelTraversal counted = new ParallelTraversal(new MetricsStorage(storage, metrics), 4, 8)) {
+                if (counted.size(root) != tree.size() || metrics.nodesRead() != 1)
+                    throw new IllegalStateException("Subtrees with known counts were read!");
+                byte[] legacyRoot = ram.put(legacySerialize(tree.root));
+                if (counted.size(legacyRoot) != tree.size() || metrics.nodesRead() != 2 + tree.root.children.length)
+                    throw new IllegalStateException("Wrong subtrees read!");
+            }
+
+            // trees use the traversal for whole tree operations
+            MerkleBTree legacy = MerkleBTree.open(ram.put(legacySerialize(tree.root)), storage, 16);
+            legacy.setTraversal(traversal);
+            if (legacy.size() != tree.size() || legacy.verify() != reachableNodes(tree.root, storage)
+                    || tree.verify() != legacy.verify())
+                throw new IllegalStateException("Wrong result from tree!");
+
+            byte[] from = new byte[] {0, 0, 0}, to = new byte[] {0, 0, 0, 0, 0};
+            List<byte[]> expected = new ArrayList<>();
+            tree.range(from, to).forEachRemaining(e -> expected.add(e.getKey()));
+            List<byte[]> actual = traversal.pool().submit(() -> StreamSupport.stream(traversal.spliterator(root, from, to), true)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList())).get();
+            if (actual.size() != expected.size())
+                throw new IllegalStateException("Wrong size!");
+            for (int i = 0; i < actual.size(); i++)
+                if (!Arrays.equals(actual.get(i), expected.get(i)))
+                    throw new IllegalStateException("Results not equal");
+
+            // with a traversal, a tree's spliterator splits at child pointers, and reads values from their blocks
+            MerkleBTree blocks = MerkleBTree.withValueBlocks(storage, 16, 32);
+            SortedMap<ByteArrayWrapper, byte[]> values = new TreeMap<>();
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = new byte[1 + r.nextInt(8)];
+                r.nextBytes(key);
+                byte[] value = new byte[r.nextBoolean() ? 8 : 100];
+                r.nextBytes(value);
+                blocks.put(key, value);
+                values.put(new ByteArrayWrapper(key), value);
+            }
+            blocks.setTraversal(traversal);
+            Spliterator<Map.Entry<byte[], byte[]>> rest = blocks.spliterator(null, null);
+            if (rest.estimateSize() == Long.MAX_VALUE)
+                throw new IllegalStateException("Spliterator can't estimate its size!");
+            Spliterator<Map.Entry<byte[], byte[]>> prefix = rest.trySplit();
+            if (prefix == null)
+                throw new IllegalStateException("Spliterator didn't split!");
+            Iterator<Map.Entry<ByteArrayWrapper, byte[]>> wanted = values.entrySet().iterator();
+            for (Spliterator<Map.Entry<byte[], byte[]>> half : Arrays.asList(prefix, rest)) {
+                int[] found = new int[1];
+                half.forEachRemaining(e -> {
+                    Map.Entry<ByteArrayWrapper, byte[]> w = wanted.next();
+                    if (!Arrays.equals(e.getKey(), w.getKey().data) || !Arrays.equals(e.getValue(), w.getValue()))
+                        throw new IllegalStateException("Results not equal");
+                    found[0]++;
+                });
+                if (found[0] < values.size() / 4)
+                    throw new IllegalStateException("Uneven split!");
+            }
+            if (wanted.hasNext())
+                throw new IllegalStateException("Missing entries!");
+            if (traversal.pool().submit(() -> StreamSupport.stream(blocks.spliterator(null, null), true).count()).get() != values.size())
+                throw new IllegalStateException("Wrong size!");
+
+            // damage a leaf
+            TreeNode node = tree.root;
+            while (!node.isLeaf())
+                node = storage.getNode(node.children[node.children.length - 1]);
+            System.arraycopy(node.hash.get(), 0, corrupt, 0, 32);
+            boolean detected = false;
+            try {
+                traversal.verify(root);
+            } catch (IOException e) {
+                detected = true;
+            }
+            if (!detected)
+                throw new IllegalStateException("Corrupt node not detected!");
+        }
+    }
+
+    @Test
+    public void subtreeCounts() throws IOException {
+        Random r = new Random(2);
+        TreeMap<ByteArrayWrapper, byte[]> entries = new TreeMap<>();
+        RAMStorage storage = new RAMStorage();
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), storage, 16);
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = new byte[1 + r.nextInt(2)];
+            r.nextBytes(key);
+            if (r.nextInt(3) == 0) {
+                tree.delete(key);
+                entries.remove(new ByteArrayWrapper(key));
+            } else {
+                tree.put(key, key);
+                entries.put(new ByteArrayWrapper(key), key);
+            }
+        }
+        Map<byte[], byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = new byte[3];
+            r.nextBytes(key);
+            batch.put(key, key);
+            entries.put(new ByteArrayWrapper(key), key);
+        }
+        tree.putAll(batch);
+        if (checkCounts(tree.root, storage) != entries.size() || tree.root.subtreeSize() != entries.size())
+            throw new IllegalStateException("Wrong counts!");
+
+        List<ByteArrayWrapper> keys = new ArrayList<>(entries.keySet());
+        for (int i = 0; i < 500; i++) {
+            int index = r.nextInt(keys.size());
+            if (!Arrays.equals(tree.select(index).getKey(), keys.get(index).data))
+                throw new IllegalStateException("Wrong key selected!");
+            if (tree.rank(keys.get(index).data) != index)
+                throw new IllegalStateException("Wrong rank!");
+            byte[] absent = new byte[4];
+            r.nextBytes(absent);
+            if (tree.rank(absent) != entries.headMap(new ByteArrayWrapper(absent)).size())
+                throw new IllegalStateException("Wrong rank for absent key!");
+        }
+        boolean outOfRange = false;
+        try {
+            tree.select(keys.size());
+        } catch (IndexOutOfBoundsException e) {
+            outOfRange = true;
+        }
+        if (!outOfRange)
+            throw new IllegalStateException("Selected beyond the end!");
+
+        MerkleBTree loaded = MerkleBTree.bulkLoad(tree.range(null, null), new RAMStorage(), 16);
+        if (checkCounts(loaded.root, loaded.storage) != entries.size() || loaded.root.subtreeSize() != entries.size())
+            throw new IllegalStateException("Wrong counts after bulk load!");
+
+        // a root without counts, as written by older versions, still gives the right answers
+        TreeNode root = tree.root;
+        TreeNode noCounts = new TreeNode(root.keys, root.values, root.children, Optional.empty());
+        MerkleBTree old = MerkleBTree.open(storage.put(noCounts.serialize()), storage, 16);
+        if (old.root.subtreeSize() != -1 || old.size() != entries.size())
+            throw new IllegalStateException("Wrong size without counts!");
+        if (old.rank(keys.get(100).data) != 100 || !Arrays.equals(old.select(100).getKey(), keys.get(100).data))
+            throw new IllegalStateException("Wrong rank or select without counts!");
+    }
+
+    /**
+     *
+     * @return the number of keys under node, after checking that each child's count matches
+     */
+    private static long checkCounts(TreeNode node, ContentAddressedStorage storage) throws IOException {
+        long total = node.keys.length - 1;
+        for (int i = 0; i < node.keys.length; i++) {
+            if (node.isLeaf())
+                continue;
+            long size = checkCounts(storage.getNode(node.children[i]), storage);
+            if (node.counts[i] != size)
+                throw new IllegalStateException("Count " + node.counts[i] + " should be " + size);
+            total += size;
+        }
+        return total;
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        MerkleBTree start = new MerkleBTree(TreeNode.empty(), storage, 16);
+        int threads = 8, perThread = 2000;
+        AtomicBoolean failed = new AtomicBoolean();
+        try (ConcurrentMerkleBTree tree = new ConcurrentMerkleBTree(start.root.hash.get(), storage, 16, 256)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                writers.add(new Thread(() -> {
+                    try {
+                        List<CompletableFuture<byte[]>> pending = new ArrayList<>();
+                        for (int i = 0; i < perThread; i++) {
+                            byte[] key = (id + ":" + i).getBytes();
+                            pending.add(tree.submit(key, Optional.of(key)));
+                            // the odd keys are written twice, then deleted
+                            if (i % 2 == 1) {
+                                pending.add(tree.submit(key, Optional.of(new byte[1])));
+                                pending.add(tree.submit(key, Optional.empty()));
+                            }
+                        }
+                        for (CompletableFuture<byte[]> f : pending)
+                            f.get();
+                        // our own writes are visible once they are applied
+                        if (!Arrays.equals(tree.get((id + ":0").getBytes()), (id + ":0").getBytes()))
+                            failed.set(true);
+                    } catch (Exception e) {
+                        failed.set(true);
+                    }
+                }));
+            }
+            // readers on snapshots see a fixed tree while the writers run
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        MerkleBTree snapshot = tree.snapshot();
+                        long size = snapshot.size();
+                        Iterator<Map.Entry<byte[], byte[]>> all = snapshot.range(null, null);
+                        long count = 0;
+                        for (; all.hasNext(); all.next())
+                            count++;
+                        if (count != size)
+                            failed.set(true);
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+            });
+            for (Thread t : writers)
+                t.start();
+            reader.start();
+            for (Thread t : writers)
+                t.join();
+            reader.join();
+            if (failed.get())
+                throw new IllegalStateException("Concurrent access failed!");
+
+            TreeNode root = tree.root();
+            if (root.size(storage) != threads * perThread / 2)
+                throw new IllegalStateException("Wrong size!");
+            for (int t = 0; t < threads; t++)
+                for (int i = 0; i < perThread; i++) {
+                    byte[] key = (t + ":" + i).getBytes();
+                    byte[] value = root.get(new ByteArrayWrapper(key), storage);
+                    if (i % 2 == 0 ? !Arrays.equals(value, key) : value != null)
+                        throw new IllegalStateException("Wrong value!");
+                }
+            checkShape(root, storage, 16, true);
+        }
+
+        // an Error in the writer fails the queued writes and every later one, rather than leaving them waiting
+        RAMStorage ram = new RAMStorage();
+        ContentAddressedStorage broken = new ContentAddressedStorage() {
+            @Override
+            public byte[] put(byte[] value) {
+                throw new AssertionError("Write failed");
+            }
+
+            @Override
+            public byte[] get(byte[] key) {
+                return ram.get(key);
+            }
+
+            @Override
+            public void remove(byte[] key) {
+                ram.remove(key);
+            }
+        };
+        TreeNode empty = TreeNode.empty();
+        try (ConcurrentMerkleBTree tree = new ConcurrentMerkleBTree(ram.put(empty.serialize()), broken, 16, 8)) {
+            for (CompletableFuture<byte[]> write : Arrays.asList(tree.submit("a".getBytes(), Optional.of("a".getBytes())),
+                    tree.submit("b".getBytes(), Optional.empty()))) {
+                try {
+                    write.get(10, TimeUnit.SECONDS);
+                    throw new IllegalStateException("Write succeeded!");
+                } catch (ExecutionException e) {
+                    if (!(e.getCause().getCause() instanceof AssertionError))
+                        throw e;
+                }
+            }
+            try {
+                tree.put("c".getBytes(), "c".getBytes());
+                throw new IllegalStateException("Write succeeded!");
+            } catch (IOException e) {
+                if (!(e.getCause() instanceof AssertionError))
+                    throw e;
+            }
+        }
+    }
+
+    @Test
+    public void asyncTree() throws Exception {
+        RAMStorage ram = new RAMStorage();
+        MerkleBTree sync = new MerkleBTree(TreeNode.empty(), ram, 16);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] key = ("key" + i).getBytes();
+            keys.add(key);
+            sync.put(key, key);
+        }
+        // a store whose reads only complete when we release them, so we can see which are in flight together
+        List<CompletableFuture<byte[]>> pending = new ArrayList<>();
+        List<byte[]> requested = new ArrayList<>();
+        AsyncContentAddressedStorage direct = AsyncContentAddressedStorage.wrap(ram, Runnable::run);
+        AsyncContentAddressedStorage held = new AsyncContentAddressedStorage() {
+            @Override
+            public synchronized CompletableFuture<byte[]> getAsync(byte[] key) {
+                CompletableFuture<byte[]> res = new CompletableFuture<>();
+                pending.add(res);
+                requested.add(key);
+                return res;
+            }
+
+            @Override
+            public CompletableFuture<byte[]> putAsync(byte[] value) {
+                return direct.putAsync(value);
+            }
+
+            @Override
+            public CompletableFuture<Void> removeAsync(byte[] key) {
+                return direct.removeAsync(key);
+            }
+        };
+        AsyncMerkleBTree tree = new AsyncMerkleBTree(sync.root, held, 16);
+        CompletableFuture<List<byte[]>> all = tree.getAllAsync(keys);
+        int rounds = 0;
+        while (!all.isDone()) {
+            List<CompletableFuture<byte[]>> round;
+            List<byte[]> hashes;
+            synchronized (held) {
+                round = new ArrayList<>(pending);
+                hashes = new ArrayList<>(requested);
+                pending.clear();
+                requested.clear();
+            }
+            Set<ByteArrayWrapper> distinct = new HashSet<>();
+            for (byte[] hash : hashes)
+                distinct.add(new ByteArrayWrapper(hash));
+            if (distinct.size() != hashes.size())
+                throw new IllegalStateException("Duplicate fetches in flight!");
+            for (int i = 0; i < round.size(); i++)
+                round.get(i).complete(ram.get(hashes.get(i)));
+            rounds++;
+        }
+        // every lookup fetches one level of the tree per round
+        int depth = 0;
+        for (TreeNode node = sync.root; !node.isLeaf(); node = ram.getNode(node.children[0]))
+            depth++;
+        if (rounds != depth)
+            throw new IllegalStateException("Fetches weren't pipelined: " + rounds + " rounds for depth " + depth);
+        List<byte[]> values = all.get();
+        for (int i = 0; i < keys.size(); i++)
+            if (!Arrays.equals(values.get(i), keys.get(i)))
+                throw new IllegalStateException("Wrong value!");
+
+        // puts queue behind each other, and give the same tree as the synchronous puts
+        AsyncMerkleBTree writable = new AsyncMerkleBTree(sync.root, direct, 16);
+        List<CompletableFuture<byte[]>> puts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = ("new" + i).getBytes();
+            puts.add(writable.putAsync(key, key));
+            sync.put(key, key);
+        }
+        if (!Arrays.equals(puts.get(puts.size() - 1).get(), sync.root.hash.get()))
+            throw new IllegalStateException("Async puts gave a different tree!");
+        if (!Arrays.equals(writable.getAsync("new7".getBytes()).get(), "new7".getBytes()))
+            throw new IllegalStateException("Missing async put!");
+    }
+
+    @Test
+    public void batchedWrites() throws IOException {
+        // counts the calls which reach the store
+        RAMStorage ram = new RAMStorage();
+        int[] calls = new int[4]; // puts the store has to hash, putMany with hashes, remove, removeMany
+        ContentAddressedStorage counting = new ContentAddressedStorage() {
+            @Override
+            public byte[] put(byte[] value) {
+                calls[0]++;
+                return ram.put(value);
+            }
+
+            @Override
+            public List<byte[]> putMany(List<byte[]> values) {
+                calls[0]++;
+                return ram.putMany(values);
+            }
+
+            @Override
+            public void putMany(List<byte[]> hashes, List<byte[]> values) {
+                calls[1]++;
+                ram.putMany(hashes, values);
+            }
+
+            @Override
+            public byte[] get(byte[] key) {
+                return ram.get(key);
+            }
+
+            @Override
+            public void remove(byte[] key) {
+                calls[2]++;
+                ram.remove(key);
+            }
+
+            @Override
+            public void removeMany(List<byte[]> keys) {
+                calls[3]++;
+                ram.removeMany(keys);
+            }
+        };
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), counting, 4);
+        calls[0] = 0; // storing the empty root
+        MerkleBTree reference = new MerkleBTree(TreeNode.empty(), new RAMStorage(), 4);
+        Random r = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[2];
+            r.nextBytes(key);
+            int before = calls[1] + calls[3];
+            if (r.nextInt(3) == 0) {
+                tree.delete(key);
+                reference.delete(key);
+            } else {
+                tree.put(key, key);
+                reference.put(key, key);
+            }
+            if (calls[1] + calls[3] - before > 2)
+                throw new IllegalStateException("Writes weren't batched!");
+        }
+        Map<byte[], byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] key = new byte[3];
+            r.nextBytes(key);
+            batch.put(key, key);
+        }
+        reference.putAll(batch);
+        int before = calls[1];
+        tree.putAll(batch);
+        if (calls[1] - before != 1)
+            throw new IllegalStateException("Batch wasn't written at once!");
+        if (calls[0] != 0 || calls[2] != 0)
+            throw new IllegalStateException("Single block or unhashed calls reached the store!");
+        if (!Arrays.equals(tree.root.hash.get(), reference.root.hash.get()))
+            throw new IllegalStateException("Batched writes gave a different tree!");
+        if (ram.size() != reachableNodes(tree.root, ram))
+            throw new IllegalStateException("Replaced nodes weren't removed!");
+
+        // the batch operations of the file store and cache
+        Path dir = Files.createTempDirectory("merklebtree");
+        try (FileStorage file = new FileStorage(dir, 1 << 16, 0)) {
+            NodeCache cache = new NodeCache(file, 1 << 20);
+            List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                values.add(("value" + i).getBytes());
+            List<byte[]> hashes = cache.putMany(values);
+            cache.get(hashes.get(0));
+            List<byte[]> read = cache.getMany(hashes);
+            for (int i = 0; i < values.size(); i++)
+                if (!Arrays.equals(read.get(i), values.get(i)))
+                    throw new IllegalStateException("Wrong value from getMany!");
+            cache.removeMany(hashes.subList(0, 50));
+            cache.clear();
+            if (file.size() != 50 || cache.getMany(hashes.subList(0, 1)).get(0) != null)
+                throw new IllegalStateException("removeMany failed!");
+        }
+    }
+
+    @Test
+    public void hashFunctions() throws IOException {
+        // BLAKE2b-256 test vectors, over inputs of bytes i % 251
+        Map<Integer, String> vectors = new LinkedHashMap<>();
+        vectors.put(0, "0e5751c026e543b2e8ab2eb06099daa1d1e5df47778f7787faab45cdf12fe3a8");
+        vectors.put(128, "c3582f71ebb2be66fa5dd750f80baae97554f3b015663c8be377cfcb2488c1d1");
+        vectors.put(129, "f7f3c46ba2564ff4c4c162da1f5b605f9f1c4aa6a20652a9f9a337c1a2f5b9c9");
+        vectors.put(1000, "b372d0608f720c8c3dd41e9c8eecb10143b41abe520b616607e754bf79c08331");
+        for (Map.Entry<Integer, String> e : vectors.entrySet()) {
+            byte[] input = new byte[e.getKey()];
+            for (int i = 0; i < input.length; i++)
+                input[i] = (byte) (i % 251);
+            byte[] hash = HashFunction.BLAKE2B_256.hash(input);
+            if (!ByteArrayWrapper.bytesToHex(hash).equals("a0e40220" + e.getValue()))
+                throw new IllegalStateException("Wrong BLAKE2b hash for " + e.getKey() + " bytes!");
+            // hashing a buffer in place gives the same result, and leaves the buffer as it was
+            ByteBuffer direct = ByteBuffer.allocateDirect(input.length + 7);
+            direct.position(7);
+            direct.put(input);
+            direct.position(7);
+            if (!Arrays.equals(HashFunction.BLAKE2B_256.hash(direct), hash) || direct.position() != 7)
+                throw new IllegalStateException("Buffer hash differs!");
+            if (HashFunction.of(hash) != HashFunction.BLAKE2B_256)
+                throw new IllegalStateException("Hash function not recognised!");
+        }
+        if (!ByteArrayWrapper.bytesToHex(HashFunction.SHA256.hash("abc".getBytes()))
+                .equals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"))
+            throw new IllegalStateException("Wrong SHA-256 hash!");
+
+        // trees over either hash, in memory and on disk, with verification picking the hash from each pointer
+        Path dir = Files.createTempDirectory("merklebtree");
+        try (FileStorage file = new FileStorage(dir, 1 << 16, 0, HashFunction.BLAKE2B_256);
+             ParallelTraversal traversal = new ParallelTraversal(file, 2, 4)) {
+            for (ContentAddressedStorage storage : Arrays.asList(new RAMStorage(HashFunction.BLAKE2B_256), file)) {
+                MerkleBTree tree = new MerkleBTree(TreeNode.empty(), new RefCountingStorage(storage), 16);
+                for (int i = 0; i < 2000; i++)
+                    tree.put(("key" + i).getBytes(), ("value" + i).getBytes());
+                for (int i = 0; i < 2000; i += 2)
+                    tree.delete(("key" + i).getBytes());
+                if (tree.root.hash.get().length != 36 || tree.size() != 1000)
+                    throw new IllegalStateException("Wrong tree!");
+                if (!Arrays.equals(tree.get("key1".getBytes()), "value1".getBytes()))
+                    throw new IllegalStateException("Wrong value!");
+                if (storage == file && traversal.verify(tree.root.hash.get()) != reachableNodes(tree.root, file))
+                    throw new IllegalStateException("Verification failed!");
+            }
+        }
+    }
+
+    @Test
+    public void metrics() throws IOException {
+        Metrics metrics = new Metrics();
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), new MetricsStorage(new RAMStorage(), metrics), 4);
+        tree.setListener(metrics);
+        Random r = new Random(7);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[4];
+            r.nextBytes(key);
+            keys.add(key);
+            tree.put(key, key);
+        }
+        for (byte[] key : keys)
+            if (!Arrays.equals(tree.get(key), key))
+                throw new IllegalStateException("Incorrect value");
+        for (byte[] key : keys.subList(0, 150))
+            tree.delete(key);
+
+        if (metrics.splits() == 0)
+            throw new IllegalStateException("No splits recorded");
+        if (metrics.merges() + metrics.rotations() == 0)
+            throw new IllegalStateException("No rebalancing recorded");
+        if (metrics.latency(TreeListener.Operation.PUT).count() != 200
+                || metrics.latency(TreeListener.Operation.GET).count() != 200
+                || metrics.latency(TreeListener.Operation.DELETE).count() != 150)
+            throw new IllegalStateException("Incorrect operation counts");
+        if (metrics.writesPerOperation(TreeListener.Operation.GET).percentile(1) != 0)
+            throw new IllegalStateException("A get wrote blocks");
+        if (metrics.readsPerOperation(TreeListener.Operation.GET).percentile(0.5) == 0
+                || metrics.readsPerOperation(TreeListener.Operation.PUT).percentile(0.5) == 0
+                || metrics.readsPerOperation(TreeListener.Operation.DELETE).percentile(0.5) == 0)
+            throw new IllegalStateException("An operation read no blocks");
+        if (metrics.bytesRead() < metrics.blocksRead() || metrics.nodesRead() > metrics.blocksRead())
+            throw new IllegalStateException("Block reads not recorded");
+        if (metrics.blocksWritten() == 0 || metrics.bytesWritten() < metrics.blocksWritten()
+                || metrics.blocksRemoved() == 0 || metrics.nodesRead() == 0)
+            throw new IllegalStateException("Storage events not recorded");
+        if (metrics.hashesPerOperation(TreeListener.Operation.PUT).percentile(0.5) == 0
+                || metrics.hashesPerOperation(TreeListener.Operation.GET).percentile(1) != 0)
+            throw new IllegalStateException("Hashes not recorded");
+        // each block reaches the store with its hash, so only the tree hashes it, though blocks written and removed
+        // again within an operation are hashed without being written
+        if (metrics.hashes() < metrics.blocksWritten() || metrics.hashes() >= 2 * metrics.blocksWritten())
+            throw new IllegalStateException("Blocks hashed twice: " + metrics.hashes() + " for " + metrics.blocksWritten());
+
+        // only the nodes a cache deserializes are counted, not those it already has decoded, even when it is wrapped
+        Metrics cached = new Metrics();
+        RAMStorage ram = new RAMStorage();
+        // the number of reads to allow before failing, or -1 for no limit
+        int[] failAfter = {-1};
+        ContentAddressedStorage flaky = new ContentAddressedStorage() {
+            @Override
+            public byte[] put(byte[] value) {
+                return ram.put(value);
+            }
+
+            @Override
+            public byte[] get(byte[] key) {
+                if (failAfter[0] == 0)
+                    throw new IllegalStateException("Read failed");
+                if (failAfter[0] > 0)
+                    failAfter[0]--;
+                return ram.get(key);
+            }
+
+            @Override
+            public void remove(byte[] key) {
+                ram.remove(key);
+            }
+        };
+        NodeCache cache = new NodeCache(flaky, 1 << 20);
+        tree = new MerkleBTree(TreeNode.empty(), new MetricsStorage(new MerkleBTree.RetainingStorage(cache), cached), 4);
+        for (byte[] key : keys)
+            tree.put(key, key);
+        tree.setListener(cached);
+        for (byte[] key : keys)
+            tree.put(key, key);
+        long decoded = cached.nodesRead();
+        if (decoded == 0 || cached.blocksRead() != decoded)
+            throw new IllegalStateException("Nodes decoded by a cache not counted");
+        for (byte[] key : keys)
+            tree.put(key, key);
+        if (cached.nodesRead() != decoded || cached.blocksRead() != decoded)
+            throw new IllegalStateException("Cache hits counted as nodes read");
+
+        // a failed operation doesn't leave its reads to the next one
+        Metrics failed = new Metrics();
+        MerkleBTree uncached = new MerkleBTree(TreeNode.empty(), new MetricsStorage(flaky, failed), 4);
+        for (byte[] key : keys)
+            uncached.put(key, key);
+        uncached.setListener(failed);
+        MerkleBTree empty = new MerkleBTree(TreeNode.empty(), new MetricsStorage(ram, failed), 4);
+        empty.setListener(failed);
+        failAfter[0] = 2;
+        try {
+            uncached.delete(keys.get(0));
+            throw new IllegalStateException("Read didn't fail");
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().equals("Read failed"))
+                throw e;
+        }
+        failAfter[0] = -1;
+        empty.get(keys.get(0));
+        if (failed.latency(TreeListener.Operation.DELETE).count() != 1
+                || failed.readsPerOperation(TreeListener.Operation.DELETE).mean() != 2
+                || failed.readsPerOperation(TreeListener.Operation.GET).percentile(1) != 0)
+            throw new IllegalStateException("Reads of a failed operation were attributed to the next");
+
+        // nor are reads outside any operation
+        long outside = failed.readsOutsideOperations();
+        Iterator<Map.Entry<byte[], byte[]>> all = uncached.range(null, null);
+        while (all.hasNext())
+            all.next();
+        empty.get(keys.get(0));
+        if (failed.readsOutsideOperations() == outside || failed.readsPerOperation(TreeListener.Operation.GET).percentile(1) != 0)
+            throw new IllegalStateException("Reads outside operations were attributed to the next");
+    }
+
+    @Test
+    public void canonicalShape() throws IOException {
+        Random r = new Random(11);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[1 + r.nextInt(8)];
+            r.nextBytes(key);
+            keys.add(key);
+        }
+        RAMStorage storage = new RAMStorage();
+        MerkleBTree forwards = MerkleBTree.canonical(storage, 8);
+        for (byte[] key : keys)
+            forwards.put(key, key);
+
+        // another order, with extra keys which are deleted again and values which are overwritten
+        MerkleBTree shuffled = MerkleBTree.canonical(storage, 8);
+        List<byte[]> order = new ArrayList<>(keys);
+        Collections.shuffle(order, r);
+        for (byte[] key : order) {
+            shuffled.put(key, new byte[1]);
+            byte[] extra = new byte[9];
+            r.nextBytes(extra);
+            shuffled.put(extra, extra);
+            shuffled.put(key, key);
+            shuffled.delete(extra);
+        }
+        if (!Arrays.equals(forwards.root.hash.get(), shuffled.root.hash.get()))
+            throw new IllegalStateException("Root depends on insertion order");
+
+        Map<byte[], byte[]> all = new HashMap<>();
+        for (byte[] key : keys)
+            all.put(key, key);
+        MerkleBTree batched = MerkleBTree.canonical(new RAMStorage(), 8);
+        batched.putAll(all);
+        if (!Arrays.equals(forwards.root.hash.get(), batched.root.hash.get()))
+            throw new IllegalStateException("Batched root differs");
+
+        for (byte[] key : keys)
+            if (!Arrays.equals(forwards.get(key), key))
+                throw new IllegalStateException("Incorrect value");
+        int unique = new HashSet<>(keys.stream().map(ByteArrayWrapper::new).collect(Collectors.toList())).size();
+        if (forwards.size() != unique || checkCounts(forwards.root, storage) != unique)
+            throw new IllegalStateException("Incorrect size");
+
+        // a single change only rewrites a path through the tree
+        MerkleBTree fork = shuffled.fork();
+        fork.put(keys.get(0), new byte[2]);
+        List<KeyChange> changes = new ArrayList<>();
+        fork.diff(forwards.root.hash.get(), fork.root.hash.get()).forEachRemaining(changes::add);
+        if (changes.size() != 1)
+            throw new IllegalStateException("Incorrect diff");
+
+        // deleting everything in another order gives the empty tree
+        Collections.shuffle(order, r);
+        for (byte[] key : order)
+            shuffled.delete(key);
+        if (!Arrays.equals(shuffled.root.hash.get(), storage.put(TreeNode.empty().serialize())))
+            throw new IllegalStateException("Tree should be empty");
+    }
+
+    @Test
+    public void proofs() throws IOException {
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), new RAMStorage(), 8);
+        Random r = new Random(5);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = new byte[6];
+            r.nextBytes(key);
+            keys.add(key);
+            tree.put(key, ("value" + i).getBytes());
+        }
+        byte[] root = tree.root.hash.get();
+        for (int i = 0; i < keys.size(); i += 37) {
+            Proof proof = Proof.deserialize(tree.prove(keys.get(i)).serialize());
+            if (!Arrays.equals(MerkleBTree.verify(root, keys.get(i), proof), ("value" + i).getBytes()))
+                throw new IllegalStateException("Incorrect proven value");
+        }
+        byte[] absent = new byte[3];
+        if (MerkleBTree.verify(root, absent, tree.prove(absent)) != null)
+            throw new IllegalStateException("Absent key proven present");
+
+        // a proof for one key only answers for keys on the same path, and nothing under another root
+        Proof single = tree.prove(keys.get(0));
+        int rejected = 0;
+        for (int i = 1; i < 20; i++) {
+            try {
+                if (!Arrays.equals(MerkleBTree.verify(root, keys.get(i), single), ("value" + i).getBytes()))
+                    throw new IllegalStateException("Incorrect value from another key's proof");
+            } catch (IOException e) {
+                rejected++;
+            }
+        }
+        if (rejected == 0)
+            throw new IllegalStateException("Proof accepted for every key");
+        try {
+            MerkleBTree.verify(RAMStorage.hash(new byte[1]), keys.get(0), single);
+            throw new IllegalStateException("Proof accepted for another root");
+        } catch (IOException e) {}
+
+        // a batch proof shares nodes between paths
+        List<byte[]> batchKeys = keys.subList(0, 50);
+        Proof batch = tree.prove(batchKeys);
+        int separate = 0;
+        for (int i = 0; i < batchKeys.size(); i++) {
+            separate += tree.prove(batchKeys.get(i)).nodes.size();
+            if (!Arrays.equals(MerkleBTree.verify(root, batchKeys.get(i), batch), ("value" + i).getBytes()))
+                throw new IllegalStateException("Incorrect value from batch proof");
+        }
+        if (batch.nodes.size() >= separate)
+            throw new IllegalStateException("Batch proof doesn't share nodes");
+    }
+
+    @Test
+    public void valueBlocks() throws Exception {
+        Path dir = Files.createTempDirectory("merklebtree");
+        try {
+            FileStorage storage = new FileStorage(dir, 64 * 1024, 0);
+            MerkleBTree tree = MerkleBTree.withValueBlocks(storage, 16, 64);
+            Random r = new Random(3);
+            Map<ByteArrayWrapper, byte[]> expected = new HashMap<>();
+            for (int i = 0; i < 500; i++) {
+                byte[] key = new byte[8];
+                r.nextBytes(key);
+                byte[] value = new byte[i % 2 == 0 ? 10 : 2000];
+                r.nextBytes(value);
+                tree.put(key, value);
+                expected.put(new ByteArrayWrapper(key), value);
+            }
+            Map<byte[], byte[]> batch = new HashMap<>();
+            for (int i = 0; i < 100; i++) {
+                byte[] key = new byte[9];
+                r.nextBytes(key);
+                byte[] value = new byte[i % 2 == 0 ? 64 : 65];
+                r.nextBytes(value);
+                batch.put(key, value);
+                expected.put(new ByteArrayWrapper(key), value);
+            }
+            tree.putAll(batch);
+
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet()) {
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Incorrect value");
+                if (!Arrays.equals(tree.getValueHash(e.getKey().data), storage.hashFunction().hash(e.getValue())))
+                    throw new IllegalStateException("Incorrect value hash");
+            }
+            Iterator<Map.Entry<byte[], byte[]>> range = tree.range(null, null);
+            int count = 0;
+            while (range.hasNext()) {
+                Map.Entry<byte[], byte[]> e = range.next();
+                if (!Arrays.equals(e.getValue(), expected.get(new ByteArrayWrapper(e.getKey()))))
+                    throw new IllegalStateException("Incorrect value in range");
+                count++;
+            }
+            if (count != expected.size() || !Arrays.equals(tree.select(0).getValue(), tree.range(null, null).next().getValue()))
+                throw new IllegalStateException("Incorrect range");
+
+            // large values don't bloat their nodes
+            long nodeBytes = 0;
+            Deque<byte[]> pending = new ArrayDeque<>(Collections.singletonList(tree.root.hash.get()));
+            while (!pending.isEmpty()) {
+                byte[] raw = storage.get(pending.pop());
+                nodeBytes += raw.length;
+                for (byte[] child : TreeNode.deserialize(raw).children)
+                    if (child.length > 0)
+                        pending.push(child);
+            }
+            if (nodeBytes > 250 * 2000 / 10)
+                throw new IllegalStateException("Values are inline");
+
+            // compaction keeps the value blocks of live keys
+            byte[] changed = expected.keySet().iterator().next().data;
+            byte[] before = tree.snapshot().root.hash.get();
+            tree.put(changed, new byte[5000]);
+            List<KeyChange> changes = new ArrayList<>();
+            tree.diff(before, tree.root.hash.get()).forEachRemaining(changes::add);
+            if (changes.size() != 1 || !Arrays.equals(changes.get(0).before.get(), expected.get(new ByteArrayWrapper(changed)))
+                    || changes.get(0).after.get().length != 5000)
+                throw new IllegalStateException("Incorrect diff");
+            expected.put(new ByteArrayWrapper(changed), new byte[5000]);
+            MerkleBTree finalTree = tree;
+            storage.compact(() -> Collections.singletonList(finalTree.root.hash.get()), 0);
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Value lost in compaction");
+            byte[] root = tree.root.hash.get();
+            storage.close();
+
+            // value blocks are kept by a store reopened with a different hash function
+            storage = new FileStorage(dir, 64 * 1024, 0, HashFunction.BLAKE2B_256);
+            tree = MerkleBTree.openWithValueBlocks(root, storage, 16, 64);
+            Iterator<ByteArrayWrapper> keys = expected.keySet().iterator();
+            for (int i = 0; keys.hasNext(); i++) {
+                byte[] key = keys.next().data;
+                if (i % 4 != 0) {
+                    tree.delete(key);
+                    keys.remove();
+                }
+            }
+            MerkleBTree reopened = tree;
+            storage.compact(() -> Collections.singletonList(reopened.root.hash.get()), 0);
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Value lost in compaction after changing hash function");
+            storage.close();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        Path dir = Files.createTempDirectory("merklebtree");
+        try {
+            RAMStorage storage = new RAMStorage();
+            LoggedMerkleBTree tree = new LoggedMerkleBTree(dir, storage, 16, 1_000_000, 0);
+            Map<ByteArrayWrapper, byte[]> expected = new ConcurrentHashMap<>();
+            List<Thread> writers = new ArrayList<>();
+            Throwable[] error = new Throwable[1];
+            for (int t = 0; t < 4; t++) {
+                int seed = t;
+                LoggedMerkleBTree finalTree = tree;
+                writers.add(new Thread(() -> {
+                    Random r = new Random(seed);
+                    try {
+                        for (int i = 0; i < 250; i++) {
+                            byte[] key = new byte[8];
+                            r.nextBytes(key);
+                            finalTree.put(key, key);
+                            expected.put(new ByteArrayWrapper(key), key);
+                            if (i % 10 == 0) {
+                                finalTree.delete(key);
+                                expected.remove(new ByteArrayWrapper(key));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }));
+            }
+            for (Thread writer : writers)
+                writer.start();
+            for (Thread writer : writers)
+                writer.join();
+            if (error[0] != null)
+                throw new IllegalStateException(error[0]);
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Incorrect value before checkpoint");
+            Iterator<Map.Entry<byte[], byte[]>> range = tree.range(null, null);
+            int count = 0;
+            for (; range.hasNext(); count++) {
+                Map.Entry<byte[], byte[]> e = range.next();
+                if (!Arrays.equals(e.getValue(), expected.get(new ByteArrayWrapper(e.getKey()))))
+                    throw new IllegalStateException("Incorrect value in range");
+            }
+            if (count != expected.size())
+                throw new IllegalStateException("Incorrect range size " + count);
+
+            // crash without checkpointing, leaving a torn record at the end of the log, and recover from the log
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "log-*")) {
+                for (Path log : logs)
+                    Files.write(log, new byte[]{0, 0, 0, 100, 1, 2}, StandardOpenOption.APPEND);
+            }
+            tree = new LoggedMerkleBTree(dir, storage, 16, 1_000_000, 0);
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(tree.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Incorrect value after replay");
+
+            // a checkpoint applies the writes, and after it only the new root and an empty log remain
+            byte[] root = tree.checkpoint();
+            byte[] more = new byte[]{1, 2, 3};
+            tree.put(more, more);
+            expected.put(new ByteArrayWrapper(more), more);
+            tree.close();
+            tree = new LoggedMerkleBTree(dir, storage, 16, 1_000_000, 0);
+            if (Arrays.equals(tree.checkpoint(), root) || tree.roots().size() != 1)
+                throw new IllegalStateException("Close didn't checkpoint");
+            MerkleBTree checkpointed = MerkleBTree.openReadOnly(tree.roots().iterator().next(), storage, 16);
+            if (checkpointed.size() != expected.size())
+                throw new IllegalStateException("Incorrect size");
+            for (Map.Entry<ByteArrayWrapper, byte[]> e : expected.entrySet())
+                if (!Arrays.equals(checkpointed.get(e.getKey().data), e.getValue()))
+                    throw new IllegalStateException("Incorrect value after checkpoint");
+            tree.close();
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "log-*")) {
+                for (Path log : logs)
+                    if (Files.size(log) > 0)
+                        throw new IllegalStateException("Applied log not deleted");
+            }
+
+            // writes fail after a checkpoint fails in the background, until a checkpoint succeeds
+            boolean[] failing = new boolean[]{true};
+            RAMStorage flaky = new RAMStorage() {
+                @Override
+                public void sync() throws IOException {
+                    if (failing[0])
+                        throw new IOException("Sync failed");
+                }
+            };
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            tree = new LoggedMerkleBTree(dir, flaky, 16, 10, 0);
+            boolean rejected = false;
+            for (int i = 0; i < 1000 && !rejected; i++) {
+                try {
+                    tree.put(new byte[]{4, (byte) i}, more);
+                } catch (IOException e) {
+                    rejected = true;
+                }
+                Thread.sleep(1);
+            }
+            if (!rejected)
+                throw new IllegalStateException("Writes continued after a failed checkpoint");
+            failing[0] = false;
+            tree.checkpoint();
+            tree.put(more, more);
+            tree.close();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void writeBuffer() throws Exception {
+        Metrics metrics = new Metrics();
+        MerkleBTree tree = new MerkleBTree(TreeNode.empty(), new MetricsStorage(new RAMStorage(), metrics), 16);
+        for (int i = 0; i < 1000; i++)
+            tree.put(("key" + i).getBytes(), ("old" + i).getBytes());
+        BufferedMerkleBTree buffered = new BufferedMerkleBTree(tree, 100, 0);
+        byte[] before = tree.root.hash.get();
+        long written = metrics.blocksWritten();
+
+        // hot keys written many times stay in the buffer
+        for (int round = 0; round < 100; round++)
+            for (int i = 0; i < 10; i++)
+                buffered.put(("key" + i).getBytes(), ("new" + round).getBytes());
+        for (int i = 10; i < 20; i++)
+            buffered.delete(("key" + i).getBytes());
+        buffered.put("key1000".getBytes(), "added".getBytes());
+        if (!Arrays.equals(tree.root.hash.get(), before) || metrics.blocksWritten() != written)
+            throw new IllegalStateException("Buffered writes reached the tree");
+        if (!Arrays.equals(buffered.get("key5".getBytes()), "new99".getBytes()) || buffered.get("key15".getBytes()) != null
+                || !Arrays.equals(buffered.get("key500".getBytes()), "old500".getBytes()))
+            throw new IllegalStateException("Incorrect buffered read");
+
+        // ranges see the buffer over the tree
+        Iterator<Map.Entry<byte[], byte[]>> range = buffered.range(null, null);
+        int count = 0;
+        while (range.hasNext()) {
+            Map.Entry<byte[], byte[]> e = range.next();
+            if (!Arrays.equals(e.getValue(), buffered.get(e.getKey())))
+                throw new IllegalStateException("Incorrect value in range");
+            count++;
+        }
+        if (count != 991)
+            throw new IllegalStateException("Incorrect range size " + count);
+
+        byte[] root = buffered.commit();
+        if (!Arrays.equals(root, tree.root.hash.get()) || tree.size() != 991 || buffered.buffered() != 0
+                || !Arrays.equals(tree.get("key5".getBytes()), "new99".getBytes()) || tree.get("key15".getBytes()) != null)
+            throw new IllegalStateException("Incorrect commit");
+        if (metrics.blocksWritten() - written > 30)
+            throw new IllegalStateException("Too many blocks written: " + (metrics.blocksWritten() - written));
+
+        // a full buffer flushes itself
+        for (int i = 0; i < 250; i++)
+            buffered.put(("more" + i).getBytes(), new byte[1]);
+        if (buffered.buffered() != 50 || tree.size() != 1191)
+            throw new IllegalStateException("Buffer didn't flush when full");
+        buffered.close();
+        if (tree.size() != 1241)
+            throw new IllegalStateException("Close didn't flush");
+        buffered.close();
+        try {
+            buffered.put(new byte[1], new byte[1]);
+            throw new IllegalStateException("Write after close");
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().equals("Tree is closed!"))
+                throw e;
+        }
+
+        // a flush which fails in the background is reported by the next write, and retried by the next flush
+        boolean[] failing = new boolean[]{true};
+        RAMStorage flaky = new RAMStorage() {
+            @Override
+            public void putMany(List<byte[]> hashes, List<byte[]> values) {
+                if (failing[0])
+                    throw new IllegalStateException("Write failed");
+                super.putMany(hashes, values);
+            }
+        };
+        tree = new MerkleBTree(TreeNode.empty(), flaky, 16);
+        buffered = new BufferedMerkleBTree(tree, 100, 50);
+        boolean reported = false;
+        for (int i = 0; i < 5000 && !reported; i++) {
+            try {
+                buffered.put(("flaky" + i).getBytes(), new byte[1]);
+            } catch (IOException e) {
+                reported = true;
+            }
+            Thread.sleep(1);
+        }
+        if (!reported)
+            throw new IllegalStateException("Background flush failure wasn't reported");
+        failing[0] = false;
+        buffered.commit();
+        if (tree.size() == 0 || tree.get("flaky0".getBytes()) == null)
+            throw new IllegalStateException("Failed flush wasn't retried");
+        buffered.close();
+
+        // close retries the writes of a failed flush, and leaves the tree open if that fails too
+        failing[0] = true;
+        tree = new MerkleBTree(TreeNode.empty(), flaky, 16);
+        buffered = new BufferedMerkleBTree(tree, 1000, 0);
+        buffered.put("a".getBytes(), "a".getBytes());
+        try {
+            buffered.close();
+            throw new IllegalStateException("Close succeeded!");
+        } catch (IllegalStateException e) {
+            if (!e.getMessage().equals("Write failed"))
+                throw e;
+        }
+        buffered.put("b".getBytes(), "b".getBytes());
+        failing[0] = false;
+        buffered.close();
+        if (!Arrays.equals(tree.get("a".getBytes()), "a".getBytes()) || !Arrays.equals(tree.get("b".getBytes()), "b".getBytes()))
+            throw new IllegalStateException("Buffered writes lost on close");
+
+        failing[0] = true;
+        tree = new MerkleBTree(TreeNode.empty(), flaky, 16);
+        buffered = new BufferedMerkleBTree(tree, 1000, 10);
+        buffered.put("c".getBytes(), "c".getBytes());
+        Thread.sleep(200);
+        failing[0] = false;
+        buffered.close();
+        if (!Arrays.equals(tree.get("c".getBytes()), "c".getBytes()))
+            throw new IllegalStateException("Writes of a failed background flush lost on close");
+    }
+
+    private static byte[] legacySerialize(TreeNode node) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.writeInt(node.keys.length);
+        for (int i=0; i < node.keys.length; i++) {
+            dout.writeInt(node.keys[i].length);
+            dout.write(node.keys[i]);
+            dout.writeInt(node.values[i].length);
+            dout.write(node.values[i]);
+            dout.writeInt(node.children[i].length);
+            dout.write(node.children[i]);
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     *
+     * @return the height of the subtree, after checking all its leaves are at the same depth and only the root has
+     * fewer than maxChildren/2 keys
+     */
+    private static int checkShape(TreeNode node, ContentAddressedStorage storage, int maxChildren, boolean isRoot) throws IOException {
+        if (node.keys.length > maxChildren || (!isRoot && node.keys.length < maxChildren / 2))
+            throw new IllegalStateException("Node has " + node.keys.length + " keys!");
+        int height = -1;
+        for (byte[] child : node.children) {
+            int childHeight = child.length == 0 ? 0 : checkShape(storage.getNode(child), storage, maxChildren, false);
+            if (height != -1 && childHeight != height)
+                throw new IllegalStateException("Leaves at different depths!");
+            height = childHeight;
+        }
+        return height + 1;
+    }
+
+    private static void nodeHashes(byte[] root, ContentAddressedStorage storage, Set<ByteArrayWrapper> res) throws IOException {
+        if (!res.add(new ByteArrayWrapper(root)))
+            return;
+        for (byte[] child : storage.getNode(root).children)
+            if (child.length > 0)
+                nodeHashes(child, storage, res);
+    }
+
+    private static int reachableNodes(TreeNode node, ContentAddressedStorage storage) throws IOException {
+        int total = 1;
+        for (byte[] child : node.children)
+            if (child.length > 0)
+                total += reachableNodes(storage.getNode(child), storage);
+        return total;
+    }
+
     private static byte[] toLittleEndian(int x) {
         byte[] res = new byte[4];
         for (int i=0; i < 4; i++)